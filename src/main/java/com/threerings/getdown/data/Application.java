@@ -19,6 +19,8 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -29,11 +31,14 @@ import java.nio.channels.OverlappingFileLockException;
 import java.security.AllPermission;
 import java.security.CodeSource;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.PermissionCollection;
 import java.security.Permissions;
 import java.security.Signature;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
@@ -46,6 +51,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import javax.swing.JApplet;
 
@@ -59,9 +66,13 @@ import com.samskivert.util.RunAnywhere;
 import com.samskivert.util.StringUtil;
 
 import com.threerings.getdown.launcher.RotatingBackgrounds;
+import com.threerings.getdown.net.Mirrors;
+import com.threerings.getdown.net.PeerCache;
+import com.threerings.getdown.util.Compression;
 import com.threerings.getdown.util.ConfigUtil;
 import com.threerings.getdown.util.ConnectionUtil;
 import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.IndexedClassLoader;
 import com.threerings.getdown.util.LaunchUtil;
 import com.threerings.getdown.util.MetaProgressObserver;
 import com.threerings.getdown.util.ProgressObserver;
@@ -88,6 +99,49 @@ public class Application
     /** Suffix used for control file signatures. */
     public static final String SIGNATURE_SUFFIX = ".sig";
 
+    /** The name of the directory that holds a directory for each installed version, when each
+     * version is installed into its own directory. */
+    public static final String VERSIONS_DIR = "versions";
+
+    /** The name of the file that points to the active version directory. */
+    public static final String CURRENT_FILE = "current.txt";
+
+    /** The name of the directory into which the next version is staged. */
+    public static final String STAGING_DIR = "staged";
+
+    /** The name of the file, in the staging directory, that lists the staged resources. Its
+     * presence indicates that the staged version is complete and ready to be activated. */
+    public static final String STAGED_FILE = "staged.txt";
+
+    /** The name of the directory into which the files replaced by a staged version are moved
+     * while it is activated, so that a failed activation can be undone. */
+    public static final String REPLACED_DIR = "replaced";
+
+    /** The name of the file in which we note the state of a verified installation. */
+    public static final String FINGERPRINT_FILE = "launch.fingerprint";
+
+    /** The name of the file in which we index the classes of our code jars, for {@link
+     * #invokeDirect}. */
+    public static final String CLASS_INDEX_FILE = "classpath.index";
+
+    /** The prefix and suffix of the name of our application class data sharing archive. */
+    public static final String APPCDS_PREFIX = "appcds-", APPCDS_SUFFIX = ".jsa";
+
+    /** The oldest major version of the JVM that can create class data archives dynamically. */
+    public static final int MIN_APPCDS_VERSION = 13;
+
+    /** The directory into which we fetch the target version's digest to estimate its size. */
+    public static final String ESTIMATE_DIR = "estimate";
+
+    /** The name of the file whose presence indicates that an update is in progress. */
+    public static final String UPDATE_FILE = "update.inprogress";
+
+    /** The name of the archive that bundles the control files of a version. */
+    public static final String METADATA_BUNDLE = "metadata.zip";
+
+    /** Suffix used for the files in which we note the HTTP validators of control files. */
+    public static final String VALIDATORS_SUFFIX = ".validators";
+
     /** Used to communicate information about the UI displayed when updating the application. */
     public static class UpdateInterface
     {
@@ -247,11 +301,621 @@ public class Application
                         String[] jvmargs, String[] appargs)
     {
         _appdir = appdir;
+        _vdir = readCurrentVersionDir();
         _appid = appid;
         _signers = (signers == null) ? Collections.<Certificate>emptyList() : signers;
         _config = getLocalPath(CONFIG_FILE);
         _extraJvmArgs = (jvmargs == null) ? ArrayUtil.EMPTY_STRING : jvmargs;
         _extraAppArgs = (appargs == null) ? ArrayUtil.EMPTY_STRING : appargs;
+        String store = SysProps.sharedStore();
+        _store = StringUtil.isBlank(store) ? null : new SharedStore(new File(store));
+    }
+
+    /**
+     * Returns true if this application should be launched at its current version while its next
+     * version is staged in the background, rather than updated before launching. Only versioned
+     * applications support this.
+     */
+    public boolean isLaunchFirst ()
+    {
+        return _launchFirst && _version != -1;
+    }
+
+    /**
+     * Prepares to stage the target version of this application: clears out the staging
+     * directory, and downloads the target version's control files into it.
+     *
+     * @return an application rooted in the staging directory, from which the resources of the
+     * target version can be obtained.
+     */
+    public Application createStagedApplication ()
+        throws IOException
+    {
+        File sdir = hasVersionDirs() ? getVersionDir(_targetVersion) : getAppdirPath(STAGING_DIR);
+        if (!FileUtil.recursiveDelete(sdir) || !sdir.mkdirs()) {
+            throw new IOException("Unable to prepare staging directory " + sdir);
+        }
+
+        // start from our own config file, so that the staged application knows its appbase
+        FileUtil.copy(_config, new File(sdir, CONFIG_FILE));
+        Application staged = new Application(sdir, _appid, _signers, null, null);
+        staged._peers = _peers;
+        staged.init(false);
+        staged._targetVersion = _targetVersion;
+        staged._allowOffline = false;
+        staged.updateMetadata();
+        staged.init(false);
+        if (staged._version != _targetVersion) {
+            throw new IOException("Staged metadata is for version " + staged._version +
+                                  " rather than " + _targetVersion);
+        }
+        return staged;
+    }
+
+    /**
+     * Returns the resources of the supplied staged application that differ from ours, among its
+     * code and resources and those of the auxiliary groups that are active for us. They will be
+     * located in the staging directory.
+     */
+    public List<Resource> getStagedResources (Application staged)
+        throws IOException
+    {
+        List<Resource> rsrcs = new ArrayList<Resource>(staged.getCodeResources());
+        rsrcs.addAll(staged.getResources());
+        for (AuxGroup aux : staged.getAuxGroups()) {
+            if (isAuxGroupActive(aux.name)) {
+                rsrcs.addAll(aux.codes);
+                rsrcs.addAll(aux.rsrcs);
+            }
+        }
+
+        Set<String> changed = staged.getDigest().getChangedPaths(getDigest());
+        for (Iterator<Resource> iter = rsrcs.iterator(); iter.hasNext(); ) {
+            if (!changed.contains(iter.next().getPath())) {
+                iter.remove();
+            }
+        }
+        return rsrcs;
+    }
+
+    /**
+     * Links into place those of the supplied resources whose content is in the shared store, if
+     * one is configured. The resources must be validated before they are used, as with any
+     * download.
+     *
+     * @return the resources that were not in the store, and so must be downloaded.
+     */
+    public List<Resource> fetchFromStore (List<Resource> rsrcs)
+        throws IOException
+    {
+        if (_store == null) {
+            return rsrcs;
+        }
+        Digest digest = getDigest();
+        List<Resource> missing = new ArrayList<Resource>();
+        for (Resource rsrc : rsrcs) {
+            String expected = digest.getDigest(rsrc);
+            if (expected == null || !_store.fetch(rsrc, expected)) {
+                missing.add(rsrc);
+            }
+        }
+        if (missing.size() < rsrcs.size()) {
+            log.info("Fetched resources from shared store",
+                     "fetched", rsrcs.size() - missing.size(), "remaining", missing.size());
+        }
+        return missing;
+    }
+
+    /**
+     * Configures the peers with which this application shares its resources.
+     */
+    public void setPeerCache (PeerCache peers)
+    {
+        _peers = peers;
+    }
+
+    /**
+     * Fetches those of the supplied resources that our peers have, if we have peers. Each fetched
+     * resource is validated before we accept it.
+     *
+     * @return the resources that no peer supplied, and so must be downloaded.
+     */
+    public List<Resource> fetchFromPeers (List<Resource> rsrcs, ProgressObserver obs)
+        throws IOException
+    {
+        if (_peers == null || rsrcs.isEmpty()) {
+            return rsrcs;
+        }
+        Digest digest = getDigest();
+        List<Resource> missing = new ArrayList<Resource>();
+        for (int ii = 0; ii < rsrcs.size(); ii++) {
+            Resource rsrc = rsrcs.get(ii);
+            String expected = digest.getDigest(rsrc);
+            if (expected == null || !fetchFromPeers(rsrc, expected)) {
+                missing.add(rsrc);
+            }
+            if (obs != null) {
+                obs.progress(100 * (ii+1) / rsrcs.size());
+            }
+        }
+        if (missing.size() < rsrcs.size()) {
+            log.info("Fetched resources from peers",
+                     "fetched", rsrcs.size() - missing.size(), "remaining", missing.size());
+        }
+        return missing;
+    }
+
+    /**
+     * Fetches the supplied resource, which has the supplied digest, from the first of our peers
+     * that has a valid copy of it.
+     */
+    protected boolean fetchFromPeers (Resource rsrc, String expected)
+    {
+        for (InetSocketAddress peer : _peers.getPeers()) {
+            if (!_peers.fetch(peer, expected, rsrc.getLocal())) {
+                continue;
+            }
+            if (_digest.validateResource(rsrc, null)) {
+                noteValid(rsrc);
+                return true;
+            }
+            log.warning("Resource from peer failed validation", "rsrc", rsrc, "peer", peer);
+            rsrc.getLocal().delete();
+        }
+        return false;
+    }
+
+    /**
+     * Notes that the supplied resources of the supplied staged application have been downloaded
+     * and validated, making the staged version ready for activation.
+     */
+    public void completeStaging (Application staged, List<Resource> rsrcs)
+        throws IOException
+    {
+        Digest digest = staged.getDigest();
+        for (Resource rsrc : rsrcs) {
+            if (!digest.validateResource(rsrc, null)) {
+                staged.noteInvalid(rsrc);
+                throw new IOException("Staged resource failed validation: " + rsrc);
+            }
+            staged.noteValid(rsrc);
+        }
+
+        // if the version has its own directory, fill in the resources it shares with ours and
+        // switch to it; there's nothing to move, so there's no need to wait for our next launch
+        if (hasVersionDirs()) {
+            for (Resource rsrc : rsrcs) {
+                if (!rsrc.shouldUnpack()) {
+                    rsrc.markAsValid();
+                }
+            }
+            linkUnchangedResources(staged, rsrcs);
+            switchVersion(staged._version);
+            return;
+        }
+
+        // write the list under a temporary name, so that it appears complete or not at all
+        File sfile = staged.getLocalPath(STAGED_FILE);
+        File tfile = staged.getLocalPath(STAGED_FILE + "_new");
+        PrintStream out = new PrintStream(new FileOutputStream(tfile), false, "UTF-8");
+        try {
+            for (Resource rsrc : rsrcs) {
+                out.println(rsrc.getPath());
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError() || !FileUtil.renameTo(tfile, sfile)) {
+            throw new IOException("Failed to write " + sfile);
+        }
+        log.info("Staged update", "version", staged._version, "resources", rsrcs.size());
+    }
+
+    /**
+     * Returns true if each version of this application is installed into its own directory, and
+     * updates are made by preparing the new version's directory and then switching to it.
+     */
+    public boolean hasVersionDirs ()
+    {
+        return _versionDirs && _version != -1;
+    }
+
+    /**
+     * Switches back to the version that was active before the current one, if its directory
+     * remains. The application must be reinitialized after a successful rollback.
+     *
+     * @return true if we rolled back.
+     */
+    public boolean rollback ()
+        throws IOException
+    {
+        long[] versions = readCurrentFile();
+        if (versions == null || versions[1] < 0 || !getVersionDir(versions[1]).isDirectory()) {
+            log.warning("No previous version to roll back to.");
+            return false;
+        }
+        log.info("Rolling back", "from", versions[0], "to", versions[1]);
+        writeCurrentFile(versions[1], versions[0]);
+        // make sure that we don't immediately update to the version we rolled back from
+        File vfile = getAppdirPath(VERSION_FILE);
+        if (vfile.exists()) {
+            VersionUtil.writeVersion(vfile, versions[1]);
+        }
+        setVersionDir(getVersionDir(versions[1]));
+        return true;
+    }
+
+    /**
+     * Makes the specified version's directory the active one, and removes the directories of
+     * versions older than the one we're switching from, which we retain for rollback.
+     */
+    protected void switchVersion (long version)
+        throws IOException
+    {
+        long[] versions = readCurrentFile();
+        long previous = (versions == null) ? -1 : versions[0];
+        writeCurrentFile(version, previous);
+        setVersionDir(getVersionDir(version));
+        clearLaunchFingerprint();
+        log.info("Switched version", "version", version, "previous", previous);
+
+        File[] vdirs = getAppdirPath(VERSIONS_DIR).listFiles();
+        for (int ii = 0; vdirs != null && ii < vdirs.length; ii++) {
+            String name = vdirs[ii].getName();
+            if (!name.equals(String.valueOf(version)) && !name.equals(String.valueOf(previous))) {
+                log.info("Removing old version", "dir", vdirs[ii]);
+                FileUtil.recursiveDelete(vdirs[ii]);
+            }
+        }
+    }
+
+    /**
+     * Links (or failing that, copies) the resources of the supplied staged application that are
+     * unchanged from ours into its directory, along with their validation markers.
+     */
+    protected void linkUnchangedResources (Application staged, List<Resource> changed)
+        throws IOException
+    {
+        Set<String> cpaths = new HashSet<String>();
+        for (Resource rsrc : changed) {
+            cpaths.add(rsrc.getPath());
+        }
+        List<Resource> rsrcs = new ArrayList<Resource>(staged.getCodeResources());
+        rsrcs.addAll(staged.getResources());
+        for (AuxGroup aux : staged.getAuxGroups()) {
+            if (isAuxGroupActive(aux.name)) {
+                rsrcs.addAll(aux.codes);
+                rsrcs.addAll(aux.rsrcs);
+            }
+        }
+        for (Resource rsrc : rsrcs) {
+            File source = getLocalPath(rsrc.getPath());
+            if (cpaths.contains(rsrc.getPath()) || !source.exists()) {
+                continue;
+            }
+            FileUtil.linkOrCopy(source, rsrc.getLocal());
+            // unpacked resources must be unpacked anew in the new directory
+            if (!rsrc.shouldUnpack() && new File(source.getPath() + "v").exists()) {
+                rsrc.markAsValid();
+            }
+        }
+    }
+
+    /**
+     * Returns the directory of the specified version.
+     */
+    protected File getVersionDir (long version)
+    {
+        return new File(getAppdirPath(VERSIONS_DIR), String.valueOf(version));
+    }
+
+    /**
+     * Makes the supplied directory the home of our control files and resources.
+     */
+    protected void setVersionDir (File vdir)
+    {
+        _vdir = vdir;
+        _config = getLocalPath(CONFIG_FILE);
+        _digest = null;
+    }
+
+    /**
+     * Returns the directory of the active version, or the application directory if versions are
+     * not installed into their own directories.
+     */
+    protected File readCurrentVersionDir ()
+    {
+        long[] versions = readCurrentFile();
+        return (versions == null) ? _appdir : getVersionDir(versions[0]);
+    }
+
+    /**
+     * Reads the current and previous versions from the {@link #CURRENT_FILE}, or returns null if
+     * there is none.
+     */
+    protected long[] readCurrentFile ()
+    {
+        File cfile = getAppdirPath(CURRENT_FILE);
+        if (!cfile.exists()) {
+            // we may have been interrupted while replacing it on a platform that can't do so
+            // atomically
+            cfile = getAppdirPath(CURRENT_FILE + "_old");
+            if (!cfile.exists()) {
+                return null;
+            }
+        }
+        long[] versions = { -1, -1 };
+        try {
+            for (String[] pair : ConfigUtil.parsePairs(cfile, false)) {
+                if (pair[0].equals("current")) {
+                    versions[0] = Long.parseLong(pair[1]);
+                } else if (pair[0].equals("previous")) {
+                    versions[1] = Long.parseLong(pair[1]);
+                }
+            }
+        } catch (Exception e) {
+            log.warning("Failed to read current version", "file", cfile, "error", e);
+        }
+        return (versions[0] < 0) ? null : versions;
+    }
+
+    /**
+     * Atomically replaces the {@link #CURRENT_FILE}.
+     */
+    protected void writeCurrentFile (long current, long previous)
+        throws IOException
+    {
+        File cfile = getAppdirPath(CURRENT_FILE);
+        File tfile = getAppdirPath(CURRENT_FILE + "_new");
+        PrintStream out = new PrintStream(new FileOutputStream(tfile));
+        try {
+            out.println("current = " + current);
+            out.println("previous = " + previous);
+        } finally {
+            out.close();
+        }
+        if (out.checkError() || !FileUtil.renameTo(tfile, cfile)) {
+            throw new IOException("Failed to write " + cfile);
+        }
+    }
+
+    /**
+     * Activates a version of this application that was completely staged in a previous session,
+     * by moving its resources and then its control files into place. If activation is
+     * interrupted, it picks up where it left off the next time this is called. If a file can't be
+     * moved (because it is in use, say), the files moved so far are put back, so that the current
+     * version remains intact, and the staged version is kept to be activated next time. An
+     * incompletely staged version is discarded. This must only be called while holding the update
+     * lock and before the application is launched.
+     *
+     * @return true if a version was activated, in which case the application must be
+     * reinitialized.
+     */
+    public boolean activateStagedVersion ()
+        throws IOException
+    {
+        File sdir = getAppdirPath(STAGING_DIR), rdir = getAppdirPath(REPLACED_DIR);
+        File sfile = new File(sdir, STAGED_FILE);
+        if (!sfile.exists()) {
+            if (sdir.exists()) {
+                log.info("Discarding incompletely staged update.");
+                FileUtil.recursiveDelete(sdir);
+            }
+            FileUtil.recursiveDelete(rdir);
+            return false;
+        }
+
+        log.info("Activating staged update...");
+        List<String> paths = FileUtil.readLines(
+            new InputStreamReader(new FileInputStream(sfile), "UTF-8"));
+        // move the digest before the config file, so that if we're interrupted, our config file
+        // still references the old version, and we'll resume activation next time
+        paths.addAll(Arrays.asList(Digest.BINARY_DIGEST_FILE, Digest.DIGEST_FILE, CONFIG_FILE));
+        List<String> moved = new ArrayList<String>();
+        try {
+            for (String path : paths) {
+                if (moveStaged(sdir, rdir, path)) {
+                    moved.add(path);
+                }
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to activate staged update, will try again next time", ioe);
+            restoreReplaced(sdir, rdir, paths, moved);
+            return false;
+        }
+        clearLaunchFingerprint();
+        FileUtil.recursiveDelete(sdir);
+        FileUtil.recursiveDelete(rdir);
+        return true;
+    }
+
+    /**
+     * Moves a staged file over its live counterpart, if it has not already been moved. The live
+     * file is first moved aside into the supplied directory of replaced files.
+     *
+     * @return true if the file was moved.
+     */
+    protected boolean moveStaged (File sdir, File rdir, String path)
+        throws IOException
+    {
+        File source = new File(sdir, path);
+        if (!source.exists()) {
+            return false;
+        }
+        File target = getLocalPath(path);
+        // the staged copy has not been validated in place or unpacked
+        new Resource(path, null, target, false).clearMarker();
+        if (target.exists()) {
+            // a plain rename, rather than one that falls back to copying, fails cleanly if the
+            // file is in use
+            File replaced = new File(rdir, path);
+            replaced.getParentFile().mkdirs();
+            replaced.delete();
+            if (!target.renameTo(replaced)) {
+                throw new IOException("Failed to rename(" + target + ", " + replaced + ")");
+            }
+        }
+        target.getParentFile().mkdirs();
+        if (!FileUtil.renameTo(source, target)) {
+            throw new IOException("Failed to rename(" + source + ", " + target + ")");
+        }
+        return true;
+    }
+
+    /**
+     * Undoes a failed activation: moves the staged files that were moved into place, now or by
+     * an interrupted activation, back into the staging directory, and the files that they
+     * replaced back into place.
+     *
+     * @param paths the paths of all of the staged files.
+     * @param moved the paths of the staged files moved into place by this activation.
+     */
+    protected void restoreReplaced (File sdir, File rdir, List<String> paths, List<String> moved)
+    {
+        for (String path : paths) {
+            File target = getLocalPath(path);
+            if ((moved.contains(path) || new File(rdir, path).exists()) && target.exists() &&
+                !FileUtil.renameTo(target, new File(sdir, path))) {
+                log.warning("Failed to restore staged file", "path", path);
+            }
+        }
+        restoreTree(rdir, "");
+        FileUtil.recursiveDelete(rdir);
+    }
+
+    /**
+     * Moves the files beneath the specified directory of replaced files back into place.
+     */
+    protected void restoreTree (File rdir, String prefix)
+    {
+        File[] files = new File(rdir, prefix).listFiles();
+        for (int ii = 0; files != null && ii < files.length; ii++) {
+            String path = prefix + files[ii].getName();
+            if (files[ii].isDirectory()) {
+                restoreTree(rdir, path + "/");
+            } else if (!getLocalPath(path).exists() &&
+                       !FileUtil.renameTo(files[ii], getLocalPath(path))) {
+                log.warning("Failed to restore replaced file", "path", path);
+            }
+        }
+    }
+
+    /**
+     * Returns the digest of this application, loading it if necessary.
+     */
+    protected Digest getDigest ()
+        throws IOException
+    {
+        if (_digest == null) {
+            _digest = new Digest(_vdir, _binaryDigest);
+        }
+        return _digest;
+    }
+
+    /**
+     * Returns true if this application may be launched without verification when its installation
+     * is unchanged since it was last verified.
+     */
+    public boolean allowsWarmLaunch ()
+    {
+        return _warmLaunch;
+    }
+
+    /**
+     * Returns true if the installation is unchanged since {@link #saveLaunchFingerprint} was last
+     * called, meaning that it can be launched without verifying its metadata or resources.
+     */
+    public boolean checkLaunchFingerprint ()
+    {
+        File ffile = getAppdirPath(FINGERPRINT_FILE);
+        if (!ffile.exists()) {
+            return false;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(ffile));
+            return computeLaunchFingerprint().equals(in.readLine());
+        } catch (IOException ioe) {
+            log.warning("Failed to read launch fingerprint", "file", ffile, "error", ioe);
+            return false;
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Notes the state of the installation, which must have just been verified, so that a
+     * subsequent launch can skip verification if it is unchanged.
+     */
+    public void saveLaunchFingerprint ()
+    {
+        File ffile = getAppdirPath(FINGERPRINT_FILE);
+        PrintStream out = null;
+        try {
+            out = new PrintStream(new FileOutputStream(ffile));
+            out.println(computeLaunchFingerprint());
+        } catch (IOException ioe) {
+            log.warning("Failed to write launch fingerprint", "file", ffile, "error", ioe);
+        } finally {
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Clears the launch fingerprint, so that the next launch verifies the installation.
+     */
+    public void clearLaunchFingerprint ()
+    {
+        getAppdirPath(FINGERPRINT_FILE).delete();
+    }
+
+    /**
+     * Computes a fingerprint of the installation from the sizes and modification times of our
+     * control files and active resources. Anything that changes an installation, from an update
+     * to a user deleting a file, changes its fingerprint.
+     */
+    protected String computeLaunchFingerprint ()
+        throws IOException
+    {
+        MessageDigest md = Digest.getMessageDigest();
+        StringBuilder data = new StringBuilder();
+        data.append(_version).append("\n");
+        // the config file is touched on every run, so we note its contents rather than its
+        // modification time
+        File config = getLocalPath(CONFIG_FILE);
+        data.append(CONFIG_FILE).append(" ").append(Resource.computeDigest(config, md, null));
+        data.append("\n");
+        noteFile(data, getDigestFile(), getLocalPath(getDigestFile()));
+        noteFile(data, VERSION_FILE, getAppdirPath(VERSION_FILE));
+        for (Resource rsrc : getLaunchResources()) {
+            noteFile(data, rsrc.getPath(), rsrc.getLocal());
+        }
+        md.reset();
+        return StringUtil.hexlate(md.digest(data.toString().getBytes("UTF-8")));
+    }
+
+    /** Used by {@link #computeLaunchFingerprint}. */
+    protected static void noteFile (StringBuilder data, String path, File file)
+    {
+        // a missing file has a length and modification time of zero
+        data.append(path).append(" ").append(file.length()).append(" ");
+        data.append(file.lastModified()).append("\n");
+    }
+
+    /**
+     * Returns true if this application publishes its digest in binary form.
+     */
+    public boolean hasBinaryDigest ()
+    {
+        return _binaryDigest;
+    }
+
+    /**
+     * Returns true if this application publishes its control files in a {@link #METADATA_BUNDLE}.
+     */
+    public boolean hasMetadataBundle ()
+    {
+        return _metadataBundle;
     }
 
     /**
@@ -294,6 +958,23 @@ public class Application
         return allResources;
     }
 
+    /**
+     * Returns the resources that must be valid for this application to launch: all active
+     * resources except those of lazy auxiliary groups.
+     */
+    public List<Resource> getLaunchResources ()
+    {
+        List<Resource> rsrcs = new ArrayList<Resource>(getCodeResources());
+        rsrcs.addAll(getResources());
+        for (AuxGroup aux : getAuxGroups()) {
+            if (isAuxGroupActive(aux.name) && !isAuxGroupLazy(aux.name)) {
+                rsrcs.addAll(aux.codes);
+                rsrcs.addAll(aux.rsrcs);
+            }
+        }
+        return rsrcs;
+    }
+
     /**
      * Returns the auxiliary resource group with the specified name, or null.
      */
@@ -323,12 +1004,59 @@ public class Application
         if (active == null) {
             // TODO: compare the contents with the MD5 hash of the auxgroup name and the client's
             // machine ident
-            active = getLocalPath(auxgroup + ".dat").exists();
+            active = getAppdirPath(auxgroup + ".dat").exists();
             _auxactive.put(auxgroup, active);
         }
         return active;
     }
 
+    /**
+     * Returns true if the specified auxgroup is lazy: it is downloaded while the application runs,
+     * or when the application requests it, rather than before the application is launched. The
+     * application must cope with its absence, and any code that it contains only becomes available
+     * from the launch after it is downloaded.
+     */
+    public boolean isAuxGroupLazy (String auxgroup)
+    {
+        return _lazyAuxGroups.contains(auxgroup);
+    }
+
+    /**
+     * Returns true if this application has any lazy auxiliary groups.
+     */
+    public boolean hasLazyAuxGroups ()
+    {
+        return !_lazyAuxGroups.isEmpty();
+    }
+
+    /**
+     * Activates the specified auxgroup, so that it is downloaded and patched along with the main
+     * resources from now on.
+     */
+    public void activateAuxGroup (String auxgroup)
+        throws IOException
+    {
+        File token = getAppdirPath(auxgroup + ".dat");
+        if (!token.exists() && !token.createNewFile()) {
+            throw new IOException("Unable to create " + token);
+        }
+        _auxactive.put(auxgroup, true);
+    }
+
+    /**
+     * Creates an instance of this application, initialized from the same files, that can be used
+     * independently of this one, for example by another thread.
+     */
+    public Application createCopy ()
+        throws IOException
+    {
+        Application copy = new Application(_appdir, _appid, _signers, null, null);
+        copy._peers = _peers;
+        copy.init(false);
+        copy.getDigest();
+        return copy;
+    }
+
     /**
      * Returns all main code resources and all code resources from active auxiliary resource groups.
      */
@@ -344,6 +1072,43 @@ public class Application
         return codes;
     }
 
+    /**
+     * Returns the code resources that go on the application's classpath when it is launched: the
+     * main code resources and those of active auxiliary groups, except for lazy groups that are
+     * not yet wholly marked valid. Those are still to be downloaded (or are left over from an
+     * earlier version), and they must not be in use while the application runs, so that they can
+     * be replaced.
+     */
+    public List<Resource> getLaunchCodeResources ()
+    {
+        List<Resource> codes = new ArrayList<Resource>(getCodeResources());
+        for (AuxGroup aux : getAuxGroups()) {
+            if (isAuxGroupActive(aux.name) &&
+                (!isAuxGroupLazy(aux.name) || isAuxGroupValid(aux))) {
+                codes.addAll(aux.codes);
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Returns true if all of the resources of the supplied auxiliary group are marked valid.
+     */
+    protected boolean isAuxGroupValid (AuxGroup aux)
+    {
+        for (Resource rsrc : aux.codes) {
+            if (!rsrc.isMarkedValid()) {
+                return false;
+            }
+        }
+        for (Resource rsrc : aux.rsrcs) {
+            if (!rsrc.isMarkedValid()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns all non-code resources and all resources from active auxiliary resource groups.
      */
@@ -374,18 +1139,206 @@ public class Application
             return null;
         }
 
-        String infix = (auxgroup == null) ? "" : ("-" + auxgroup);
-        String pfile = "patch" + infix + _version + ".dat";
+        return getPatchResource(auxgroup, _version, _targetVersion);
+    }
+
+    /**
+     * Returns a resource that can be used to download the patch file that brings this application
+     * (or the specified auxiliary group) from version <code>from</code> to version <code>to</code>.
+     */
+    public Resource getPatchResource (String auxgroup, long from, long to)
+    {
+        String pfile = PatchIndex.patchFile(auxgroup, from);
         try {
-            URL remote = new URL(createVAppBase(_targetVersion), pfile);
+            URL remote = new URL(createVAppBase(to), pfile);
             return new Resource(pfile, remote, getLocalPath(pfile), false);
         } catch (Exception e) {
             log.warning("Failed to create patch resource path",
-                "pfile", pfile, "appbase", _appbase, "tvers", _targetVersion, "error", e);
+                "pfile", pfile, "appbase", _appbase, "tvers", to, "error", e);
             return null;
         }
     }
 
+    /**
+     * Returns the patch files that should be downloaded and applied, in order, to bring this
+     * application from its current version to the target version. If the target version publishes
+     * a {@link PatchIndex}, the cheapest chain of patches is chosen, and if downloading the changed
+     * resources in full is expected to be faster than downloading and applying that chain (based
+     * on the {@link UpdateRates} measured during past updates), an empty list is returned. Without
+     * an index, the single patch from the current version to the target version is compared in the
+     * same way against the resources that the target version's digest lists as changed.
+     */
+    public List<Resource> getPatchResources ()
+    {
+        List<Resource> list = new ArrayList<Resource>();
+        if (_targetVersion <= _version) {
+            log.warning("Requested patch resources for up-to-date or non-versioned application",
+                "cvers", _version, "tvers", _targetVersion);
+            return list;
+        }
+
+        List<String> auxgroups = new ArrayList<String>();
+        for (AuxGroup aux : getAuxGroups()) {
+            if (isAuxGroupActive(aux.name)) {
+                auxgroups.add(aux.name);
+            }
+        }
+
+        PatchIndex index = downloadPatchIndex();
+        if (index == null) {
+            // no index, so consider the single patch from our version to the target version
+            List<Resource> patches = new ArrayList<Resource>();
+            addPatchResource(patches, null, _version, _targetVersion);
+            for (String auxgroup : auxgroups) {
+                addPatchResource(patches, auxgroup, _version, _targetVersion);
+            }
+            long patchCost = getRemoteSize(patches);
+            if (patchCost == 0) {
+                log.info("No patch available, downloading in full", "cvers", _version,
+                         "tvers", _targetVersion);
+                return list;
+            }
+            // if either cost is unknown, patch as we always have
+            long fullCost = (patchCost < 0) ? -1L : getChangedSize();
+            if (patchCost < 0 || fullCost < 0 || choosePatching(patches, patchCost, fullCost)) {
+                list.addAll(patches);
+            }
+            return list;
+        }
+
+        List<PatchIndex.Hop> chain = index.planChain(_version, _targetVersion, auxgroups);
+        long fullCost = index.getFullCost(_version, auxgroups);
+        if (chain == null) {
+            log.info("No patch chain available, downloading in full", "cvers", _version,
+                     "tvers", _targetVersion, "full", fullCost);
+            return list;
+        }
+        if (!choosePatching(chain, index.getChainCost(chain, auxgroups), fullCost)) {
+            return list;
+        }
+        // a group that lacks a patch for any hop in the chain is brute-forced, so it needs none
+        Set<String> unpatched = index.getUnpatchedAuxGroups(chain, auxgroups);
+        for (PatchIndex.Hop hop : chain) {
+            addPatchResource(list, null, hop.from, hop.to);
+            for (String auxgroup : auxgroups) {
+                if (!unpatched.contains(auxgroup) &&
+                    index.getHop(auxgroup, hop.from, hop.to) != null) {
+                    addPatchResource(list, auxgroup, hop.from, hop.to);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Decides between patching and brute forcing: patching means downloading and then applying
+     * the patches, whereas brute forcing means just downloading the changed resources. Picks
+     * whichever we expect to finish sooner, given the rates measured during past updates.
+     *
+     * @param patches describes the patches, for logging.
+     * @param fullCost the bytes to be downloaded to brute force, or -1 if unknown.
+     *
+     * @return true if we should patch.
+     */
+    protected boolean choosePatching (Object patches, long patchCost, long fullCost)
+    {
+        UpdateRates rates = getUpdateRates();
+        long patchTime = rates.estimateTime(patchCost, patchCost);
+        long fullTime = (fullCost < 0) ? Long.MAX_VALUE : rates.estimateTime(fullCost, 0);
+        String strategy = (fullTime <= patchTime) ? "full" : "patch";
+        log.info("Chose update strategy", "strategy", strategy, "cvers", _version,
+                 "tvers", _targetVersion, "patches", patches, "patchBytes", patchCost,
+                 "patchMillis", patchTime, "fullBytes", fullCost,
+                 "fullMillis", (fullCost < 0) ? -1 : fullTime, "bps", rates.getDownloadRate(),
+                 "patchBps", rates.getPatchRate());
+        return strategy.equals("patch");
+    }
+
+    /**
+     * Returns the total size of the supplied remote files, as reported by the server, counting
+     * those that it doesn't have as empty; or -1 if it can't be determined.
+     */
+    protected long getRemoteSize (List<Resource> rsrcs)
+    {
+        long total = 0L;
+        for (Resource rsrc : rsrcs) {
+            try {
+                HttpURLConnection conn = ConnectionUtil.openHttp(rsrc.getRemote());
+                try {
+                    conn.setRequestMethod("HEAD");
+                    int code = conn.getResponseCode();
+                    if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                        continue;
+                    }
+                    long size = conn.getContentLength();
+                    if (code != HttpURLConnection.HTTP_OK || size < 0) {
+                        return -1L;
+                    }
+                    total += size;
+                } finally {
+                    conn.disconnect();
+                }
+            } catch (Exception e) {
+                log.info("Unable to determine size", "url", rsrc.getRemote(), "error", e);
+                return -1L;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Estimates the number of bytes of our active resources that differ between our version and
+     * the target version, from our copies of the resources that the target version's digest
+     * lists as changed. The digest is fetched only for this estimate, and is not trusted beyond
+     * it.
+     *
+     * @return the estimate, or -1 if the target version's digest could not be fetched.
+     */
+    protected long getChangedSize ()
+    {
+        File dir = getAppdirPath(ESTIMATE_DIR);
+        String dfile = _binaryDigest ? Digest.BINARY_DIGEST_FILE : Digest.DIGEST_FILE;
+        try {
+            FileUtil.recursiveDelete(dir);
+            dir.mkdirs();
+            downloadFile(new URL(createVAppBase(_targetVersion), dfile), new File(dir, dfile));
+            Set<String> changed = new Digest(dir, _binaryDigest).getChangedPaths(getDigest());
+            long size = 0L;
+            for (Resource rsrc : getAllActiveResources()) {
+                if (changed.contains(rsrc.getPath())) {
+                    size += rsrc.getLocal().length();
+                }
+            }
+            return size;
+        } catch (IOException ioe) {
+            log.info("Unable to estimate size of changed resources", "tvers", _targetVersion,
+                     "error", ioe);
+            return -1L;
+        } finally {
+            FileUtil.recursiveDelete(dir);
+        }
+    }
+
+    /**
+     * Returns the servers (the appbase and its mirrors) from which our files may be downloaded.
+     */
+    public Mirrors getMirrors ()
+    {
+        return _mirrors;
+    }
+
+    /**
+     * Returns the rates at which this client has historically downloaded data and applied patches.
+     * Callers that measure new rates should {@link UpdateRates#save} them when done.
+     */
+    public UpdateRates getUpdateRates ()
+    {
+        if (_rates == null) {
+            _rates = new UpdateRates(_appdir);
+        }
+        return _rates;
+    }
+
     /**
      * Returns a resource for a zip file containing a Java VM that can be downloaded to use in
      * place of the installed VM (in the case where the VM that launched Getdown does not meet the
@@ -400,7 +1353,7 @@ public class Application
         String vmfile = LaunchUtil.LOCAL_JAVA_DIR + ".jar";
         try {
             URL remote = new URL(createVAppBase(_targetVersion), _javaLocation);
-            return new Resource(vmfile, remote, getLocalPath(vmfile), true);
+            return new Resource(vmfile, remote, getAppdirPath(vmfile), true);
         } catch (Exception e) {
             log.warning("Failed to create VM resource", "vmfile", vmfile, "appbase", _appbase,
                 "tvers", _targetVersion, "javaloc", _javaLocation, "error", e);
@@ -515,6 +1468,11 @@ public class Application
         // check if we're overriding the domain in the appbase
         _appbase = replaceDomain(_appbase);
 
+        // note any mirrors from which our files may also be downloaded
+        String[] mirrors = ConfigUtil.getMultiValue(cdata, "mirror");
+        _mirrors.configure(_appbase, (mirrors == null) ? Collections.<String>emptyList() :
+                           Arrays.asList(mirrors));
+
         // extract our version information
         String vstr = (String)cdata.get("version");
         if (vstr != null) {
@@ -605,6 +1563,27 @@ public class Application
         // Some app may need to generate google analytics code
         _trackingGAHash = (String)cdata.get("tracking_ga_hash");
 
+        // determine whether our resources are published in compressed form for transfer
+        _compression = null;
+        String cstr = (String)cdata.get("compressed_transport");
+        if (!StringUtil.isBlank(cstr)) {
+            _compression = Compression.forSuffix(cstr.trim());
+            if (_compression == null) {
+                log.warning("Unsupported compressed transport, transferring plain", "name", cstr);
+            }
+        }
+        _compressionSkip = Arrays.asList(parseList(cdata, "compressed_transport_skip"));
+
+        // code jars may additionally be transferred in a form that compresses them better
+        _codeCompression = null;
+        cstr = (String)cdata.get("code_transport");
+        if (!StringUtil.isBlank(cstr)) {
+            _codeCompression = Compression.forSuffix(cstr.trim());
+            if (_codeCompression == null) {
+                log.warning("Unsupported code transport, transferring plain", "name", cstr);
+            }
+        }
+
         // clear our arrays as we may be reinitializing
         _codes.clear();
         _resources.clear();
@@ -633,6 +1612,34 @@ public class Application
             _auxgroups.put(auxgroup, new AuxGroup(auxgroup, codes, rsrcs));
         }
 
+        // resources declared critical are downloaded right after the code
+        String[] critpaths = ConfigUtil.getMultiValue(cdata, "critical");
+        if (critpaths != null) {
+            Set<String> critical = new HashSet<String>(Arrays.asList(critpaths));
+            List<Resource> noncode = new ArrayList<Resource>(_resources);
+            for (AuxGroup aux : _auxgroups.values()) {
+                noncode.addAll(aux.rsrcs);
+            }
+            for (Resource rsrc : noncode) {
+                if (critical.remove(rsrc.getPath())) {
+                    rsrc.setPriority(Resource.CRITICAL_PRIORITY);
+                }
+            }
+            for (String path : critical) {
+                log.warning("Unknown critical resource", "path", path);
+            }
+        }
+
+        // note the auxiliary groups that needn't be present for us to launch
+        _lazyAuxGroups.clear();
+        for (String auxgroup : parseList(cdata, "lazy_auxgroups")) {
+            if (_auxgroups.containsKey(auxgroup)) {
+                _lazyAuxGroups.add(auxgroup);
+            } else {
+                log.warning("Unknown lazy auxiliary group", "auxgroup", auxgroup);
+            }
+        }
+
         // transfer our JVM arguments
         String[] jvmargs = ConfigUtil.getMultiValue(cdata, "jvmarg");
         if (jvmargs != null) {
@@ -668,9 +1675,27 @@ public class Application
         // determine whether we want to allow offline operation (defaults to false)
         _allowOffline = Boolean.parseBoolean((String)cdata.get("allow_offline"));
 
+        // determine whether our control files are published in a single bundle
+        _metadataBundle = Boolean.parseBoolean((String)cdata.get("metadata_bundle"));
+
+        // determine whether our digest is published in binary form
+        _binaryDigest = Boolean.parseBoolean((String)cdata.get("binary_digest"));
+
+        // determine whether we may launch without verifying an unchanged installation
+        _warmLaunch = Boolean.parseBoolean((String)cdata.get("warm_launch"));
+
+        // determine whether we launch the current version while staging updates
+        _launchFirst = Boolean.parseBoolean((String)cdata.get("launch_first"));
+
+        // determine whether each version is installed into its own directory
+        _versionDirs = Boolean.parseBoolean((String)cdata.get("version_dirs"));
+
+        // determine whether we maintain a class data sharing archive of the application's classes
+        _appCDS = Boolean.parseBoolean((String)cdata.get("appcds"));
+
         // look for a debug.txt file which causes us to run in java.exe on Windows so that we can
         // obtain a thread dump of the running JVM
-        _windebug = getLocalPath("debug.txt").exists();
+        _windebug = getAppdirPath("debug.txt").exists();
 
         // parse and return our application config
         UpdateInterface ui = new UpdateInterface();
@@ -735,7 +1760,7 @@ public class Application
      */
     protected void fillAssignmentListFromPairs (String pairLocation, List<String> collector)
     {
-        File pairFile = getLocalPath(pairLocation);
+        File pairFile = getAppdirPath(pairLocation);
         if (pairFile.exists()) {
             try {
                 List<String[]> args = ConfigUtil.parsePairs(pairFile, false);
@@ -762,12 +1787,22 @@ public class Application
         return new URL(_vappbase, path);
     }
 
+    /**
+     * Returns the path to the specified file in the application directory itself, for those files
+     * that are not specific to a version: our locks, our record of the target version and our
+     * installed JVM, among others.
+     */
+    public File getAppdirPath (String path)
+    {
+        return new File(_appdir, path);
+    }
+
     /**
      * Returns the local path to the specified resource.
      */
     public File getLocalPath (String path)
     {
-        return new File(_appdir, path);
+        return new File(_vdir, path);
     }
 
     /**
@@ -839,9 +1874,41 @@ public class Application
         downloadConfigFile();
     }
 
+    /**
+     * Notes that we're about to modify our resources to update them to the target version. Until
+     * {@link #updateMetadata} completes, the validation markers of our resources are not to be
+     * trusted, so if we're interrupted, they'll all be cleared on our next run.
+     */
+    public void beginUpdate ()
+        throws IOException
+    {
+        getAppdirPath(UPDATE_FILE).createNewFile();
+    }
+
+    /**
+     * Notes the paths of resources that patching modified on the way to the target version.
+     * {@link #updateMetadata} clears their validation markers along with those of the resources
+     * that differ between the versions, as a patch chain may change a resource in one hop and
+     * restore it in a later one.
+     */
+    public void notePatchedPaths (Collection<String> paths)
+    {
+        _patchedPaths.addAll(paths);
+    }
+
+    /**
+     * Notes that a patch failed to apply, leaving our resources in a state that no digest
+     * describes, so that {@link #updateMetadata} clears all of their validation markers.
+     */
+    public void notePatchFailure ()
+    {
+        _patchFailed = true;
+    }
+
     /**
      * Downloads and replaces the <code>getdown.txt</code> and <code>digest.txt</code> files with
-     * those for the target version of our application.
+     * those for the target version of our application, and clears the validation markers of the
+     * resources that differ between the versions or that were patched along the way.
      */
     public void updateMetadata ()
         throws IOException
@@ -858,8 +1925,25 @@ public class Application
             // now re-download our control files; we download the digest first so that if it fails,
             // our config file will still reference the old version and re-running the updater will
             // start the whole process over again
-            downloadDigestFile();
-            downloadConfigFile();
+            if (!downloadMetadataBundle(false)) {
+                downloadDigestFile();
+                downloadConfigFile();
+            }
+
+            // revalidate only those resources that differ between the versions or were patched,
+            // unless patching failed part way, in which case we trust nothing
+            Digest odigest = _digest;
+            _digest = new Digest(_vdir, _binaryDigest);
+            if (_patchFailed) {
+                log.info("Patching failed, clearing all validation markers");
+                clearValidationMarkers();
+            } else {
+                clearChangedMarkers(odigest, _digest);
+                clearMarkers(_patchedPaths);
+            }
+            _patchedPaths.clear();
+            _patchFailed = false;
+            getAppdirPath(UPDATE_FILE).delete();
 
         } catch (IOException ex) {
             // if we are allowing offline execution, we want to allow the application to run in its
@@ -869,7 +1953,7 @@ public class Application
             // will have to rediscover that it needs updating and reattempt to update itself
             if (_allowOffline) {
                 log.warning("Failed to update digest files.  Attempting offline operaton.", ex);
-                if (!getLocalPath(VERSION_FILE).delete()) {
+                if (!getAppdirPath(VERSION_FILE).delete()) {
                     log.warning("Deleting version.txt failed.  This probably isn't going to work.");
                 }
             } else {
@@ -889,7 +1973,7 @@ public class Application
     {
         // create our classpath
         StringBuilder cpbuf = new StringBuilder();
-        for (Resource rsrc : getActiveCodeResources()) {
+        for (Resource rsrc : getLaunchCodeResources()) {
             if (cpbuf.length() > 0) {
                 cpbuf.append(File.pathSeparator);
             }
@@ -921,6 +2005,11 @@ public class Application
         // add the marker indicating the app is running in getdown
         args.add("-D" + Properties.GETDOWN + "=true");
 
+        // share the application's classes between runs via an archive that the first run creates
+        if (_appCDS) {
+            addAppCDSArgs(args, args.get(0));
+        }
+
         // pass along any pass-through arguments
         for (Map.Entry<Object, Object> entry : System.getProperties().entrySet()) {
             String key = (String)entry.getKey();
@@ -959,7 +2048,62 @@ public class Application
         String[] sargs = args.toArray(new String[args.size()]);
         log.info("Running " + StringUtil.join(sargs, "\n  "));
 
-        return Runtime.getRuntime().exec(sargs, envp, _appdir);
+        return Runtime.getRuntime().exec(sargs, envp, _vdir);
+    }
+
+    /**
+     * Adds the arguments that have the JVM map the application's classes from our class data
+     * sharing archive, or create the archive when the application exits if there is none for the
+     * current installation. The archive is named for the launch fingerprint, the classpath and
+     * the JVM, so any change to them calls for a new archive, at which point the old ones are
+     * deleted. This requires a JVM that can create archives dynamically (Java 13 and newer), so
+     * nothing is added if the JVM is older or its version is unknown.
+     */
+    protected void addAppCDSArgs (List<String> args, String vmpath)
+    {
+        int version = LaunchUtil.getJVMMajorVersion(vmpath);
+        if (version < MIN_APPCDS_VERSION) {
+            log.info("Not sharing classes, JVM lacks dynamic archiving", "vm", vmpath,
+                     "version", version);
+            return;
+        }
+
+        // the JVM refuses to start if asked to archive classes from anything but jar files
+        StringBuilder cpbuf = new StringBuilder();
+        for (Resource rsrc : getLaunchCodeResources()) {
+            String path = rsrc.getPath();
+            if (!path.endsWith(".jar") && !path.endsWith(".zip")) {
+                log.warning("Not sharing classes of non-jar classpath entry", "path", path);
+                return;
+            }
+            cpbuf.append(path).append(" ");
+        }
+
+        String key;
+        try {
+            String data = computeLaunchFingerprint() + " " + cpbuf + vmpath + " " +
+                new File(vmpath).lastModified();
+            key = StringUtil.hexlate(Digest.getMessageDigest().digest(data.getBytes("UTF-8")));
+        } catch (IOException ioe) {
+            log.warning("Unable to fingerprint installation, not sharing classes", "error", ioe);
+            return;
+        }
+
+        File archive = getLocalPath(APPCDS_PREFIX + key.substring(0, 16) + APPCDS_SUFFIX);
+        if (archive.exists()) {
+            args.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+            return;
+        }
+
+        File[] files = archive.getParentFile().listFiles();
+        for (File file : (files == null) ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(APPCDS_PREFIX) && name.endsWith(APPCDS_SUFFIX) && !file.delete()) {
+                log.warning("Failed to delete stale class data archive", "file", file);
+            }
+        }
+        log.info("Creating class data archive on exit", "archive", archive);
+        args.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
     }
 
     /**
@@ -994,18 +2138,14 @@ public class Application
      */
     public void invokeDirect (JApplet applet)
     {
-        // create a custom class loader
-        ArrayList<URL> jars = new ArrayList<URL>();
-        for (Resource rsrc : getActiveCodeResources()) {
-            try {
-                jars.add(new URL("file", "", rsrc.getLocal().getAbsolutePath()));
-            } catch (Exception e) {
-                e.printStackTrace(System.err);
-            }
-        }
-        URLClassLoader loader = new URLClassLoader(
-            jars.toArray(new URL[jars.size()]),
-            ClassLoader.getSystemClassLoader()) {
+        // create a custom class loader, which finds classes via an index of our code jars that is
+        // built the first time we launch a version
+        List<File> jars = new ArrayList<File>();
+        for (Resource rsrc : getLaunchCodeResources()) {
+            jars.add(rsrc.getLocal());
+        }
+        URLClassLoader loader = new IndexedClassLoader(
+            jars, getLocalPath(CLASS_INDEX_FILE), ClassLoader.getSystemClassLoader()) {
             @Override protected PermissionCollection getPermissions (CodeSource code) {
                 Permissions perms = new Permissions();
                 perms.add(new AllPermission());
@@ -1063,7 +2203,7 @@ public class Application
     /** Replaces the application directory and version in any argument. */
     protected String processArg (String arg)
     {
-        arg = arg.replace("%APPDIR%", _appdir.getAbsolutePath());
+        arg = arg.replace("%APPDIR%", _vdir.getAbsolutePath());
         arg = arg.replace("%VERSION%", String.valueOf(_version));
         return arg;
     }
@@ -1093,9 +2233,18 @@ public class Application
 //         log.info("JVM Args: " + StringUtil.toString(_jvmargs.iterator()));
 //         log.info("App Args: " + StringUtil.toString(_appargs.iterator()));
 
+        // if we were interrupted while updating, our resources may have been changed in ways
+        // that our validation markers don't reflect, so revalidate them all
+        File ufile = getAppdirPath(UPDATE_FILE);
+        if (ufile.exists()) {
+            log.info("Found unfinished update. Revalidating...");
+            clearValidationMarkers();
+            ufile.delete();
+        }
+
         // this will read in the contents of the digest file and validate itself
         try {
-            _digest = new Digest(_appdir);
+            _digest = new Digest(_vdir, _binaryDigest);
         } catch (IOException ioe) {
             log.info("Failed to load digest: " + ioe.getMessage() + ". Attempting recovery...");
         }
@@ -1108,12 +2257,20 @@ public class Application
             String olddig = (_digest == null) ? "" : _digest.getMetaDigest();
             try {
                 status.updateStatus("m.checking");
-                downloadDigestFile();
-                _digest = new Digest(_appdir);
+                boolean bundled = downloadMetadataBundle(true);
+                if (!bundled) {
+                    downloadDigestFile();
+                }
+                Digest odigest = _digest;
+                _digest = new Digest(_vdir, _binaryDigest);
                 if (!olddig.equals(_digest.getMetaDigest())) {
                     log.info("Unversioned digest changed. Revalidating...");
                     status.updateStatus("m.validating");
-                    clearValidationMarkers();
+                    clearChangedMarkers(odigest, _digest);
+                    // the bundle may also have brought us a new config file
+                    if (bundled) {
+                        init(true);
+                    }
                 }
             } catch (IOException ioe) {
                 log.warning("Failed to refresh non-versioned digest: " +
@@ -1127,7 +2284,7 @@ public class Application
         if (_digest == null) {
             status.updateStatus("m.updating_metadata");
             downloadDigestFile();
-            _digest = new Digest(_appdir);
+            _digest = new Digest(_vdir, _binaryDigest);
         }
 
         // now verify the contents of our main config file
@@ -1136,11 +2293,14 @@ public class Application
             status.updateStatus("m.updating_metadata");
             // attempt to redownload both of our metadata files; again we pass errors up to our
             // caller because there's nothing we can do to automatically recover
-            downloadConfigFile();
-            downloadDigestFile();
-            _digest = new Digest(_appdir);
-            // revalidate everything if we end up downloading new metadata
-            clearValidationMarkers();
+            if (!downloadMetadataBundle(false)) {
+                downloadConfigFile();
+                downloadDigestFile();
+            }
+            Digest odigest = _digest;
+            _digest = new Digest(_vdir, _binaryDigest);
+            // revalidate whatever changed if we end up downloading new metadata
+            clearChangedMarkers(odigest, _digest);
             // if the new copy validates, reinitialize ourselves; otherwise report baffling hoseage
             if (_digest.validateResource(crsrc, null)) {
                 init(true);
@@ -1156,7 +2316,7 @@ public class Application
         // if we are a versioned application, read in the contents of the version.txt file
         // and/or check the latest config URL for a newer version
         if (_version != -1) {
-            File vfile = getLocalPath(VERSION_FILE);
+            File vfile = getAppdirPath(VERSION_FILE);
             long fileVersion = VersionUtil.readVersion(vfile);
             if (fileVersion != -1) {
                 _targetVersion = fileVersion;
@@ -1195,7 +2355,8 @@ public class Application
     /**
      * Verifies the code and media resources associated with this application. A list of resources
      * that do not exist or fail the verification process will be returned. If all resources are
-     * ready to go, null will be returned and the application is considered ready to run.
+     * ready to go, null will be returned and the application is considered ready to run. Lazy
+     * auxiliary groups are not verified; see {@link #verifyAuxGroup}.
      *
      * @param alreadyValid if non-null a 1 element array that will have the number of "already
      * validated" resources filled in.
@@ -1205,24 +2366,62 @@ public class Application
         ProgressObserver obs, int[] alreadyValid, Set<Resource> unpacked)
             throws InterruptedException
     {
-        List<Resource> rsrcs = getAllActiveResources();
+        return verifyResources(getLaunchResources(), obs, alreadyValid, unpacked);
+    }
+
+    /**
+     * Verifies the code and media resources of the specified auxiliary group, without touching
+     * those of the rest of the application.
+     *
+     * @return the resources that do not exist or fail verification, or null if all are valid.
+     *
+     * @see #verifyResources(ProgressObserver, int[], Set)
+     */
+    public List<Resource> verifyAuxGroup (
+        String auxgroup, ProgressObserver obs, Set<Resource> unpacked)
+            throws InterruptedException
+    {
+        AuxGroup aux = getAuxGroup(auxgroup);
+        if (aux == null) {
+            throw new IllegalArgumentException("Unknown auxiliary group: " + auxgroup);
+        }
+        List<Resource> rsrcs = new ArrayList<Resource>(aux.codes);
+        rsrcs.addAll(aux.rsrcs);
+        return verifyResources(rsrcs, obs, null, unpacked);
+    }
+
+    /**
+     * Verifies the supplied resources.
+     *
+     * @see #verifyResources(ProgressObserver, int[], Set)
+     */
+    protected List<Resource> verifyResources (
+        List<Resource> rsrcs, ProgressObserver obs, int[] alreadyValid, Set<Resource> unpacked)
+            throws InterruptedException
+    {
         List<Resource> failures = new ArrayList<Resource>();
 
-        // total up the file size of the resources to validate
+        // total up the file size of the resources to validate, noting each so that we only stat
+        // each file once
         long totalSize = 0L;
-        for (Resource rsrc : rsrcs) {
-            totalSize += rsrc.getLocal().length();
+        long[] sizes = new long[rsrcs.size()];
+        for (int ii = 0; ii < sizes.length; ii++) {
+            sizes[ii] = rsrcs.get(ii).getLocal().length();
+            totalSize += sizes[ii];
         }
 
         MetaProgressObserver mpobs = new MetaProgressObserver(obs, totalSize);
         boolean noUnpack = SysProps.noUnpack();
-        for (Resource rsrc : rsrcs) {
+        List<Resource> unpack = new ArrayList<Resource>();
+        for (int ii = 0; ii < sizes.length; ii++) {
+            Resource rsrc = rsrcs.get(ii);
             if (Thread.interrupted()) {
                 throw new InterruptedException("m.applet_stopped");
             }
-            mpobs.startElement(rsrc.getLocal().length());
+            mpobs.startElement(sizes[ii]);
 
             if (rsrc.isMarkedValid()) {
+                sharePeer(rsrc);
                 if (alreadyValid != null) {
                     alreadyValid[0]++;
                 }
@@ -1232,18 +2431,16 @@ public class Application
 
             try {
                 if (_digest.validateResource(rsrc, mpobs)) {
+                    noteValid(rsrc);
                     // unpack this resource if appropriate
                     if (noUnpack || !rsrc.shouldUnpack()) {
                         // finally note that this resource is kosher
                         rsrc.markAsValid();
                         continue;
                     }
-                    if (rsrc.unpack()) {
-                        unpacked.add(rsrc);
-                        rsrc.markAsValid();
-                        continue;
-                    }
-                    log.info("Failure unpacking resource", "rsrc", rsrc);
+                    // we unpack all of the resources together once they've been validated
+                    unpack.add(rsrc);
+                    continue;
                 }
 
             } catch (Exception e) {
@@ -1253,12 +2450,69 @@ public class Application
             } finally {
                 mpobs.progress(100);
             }
+            noteInvalid(rsrc);
+            failures.add(rsrc);
+        }
+
+        Set<Resource> unpackFailures = Resource.unpack(unpack, null);
+        for (Resource rsrc : unpack) {
+            try {
+                if (!unpackFailures.contains(rsrc)) {
+                    unpacked.add(rsrc);
+                    rsrc.markAsValid();
+                    continue;
+                }
+                log.info("Failure unpacking resource", "rsrc", rsrc);
+            } catch (Exception e) {
+                log.info("Failure validating resource. Requesting redownload...",
+                    "rsrc", rsrc, "error", e);
+            }
+            noteInvalid(rsrc);
             failures.add(rsrc);
         }
 
         return (failures.size() == 0) ? null : failures;
     }
 
+    /**
+     * Adds the supplied resource, which has just been validated, to the shared store and shares it
+     * with our peers.
+     */
+    protected void noteValid (Resource rsrc)
+    {
+        if (_store != null) {
+            String digest = _digest.getDigest(rsrc);
+            if (digest != null) {
+                _store.store(rsrc, digest);
+            }
+        }
+        sharePeer(rsrc);
+    }
+
+    /**
+     * Makes the supplied resource, which is known to be valid, available to our peers.
+     */
+    protected void sharePeer (Resource rsrc)
+    {
+        if (_peers != null) {
+            String digest = _digest.getDigest(rsrc);
+            if (digest != null) {
+                _peers.share(digest, rsrc.getLocal());
+            }
+        }
+    }
+
+    /**
+     * Notes that the supplied resource failed validation, evicting its content from the shared
+     * store if it came from there.
+     */
+    protected void noteInvalid (Resource rsrc)
+    {
+        if (_store != null) {
+            _store.evict(rsrc);
+        }
+    }
+
     /**
      * Unpacks the resources that require it (we know that they're valid).
      *
@@ -1269,27 +2523,18 @@ public class Application
     {
         List<Resource> rsrcs = getActiveResources();
 
-        // total up the file size of the resources to unpack
-        long totalSize = 0L;
         for (Iterator<Resource> it = rsrcs.iterator(); it.hasNext(); ) {
             Resource rsrc = it.next();
-            if (rsrc.shouldUnpack() && !unpacked.contains(rsrc)) {
-                totalSize += rsrc.getLocal().length();
-            } else {
+            if (!rsrc.shouldUnpack() || unpacked.contains(rsrc)) {
                 it.remove();
             }
         }
 
-        MetaProgressObserver mpobs = new MetaProgressObserver(obs, totalSize);
-        for (Resource rsrc : rsrcs) {
-            if (Thread.interrupted()) {
-                throw new InterruptedException("m.applet_stopped");
-            }
-            mpobs.startElement(rsrc.getLocal().length());
-            if (!rsrc.unpack()) {
-                log.info("Failure unpacking resource", "rsrc", rsrc);
-            }
-            mpobs.progress(100);
+        if (Thread.interrupted()) {
+            throw new InterruptedException("m.applet_stopped");
+        }
+        for (Resource rsrc : Resource.unpack(rsrcs, obs)) {
+            log.info("Failure unpacking resource", "rsrc", rsrc);
         }
     }
 
@@ -1301,6 +2546,44 @@ public class Application
         clearValidationMarkers(getAllActiveResources().iterator());
     }
 
+    /**
+     * Clears the validation markers of the resources whose digests differ between the supplied
+     * digests, in all auxiliary groups, active or not. If there is no old digest, all markers are
+     * cleared.
+     */
+    protected void clearChangedMarkers (Digest odigest, Digest ndigest)
+    {
+        if (odigest == null) {
+            clearValidationMarkers();
+            return;
+        }
+        Set<String> changed = ndigest.getChangedPaths(odigest);
+        log.info("Clearing validation markers of changed resources", "count", changed.size());
+        clearMarkers(changed);
+    }
+
+    /**
+     * Clears the validation markers of the resources with the supplied paths, in all auxiliary
+     * groups, active or not.
+     */
+    protected void clearMarkers (Set<String> paths)
+    {
+        if (paths.isEmpty()) {
+            return;
+        }
+        List<Resource> rsrcs = new ArrayList<Resource>(getCodeResources());
+        rsrcs.addAll(getResources());
+        for (AuxGroup aux : getAuxGroups()) {
+            rsrcs.addAll(aux.codes);
+            rsrcs.addAll(aux.rsrcs);
+        }
+        for (Resource rsrc : rsrcs) {
+            if (paths.contains(rsrc.getPath())) {
+                rsrc.clearMarker();
+            }
+        }
+    }
+
     /**
      * Returns the version number for the application.  Should only be called after successful
      * return of verifyMetadata.
@@ -1348,7 +2631,8 @@ public class Application
             return true;
         }
         try {
-            _lockChannel = new RandomAccessFile(getLocalPath("gettingdown.lock"), "rw").getChannel();
+            File lockFile = getAppdirPath("gettingdown.lock");
+            _lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
         } catch (FileNotFoundException e) {
             log.warning("Unable to create lock file", "message", e.getMessage(), e);
             return false;
@@ -1389,13 +2673,22 @@ public class Application
     }
 
     /**
-     * Downloads a copy of Digest.DIGEST_FILE and validates its signature.
+     * Downloads a copy of our digest file and validates its signature.
      * @throws IOException
      */
     protected void downloadDigestFile ()
         throws IOException
     {
-        downloadControlFile(Digest.DIGEST_FILE, true);
+        downloadControlFile(getDigestFile(), true);
+    }
+
+    /**
+     * Returns the name of the digest file used by this application: {@link
+     * Digest#BINARY_DIGEST_FILE} if it publishes one, otherwise {@link Digest#DIGEST_FILE}.
+     */
+    public String getDigestFile ()
+    {
+        return _binaryDigest ? Digest.BINARY_DIGEST_FILE : Digest.DIGEST_FILE;
     }
 
     /**
@@ -1413,69 +2706,254 @@ public class Application
     protected void downloadControlFile (String path, boolean validateSignature)
         throws IOException
     {
-        File target = downloadFile(path);
+        // if we have a copy of this file, only download it if it has changed on the server
+        URL targetURL = getControlURL(path);
+        File original = getLocalPath(path);
+        File vfile = getLocalPath(path + VALIDATORS_SUFFIX);
+        Map<String, String> validators = readValidators(vfile, original, targetURL);
+        File target = getLocalPath(path + "_new");
+        log.info("Attempting to refetch '" + path + "' from '" + targetURL + "'.");
+        if (!downloadFile(targetURL, target, validators)) {
+            // we validated our copy when we downloaded it, so there's no need to do so again
+            log.info("Control file unchanged", "path", path);
+            return;
+        }
 
         if (validateSignature) {
             if (_signers.isEmpty()) {
                 log.info("No signers, not verifying file", "path", path);
 
             } else {
-                File signatureFile = downloadFile(path + SIGNATURE_SUFFIX);
-                byte[] signature = null;
-                FileReader reader = null;
+                verifySignature(target, downloadFile(path + SIGNATURE_SUFFIX));
+            }
+        }
+
+        // now move the temporary file over the original
+        if (!FileUtil.renameTo(target, original)) {
+            throw new IOException("Failed to rename(" + target + ", " + original + ")");
+        }
+        writeValidators(vfile, original, targetURL, validators);
+    }
+
+    /**
+     * Downloads the {@link #METADATA_BUNDLE} published with the current version of our
+     * application (if it publishes one), and installs the control files it contains. This fetches
+     * in one request what would otherwise take several. The bundle itself is not signed, but the
+     * digest within it is verified against the signature within it, and the digest covers the
+     * config file.
+     *
+     * @param conditional if true and we have the bundle from which our control files came, it is
+     * only downloaded if it has changed.
+     *
+     * @return true if the control files are now up to date, false if the application publishes no
+     * bundle or it could not be obtained, in which case the control files must be downloaded
+     * individually.
+     */
+    protected boolean downloadMetadataBundle (boolean conditional)
+    {
+        if (!_metadataBundle) {
+            return false;
+        }
+
+        File bundle = getLocalPath(METADATA_BUNDLE);
+        File vfile = getLocalPath(METADATA_BUNDLE + VALIDATORS_SUFFIX);
+        File target = getLocalPath(METADATA_BUNDLE + "_new");
+        String dname = getDigestFile();
+        File digest = getLocalPath(dname + "_new");
+        File config = getLocalPath(CONFIG_FILE + "_new");
+        File signature = getLocalPath(dname + SIGNATURE_SUFFIX + "_new");
+        try {
+            URL targetURL = getControlURL(METADATA_BUNDLE);
+            Map<String, String> validators = conditional ?
+                readValidators(vfile, bundle, targetURL) : new HashMap<String, String>();
+            log.info("Attempting to fetch metadata bundle from '" + targetURL + "'.");
+            if (!downloadFile(targetURL, target, validators)) {
+                log.info("Metadata bundle unchanged");
+                return true;
+            }
+
+            // extract the control files and check the digest's signature
+            unpackMetadataBundle(target, digest, config, signature);
+            if (_signers.isEmpty()) {
+                log.info("No signers, not verifying file", "path", dname);
+            } else if (!signature.exists()) {
+                throw new IOException("Bundle lacks " + dname + SIGNATURE_SUFFIX);
+            } else {
+                verifySignature(digest, signature);
+            }
+
+            // install the digest first so that if we fail to install the config file, it will
+            // still reference the old version and we'll start over next time
+            File odigest = getLocalPath(dname);
+            if (!FileUtil.renameTo(digest, odigest)) {
+                throw new IOException("Failed to rename(" + digest + ", " + odigest + ")");
+            }
+            File oconfig = getLocalPath(CONFIG_FILE);
+            if (!FileUtil.renameTo(config, oconfig)) {
+                throw new IOException("Failed to rename(" + config + ", " + oconfig + ")");
+            }
+            if (FileUtil.renameTo(target, bundle)) {
+                writeValidators(vfile, bundle, targetURL, validators);
+            }
+            return true;
+
+        } catch (IOException ioe) {
+            log.warning("Failed to obtain metadata bundle, falling back to individual files",
+                        "error", ioe);
+            return false;
+
+        } finally {
+            target.delete();
+            digest.delete();
+            config.delete();
+            signature.delete();
+        }
+    }
+
+    /**
+     * Extracts the control files from a downloaded metadata bundle.
+     */
+    protected void unpackMetadataBundle (File bundle, File digest, File config, File signature)
+        throws IOException
+    {
+        ZipInputStream in = new ZipInputStream(new FileInputStream(bundle));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                File target = null;
+                if (entry.getName().equals(getDigestFile())) {
+                    target = digest;
+                } else if (entry.getName().equals(CONFIG_FILE)) {
+                    target = config;
+                } else if (entry.getName().equals(getDigestFile() + SIGNATURE_SUFFIX)) {
+                    target = signature;
+                } else {
+                    continue;
+                }
+                FileOutputStream out = new FileOutputStream(target);
                 try {
-                    reader = new FileReader(signatureFile);
-                    signature = StreamUtil.toByteArray(new FileInputStream(signatureFile));
+                    StreamUtil.copy(in, out);
                 } finally {
-                    StreamUtil.close(reader);
-                    signatureFile.delete(); // delete the file regardless
+                    StreamUtil.close(out);
                 }
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+        if (!digest.exists() || !config.exists()) {
+            throw new IOException("Bundle lacks " + getDigestFile() + " or " + CONFIG_FILE);
+        }
+    }
 
-                byte[] buffer = new byte[8192];
-                int length, validated = 0;
-                for (Certificate cert : _signers) {
-                    FileInputStream dataInput = null;
-                    try {
-                        dataInput = new FileInputStream(target);
-                        Signature sig = Signature.getInstance("SHA1withRSA");
-                        sig.initVerify(cert);
-                        while ((length = dataInput.read(buffer)) != -1) {
-                            sig.update(buffer, 0, length);
-                        }
+    /**
+     * Verifies that the supplied signature file contains a valid signature of the supplied target
+     * file by one of our signers. The signature file is deleted regardless, and the target file is
+     * deleted if it fails verification.
+     */
+    protected void verifySignature (File target, File signatureFile)
+        throws IOException
+    {
+        byte[] signature = null;
+        FileReader reader = null;
+        try {
+            reader = new FileReader(signatureFile);
+            signature = StreamUtil.toByteArray(new FileInputStream(signatureFile));
+        } finally {
+            StreamUtil.close(reader);
+            signatureFile.delete(); // delete the file regardless
+        }
 
-                        if (!sig.verify(Base64.decodeBase64(signature))) {
-                            log.info("Signature does not match", "cert", cert.getPublicKey());
-                            continue;
-                        } else {
-                            log.info("Signature matches", "cert", cert.getPublicKey());
-                            validated++;
-                        }
+        byte[] buffer = new byte[8192];
+        int length, validated = 0;
+        for (Certificate cert : _signers) {
+            FileInputStream dataInput = null;
+            try {
+                dataInput = new FileInputStream(target);
+                Signature sig = Signature.getInstance("SHA1withRSA");
+                sig.initVerify(cert);
+                while ((length = dataInput.read(buffer)) != -1) {
+                    sig.update(buffer, 0, length);
+                }
+
+                if (!sig.verify(Base64.decodeBase64(signature))) {
+                    log.info("Signature does not match", "cert", cert.getPublicKey());
+                    continue;
+                } else {
+                    log.info("Signature matches", "cert", cert.getPublicKey());
+                    validated++;
+                }
 
-                    } catch (IOException ioe) {
-                        log.warning("Failure validating signature of " + target + ": " + ioe);
+            } catch (IOException ioe) {
+                log.warning("Failure validating signature of " + target + ": " + ioe);
 
-                    } catch (GeneralSecurityException gse) {
-                        // no problem!
+            } catch (GeneralSecurityException gse) {
+                // no problem!
 
-                    } finally {
-                        StreamUtil.close(dataInput);
-                        dataInput = null;
-                    }
-                }
+            } finally {
+                StreamUtil.close(dataInput);
+                dataInput = null;
+            }
+        }
 
-                // if we couldn't find a key that validates our digest, we are the hosed!
-                if (validated == 0) {
-                    // delete the temporary digest file as we know it is invalid
-                    target.delete();
-                    throw new IOException("m.corrupt_digest_signature_error");
-                }
+        // if we couldn't find a key that validates our digest, we are the hosed!
+        if (validated == 0) {
+            // delete the temporary digest file as we know it is invalid
+            target.delete();
+            throw new IOException("m.corrupt_digest_signature_error");
+        }
+    }
+
+    /**
+     * Reads the HTTP validators (ETag and Last-Modified) that the server sent with our copy of a
+     * control file. They are only returned if they were obtained from the same URL and our copy
+     * has not changed since, otherwise an empty map is returned.
+     */
+    protected Map<String, String> readValidators (File vfile, File original, URL targetURL)
+    {
+        Map<String, String> validators = new HashMap<String, String>();
+        if (!vfile.exists() || !original.exists()) {
+            return validators;
+        }
+        try {
+            for (String[] pair : ConfigUtil.parsePairs(vfile, false)) {
+                validators.put(pair[0], pair[1]);
             }
+        } catch (IOException ioe) {
+            log.warning("Failed to read validators", "file", vfile, "error", ioe);
+            return new HashMap<String, String>();
         }
+        if (!targetURL.toString().equals(validators.remove("url")) ||
+            !String.valueOf(original.length()).equals(validators.remove("size")) ||
+            !String.valueOf(original.lastModified()).equals(validators.remove("modified"))) {
+            validators.clear();
+        }
+        return validators;
+    }
 
-        // now move the temporary file over the original
-        File original = getLocalPath(path);
-        if (!FileUtil.renameTo(target, original)) {
-            throw new IOException("Failed to rename(" + target + ", " + original + ")");
+    /**
+     * Records the HTTP validators that the server sent with the supplied control file, along with
+     * the information needed to know later whether they still apply.
+     */
+    protected void writeValidators (File vfile, File original, URL targetURL,
+                                    Map<String, String> validators)
+    {
+        if (validators.isEmpty()) {
+            vfile.delete();
+            return;
+        }
+        PrintStream out = null;
+        try {
+            out = new PrintStream(new FileOutputStream(vfile), false, "UTF-8");
+            out.println("url = " + targetURL);
+            out.println("size = " + original.length());
+            out.println("modified = " + original.lastModified());
+            for (Map.Entry<String, String> entry : validators.entrySet()) {
+                out.println(entry.getKey() + " = " + entry.getValue());
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to write validators", "file", vfile, "error", ioe);
+        } finally {
+            StreamUtil.close(out);
         }
     }
 
@@ -1487,18 +2965,78 @@ public class Application
         throws IOException
     {
         File target = getLocalPath(path + "_new");
+        URL targetURL = getControlURL(path);
+        log.info("Attempting to refetch '" + path + "' from '" + targetURL + "'.");
+        downloadFile(targetURL, target);
+        return target;
+    }
 
-        URL targetURL = null;
+    /**
+     * Returns the URL of the specified control file.
+     */
+    protected URL getControlURL (String path)
+        throws IOException
+    {
         try {
-            targetURL = getRemoteURL(path);
+            return getRemoteURL(path);
         } catch (Exception e) {
             log.warning("Requested to download invalid control file",
                 "appbase", _vappbase, "path", path, "error", e);
             throw (IOException) new IOException("Invalid path '" + path + "'.").initCause(e);
         }
+    }
 
-        log.info("Attempting to refetch '" + path + "' from '" + targetURL + "'.");
+    /**
+     * Downloads the contents of the supplied URL into the specified file. If the URL is under our
+     * appbase, it is fetched from the fastest of our servers, failing over to the others.
+     */
+    protected void downloadFile (URL targetURL, File target)
+        throws IOException
+    {
+        downloadFile(targetURL, target, null);
+    }
+
+    /**
+     * Downloads the contents of the supplied URL into the specified file, if it has changed.
+     *
+     * @param validators the validators that the server sent with our current copy of the file,
+     * which will be replaced by those sent with the new copy; or null to download unconditionally.
+     *
+     * @return true if the file was downloaded, false if the server reported that it is unchanged.
+     */
+    protected boolean downloadFile (URL targetURL, File target, Map<String, String> validators)
+        throws IOException
+    {
+        // try each of our servers in turn, fastest first
+        List<Mirrors.Mirror> mirrors = _mirrors.getOrdered();
+        if (mirrors.isEmpty()) {
+            return fetchFile(targetURL, target, validators);
+        }
+        IOException failure = null;
+        for (Mirrors.Mirror mirror : mirrors) {
+            URL murl = _mirrors.rebase(targetURL, mirror);
+            long start = System.currentTimeMillis();
+            try {
+                boolean fetched = fetchFile(murl, target, validators);
+                mirror.noteSuccess(fetched ? target.length() : 0L,
+                                   System.currentTimeMillis() - start);
+                return fetched;
+            } catch (IOException ioe) {
+                log.warning("Failed to download file", "url", murl, "error", ioe);
+                mirror.noteFailure();
+                failure = ioe;
+            }
+        }
+        throw failure;
+    }
 
+    /**
+     * Downloads the specified URL into the specified file, if it has changed. See {@link
+     * #downloadFile(URL,File,Map)}.
+     */
+    protected boolean fetchFile (URL targetURL, File target, Map<String, String> validators)
+        throws IOException
+    {
         // stream the URL into our temporary file
         InputStream fin = null;
         FileOutputStream fout = null;
@@ -1515,15 +3053,78 @@ public class Application
             if (ctimeout > 0) {
                 uconn.setConnectTimeout(ctimeout * 1000);
             }
+
+            // if we have a copy of the file, ask the server to send it only if it has changed
+            if (validators != null && uconn instanceof HttpURLConnection) {
+                String etag = validators.get("etag");
+                if (etag != null) {
+                    uconn.setRequestProperty("If-None-Match", etag);
+                }
+                String lastmod = validators.get("last_modified");
+                if (lastmod != null) {
+                    uconn.setRequestProperty("If-Modified-Since", lastmod);
+                }
+                if (etag != null || lastmod != null) {
+                    HttpURLConnection hcon = (HttpURLConnection)uconn;
+                    if (hcon.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        hcon.disconnect();
+                        return false;
+                    }
+                }
+            }
+
             fin = uconn.getInputStream();
             fout = new FileOutputStream(target);
             StreamUtil.copy(fin, fout);
+
+            // note the validators for the copy we just obtained
+            if (validators != null) {
+                validators.clear();
+                String etag = uconn.getHeaderField("ETag");
+                if (etag != null) {
+                    validators.put("etag", etag);
+                }
+                String lastmod = uconn.getHeaderField("Last-Modified");
+                if (lastmod != null) {
+                    validators.put("last_modified", lastmod);
+                }
+            }
+            return true;
+
         } finally {
             StreamUtil.close(fin);
             StreamUtil.close(fout);
         }
+    }
 
-        return target;
+    /**
+     * Downloads and parses the {@link PatchIndex} published with our target version.
+     *
+     * @return the index or null if the target version publishes no index or it could not be
+     * downloaded.
+     */
+    protected PatchIndex downloadPatchIndex ()
+    {
+        File target = getLocalPath(PatchIndex.INDEX_FILE + "_new");
+        try {
+            URL remote = new URL(createVAppBase(_targetVersion), PatchIndex.INDEX_FILE);
+            downloadFile(remote, target);
+            return PatchIndex.read(target);
+        } catch (IOException ioe) {
+            log.info("No patch index available", "tvers", _targetVersion, "error", ioe);
+            return null;
+        } finally {
+            target.delete();
+        }
+    }
+
+    /** Helper function for {@link #getPatchResources}. */
+    protected void addPatchResource (List<Resource> list, String auxgroup, long from, long to)
+    {
+        Resource patch = getPatchResource(auxgroup, from, to);
+        if (patch != null) {
+            list.add(patch);
+        }
     }
 
     /** Helper function for creating {@link Resource} instances. */
@@ -1543,7 +3144,22 @@ public class Application
         }
         for (String rsrc : rsrcs) {
             try {
-                list.add(createResource(rsrc, unpack));
+                Resource resource = createResource(rsrc, unpack);
+                boolean code = name.equals("code") || name.endsWith(".code");
+                if (code) {
+                    resource.setPriority(Resource.CODE_PRIORITY);
+                } else if (name.indexOf('.') >= 0) {
+                    resource.setPriority(Resource.AUX_PRIORITY);
+                } else if (unpack) {
+                    resource.setPriority(Resource.URESOURCE_PRIORITY);
+                }
+                if (code && _codeCompression != null && rsrc.endsWith(".jar")) {
+                    resource.setCompression(_codeCompression);
+                } else if (_compression != null &&
+                           Compression.shouldCompress(rsrc, _compressionSkip)) {
+                    resource.setCompression(_compression);
+                }
+                list.add(resource);
             } catch (Exception e) {
                 log.warning("Invalid resource '" + rsrc + "'. " + e);
             }
@@ -1668,9 +3284,17 @@ public class Application
     }
 
     protected File _appdir;
+
+    /** The directory that holds the control files and resources of the active version. This is
+     * the application directory itself unless each version is installed into its own directory. */
+    protected File _vdir;
     protected String _appid;
     protected File _config;
     protected Digest _digest;
+    protected SharedStore _store;
+    protected PeerCache _peers;
+    protected Mirrors _mirrors = new Mirrors();
+    protected UpdateRates _rates;
 
     protected long _version = -1;
     protected long _targetVersion = -1;
@@ -1682,6 +3306,20 @@ public class Application
     protected String _dockIconPath;
     protected boolean _windebug;
     protected boolean _allowOffline;
+    protected boolean _metadataBundle;
+    protected boolean _binaryDigest;
+    protected boolean _warmLaunch;
+    protected boolean _launchFirst;
+    protected boolean _versionDirs;
+    protected boolean _appCDS;
+    protected Compression _compression, _codeCompression;
+    protected List<String> _compressionSkip = Collections.emptyList();
+
+    /** The paths of the resources patched on the way to the target version. */
+    protected Set<String> _patchedPaths = new HashSet<String>();
+
+    /** Whether a patch failed to apply on the way to the target version. */
+    protected boolean _patchFailed;
 
     protected String _trackingURL;
     protected Set<Integer> _trackingPcts;
@@ -1701,6 +3339,7 @@ public class Application
 
     protected Map<String,AuxGroup> _auxgroups = new HashMap<String,AuxGroup>();
     protected Map<String,Boolean> _auxactive = new HashMap<String,Boolean>();
+    protected Set<String> _lazyAuxGroups = new HashSet<String>();
 
     protected List<String> _jvmargs = new ArrayList<String>();
     protected List<String> _appargs = new ArrayList<String>();
@@ -5,18 +5,36 @@
 
 package com.threerings.getdown.data;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import com.samskivert.io.StreamUtil;
 import com.samskivert.text.MessageUtil;
 import com.samskivert.util.StringUtil;
 
@@ -28,12 +46,21 @@ import static com.threerings.getdown.Log.log;
 /**
  * Manages the <code>digest.txt</code> file and the computing and processing of MD5 digests for an
  * application.
+ *
+ * <p> Applications with very many resources may instead publish a <code>digest.dat</code>, which
+ * holds the same information in a compact binary form: a gzipped stream containing a header, the
+ * entries sorted by path (each path sharing a prefix with its predecessor stores only the
+ * remainder) each followed by its raw MD5 hash, and finally the MD5 hash of everything that
+ * preceded it, which serves as the meta-digest.
  */
 public class Digest
 {
     /** The name of our MD5 digest file. */
     public static final String DIGEST_FILE = "digest.txt";
 
+    /** The name of our binary MD5 digest file. */
+    public static final String BINARY_DIGEST_FILE = "digest.dat";
+
     /**
      * Creates a digest instance which will parse and validate the <code>digest.txt</code> in the
      * supplied application directory.
@@ -41,25 +68,22 @@ public class Digest
     public Digest (File appdir)
         throws IOException
     {
-        // parse and validate our digest file contents
-        StringBuilder data = new StringBuilder();
-        File dfile = new File(appdir, DIGEST_FILE);
-        for (String[] pair : ConfigUtil.parsePairs(dfile, false)) {
-            if (pair[0].equals(DIGEST_FILE)) {
-                _metaDigest = pair[1];
-                break;
-            }
-            _digests.put(pair[0], pair[1]);
-            note(data, pair[0], pair[1]);
-        }
+        this(appdir, false);
+    }
 
-        // we've reached the end, validate our contents
-        MessageDigest md = getMessageDigest();
-        byte[] contents = data.toString().getBytes("UTF-8");
-        String md5 = StringUtil.hexlate(md.digest(contents));
-        if (!md5.equals(_metaDigest)) {
-            String err = MessageUtil.tcompose("m.invalid_digest_file", _metaDigest, md5);
-            throw new IOException(err);
+    /**
+     * Creates a digest instance which will parse and validate the digest file in the supplied
+     * application directory.
+     *
+     * @param binary if true, the binary digest file is read, otherwise the text one.
+     */
+    public Digest (File appdir, boolean binary)
+        throws IOException
+    {
+        if (binary) {
+            readBinary(new File(appdir, BINARY_DIGEST_FILE));
+        } else {
+            readText(new File(appdir, DIGEST_FILE));
         }
     }
 
@@ -71,6 +95,20 @@ public class Digest
         return _metaDigest;
     }
 
+    /**
+     * Returns the digest recorded for the specified resource, or null if it has none.
+     */
+    public String getDigest (Resource resource)
+    {
+        int idx = Arrays.binarySearch(_paths, resource.getPath());
+        if (idx < 0) {
+            return null;
+        }
+        byte[] hash = new byte[HASH_SIZE];
+        System.arraycopy(_hashes, idx * HASH_SIZE, hash, 0, HASH_SIZE);
+        return StringUtil.hexlate(hash);
+    }
+
     /**
      * Computes the MD5 hash of the specified resource and compares it with the value parsed from
      * the digest file. Logs a message if the resource fails validation.
@@ -81,8 +119,12 @@ public class Digest
     public boolean validateResource (Resource resource, ProgressObserver obs)
     {
         try {
-            String cmd5 = resource.computeDigest(getMessageDigest(), obs);
-            String emd5 = _digests.get(resource.getPath());
+            // a resource that was unpacked while downloading had its digest computed as well
+            String cmd5 = resource.getReceivedDigest();
+            if (cmd5 == null) {
+                cmd5 = resource.computeDigest(getMessageDigest(), obs);
+            }
+            String emd5 = getDigest(resource);
             if (cmd5.equals(emd5)) {
                 return true;
             }
@@ -94,6 +136,34 @@ public class Digest
         return false;
     }
 
+    /**
+     * Returns the paths of the resources whose digests differ between this digest and the
+     * supplied one, including those that appear in only one of them. The digests are compared as
+     * hash trees that mirror the directory structure of the resources, so directories whose
+     * contents are unchanged are skipped as a whole, and the cost of the comparison scales with
+     * the size of the change rather than the number of resources.
+     */
+    public Set<String> getChangedPaths (Digest other)
+    {
+        Set<String> changed = new HashSet<String>();
+        diff(other, "", changed);
+        return changed;
+    }
+
+    /**
+     * Returns the hash of the tree node for the specified directory, which must end in a slash
+     * (or be the empty string for the root), or null if there are no resources beneath it. The
+     * hash of a directory covers the names and hashes of its files and subdirectories.
+     */
+    public byte[] getTreeDigest (String dir)
+    {
+        if (_nodes == null) {
+            _nodes = new HashMap<String, byte[]>();
+            computeNode("", 0, _paths.length, getMessageDigest());
+        }
+        return _nodes.get(dir);
+    }
+
     /**
      * Creates a digest file at the specified location using the supplied list of resources.
      */
@@ -126,6 +196,48 @@ public class Digest
         pout.close();
     }
 
+    /**
+     * Creates a binary digest file at the specified location using the supplied list of
+     * resources.
+     */
+    public static void createBinaryDigest (List<Resource> resources, File output)
+        throws IOException
+    {
+        MessageDigest md = getMessageDigest();
+        SortedMap<String, byte[]> hashes = new TreeMap<String, byte[]>();
+        for (Resource rsrc : resources) {
+            try {
+                hashes.put(rsrc.getPath(), unhex(rsrc.computeDigest(md, null)));
+            } catch (Throwable t) {
+                throw (IOException) new IOException(
+                    "Error computing digest for: " + rsrc).initCause(t);
+            }
+        }
+
+        // the meta-digest covers everything that we write before it
+        md.reset();
+        DigestOutputStream dout = new DigestOutputStream(
+            new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(output))), md);
+        DataOutputStream out = new DataOutputStream(dout);
+        try {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(hashes.size());
+            String last = "";
+            for (Map.Entry<String, byte[]> entry : hashes.entrySet()) {
+                String path = entry.getKey();
+                int shared = sharedPrefix(last, path);
+                out.writeShort(shared);
+                out.writeUTF(path.substring(shared));
+                out.write(entry.getValue());
+                last = path;
+            }
+            dout.on(false);
+            out.write(md.digest());
+        } finally {
+            out.close();
+        }
+    }
+
     /**
      * Obtains an appropriate message digest instance for use by the Getdown system.
      */
@@ -138,12 +250,264 @@ public class Digest
         }
     }
 
+    /**
+     * Parses and validates a text digest file.
+     */
+    protected void readText (File dfile)
+        throws IOException
+    {
+        StringBuilder data = new StringBuilder();
+        SortedMap<String, String> digests = new TreeMap<String, String>();
+        for (String[] pair : ConfigUtil.parsePairs(dfile, false)) {
+            if (pair[0].equals(DIGEST_FILE)) {
+                _metaDigest = pair[1];
+                break;
+            }
+            digests.put(pair[0], pair[1]);
+            note(data, pair[0], pair[1]);
+        }
+
+        // we've reached the end, validate our contents
+        MessageDigest md = getMessageDigest();
+        byte[] contents = data.toString().getBytes("UTF-8");
+        String md5 = StringUtil.hexlate(md.digest(contents));
+        if (!md5.equals(_metaDigest)) {
+            String err = MessageUtil.tcompose("m.invalid_digest_file", _metaDigest, md5);
+            throw new IOException(err);
+        }
+
+        _paths = new String[digests.size()];
+        _hashes = new byte[digests.size() * HASH_SIZE];
+        int idx = 0;
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            _paths[idx] = entry.getKey();
+            byte[] hash = unhex(entry.getValue());
+            if (hash.length != HASH_SIZE) {
+                throw new IOException("Invalid digest for " + entry.getKey());
+            }
+            System.arraycopy(hash, 0, _hashes, idx * HASH_SIZE, HASH_SIZE);
+            idx++;
+        }
+    }
+
+    /**
+     * Parses and validates a binary digest file, hashing its contents as they're read.
+     */
+    protected void readBinary (File dfile)
+        throws IOException
+    {
+        MessageDigest md = getMessageDigest();
+        DigestInputStream din = new DigestInputStream(
+            new BufferedInputStream(new GZIPInputStream(new FileInputStream(dfile))), md);
+        DataInputStream in = new DataInputStream(din);
+        try {
+            if (in.readInt() != BINARY_MAGIC) {
+                throw new IOException("Invalid binary digest file " + dfile);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid binary digest file " + dfile);
+            }
+            _paths = new String[count];
+            _hashes = new byte[count * HASH_SIZE];
+            String last = "";
+            for (int ii = 0; ii < count; ii++) {
+                int shared = in.readUnsignedShort();
+                if (shared > last.length()) {
+                    throw new IOException("Invalid binary digest file " + dfile);
+                }
+                String path = last.substring(0, shared) + in.readUTF();
+                // lookups rely on the paths being sorted
+                if (ii > 0 && path.compareTo(last) <= 0) {
+                    throw new IOException("Unsorted binary digest file " + dfile);
+                }
+                in.readFully(_hashes, ii * HASH_SIZE, HASH_SIZE);
+                _paths[ii] = last = path;
+            }
+
+            din.on(false);
+            byte[] expect = new byte[HASH_SIZE];
+            in.readFully(expect);
+            String md5 = StringUtil.hexlate(md.digest());
+            _metaDigest = StringUtil.hexlate(expect);
+            if (!md5.equals(_metaDigest) || in.read() != -1) {
+                String err = MessageUtil.tcompose("m.invalid_digest_file", _metaDigest, md5);
+                throw new IOException(err);
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Adds the paths beneath the specified directory whose digests differ between this digest and
+     * the supplied one to the supplied set.
+     */
+    protected void diff (Digest other, String dir, Set<String> changed)
+    {
+        if (Arrays.equals(getTreeDigest(dir), other.getTreeDigest(dir))) {
+            return;
+        }
+        Map<String, byte[]> ours = getChildren(dir), theirs = other.getChildren(dir);
+        Set<String> names = new HashSet<String>(ours.keySet());
+        names.addAll(theirs.keySet());
+        for (String name : names) {
+            if (Arrays.equals(ours.get(name), theirs.get(name))) {
+                continue;
+            }
+            if (name.endsWith("/")) {
+                diff(other, name, changed);
+            } else {
+                changed.add(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the files and subdirectories directly beneath the specified directory, mapped to
+     * their hashes.
+     */
+    protected Map<String, byte[]> getChildren (String dir)
+    {
+        Map<String, byte[]> children = new HashMap<String, byte[]>();
+        int lo = lowerBound(dir), hi = endOfDir(dir, lo, _paths.length);
+        for (int ii = lo; ii < hi; ) {
+            int slash = _paths[ii].indexOf('/', dir.length());
+            if (slash < 0) {
+                byte[] hash = new byte[HASH_SIZE];
+                System.arraycopy(_hashes, ii * HASH_SIZE, hash, 0, HASH_SIZE);
+                children.put(_paths[ii], hash);
+                ii++;
+            } else {
+                String sub = _paths[ii].substring(0, slash + 1);
+                children.put(sub, getTreeDigest(sub));
+                ii = endOfDir(sub, ii, hi);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Computes the hash of the tree node for the specified directory, whose entries occupy the
+     * specified range of our paths, along with those of all of its subdirectories.
+     */
+    protected byte[] computeNode (String dir, int lo, int hi, MessageDigest md)
+    {
+        // hash our children into a buffer, as computing subdirectories will reuse the digest
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int ii = lo; ii < hi; ) {
+            int slash = _paths[ii].indexOf('/', dir.length());
+            if (slash < 0) {
+                writeUTF8(data, _paths[ii].substring(dir.length()));
+                data.write(_hashes, ii * HASH_SIZE, HASH_SIZE);
+                ii++;
+            } else {
+                String sub = _paths[ii].substring(0, slash + 1);
+                int end = endOfDir(sub, ii, hi);
+                writeUTF8(data, sub.substring(dir.length()));
+                byte[] hash = computeNode(sub, ii, end, md);
+                data.write(hash, 0, hash.length);
+                ii = end;
+            }
+        }
+        md.reset();
+        byte[] hash = md.digest(data.toByteArray());
+        _nodes.put(dir, hash);
+        return hash;
+    }
+
+    /**
+     * Returns the index of the first path that is not less than the supplied path.
+     */
+    protected int lowerBound (String path)
+    {
+        int idx = Arrays.binarySearch(_paths, path);
+        return (idx < 0) ? -(idx + 1) : idx;
+    }
+
+    /**
+     * Returns the index of the first path in the specified range that is not beneath the
+     * specified directory, given that the range starts with the directory's paths. Because the
+     * paths are sorted, those beneath a directory are contiguous.
+     */
+    protected int endOfDir (String dir, int lo, int hi)
+    {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (_paths[mid].startsWith(dir)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    protected static void writeUTF8 (ByteArrayOutputStream out, String value)
+    {
+        try {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.write(bytes, 0, bytes.length);
+            out.write(0);
+        } catch (UnsupportedEncodingException uee) {
+            throw new RuntimeException(uee);
+        }
+    }
+
+    /**
+     * Returns the length of the prefix shared by the supplied strings, capped at the largest
+     * length that we can record.
+     */
+    protected static int sharedPrefix (String s1, String s2)
+    {
+        int max = Math.min(Math.min(s1.length(), s2.length()), 0xFFFF), ii = 0;
+        while (ii < max && s1.charAt(ii) == s2.charAt(ii)) {
+            ii++;
+        }
+        return ii;
+    }
+
+    /**
+     * Converts a hex string into bytes.
+     */
+    protected static byte[] unhex (String hex)
+        throws IOException
+    {
+        if (hex.length() % 2 != 0) {
+            throw new IOException("Invalid hex string " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int ii = 0; ii < bytes.length; ii++) {
+            int hi = Character.digit(hex.charAt(2*ii), 16);
+            int lo = Character.digit(hex.charAt(2*ii+1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IOException("Invalid hex string " + hex);
+            }
+            bytes[ii] = (byte)((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
     /** Used by {@link #createDigest} and {@link Digest}. */
     protected static void note (StringBuilder data, String path, String digest)
     {
         data.append(path).append(" = ").append(digest).append("\n");
     }
 
-    protected HashMap<String, String> _digests = new HashMap<String, String>();
+    /** The paths of our resources, sorted. */
+    protected String[] _paths;
+
+    /** The hashes of our resources, in the order of their paths. */
+    protected byte[] _hashes;
+
     protected String _metaDigest = "";
+
+    /** The hashes of our directory tree nodes, computed when first needed. */
+    protected Map<String, byte[]> _nodes;
+
+    /** The size of an MD5 hash. */
+    protected static final int HASH_SIZE = 16;
+
+    /** Identifies a binary digest file and its format version. */
+    protected static final int BINARY_MAGIC = 0x47444401;
 }
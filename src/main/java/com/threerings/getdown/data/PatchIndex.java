@@ -0,0 +1,390 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.threerings.getdown.util.ConfigUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Models the <code>patches.txt</code> file that is published alongside a target version of an
+ * application. It lists the patch files that are available between earlier versions so that a
+ * client which is several versions behind can chain patches together rather than downloading
+ * every changed resource in full. The file has the following form:
+ *
+ * <pre>
+ * patch = 100 101 52311         # 101/patch100.dat is 52311 bytes
+ * patch-music = 100 101 2048    # aux group patch for the same hop
+ * full = 12000000               # bytes needed to download the target version in full
+ * full-music = 3000000          # ditto for an aux group
+ * changed = 100 800000          # bytes of the resources that changed between 100 and the target
+ * changed-music = 100 0         # ditto for an aux group
+ * </pre>
+ */
+public class PatchIndex
+{
+    /** The name of the patch index file. */
+    public static final String INDEX_FILE = "patches.txt";
+
+    /** Describes a single patch file that takes the app (or an aux group) between two versions. */
+    public static class Hop
+    {
+        /** The version to which this patch applies. */
+        public final long from;
+
+        /** The version that results from applying this patch. */
+        public final long to;
+
+        /** The auxiliary group to which this patch applies or null for the main patch. */
+        public final String auxgroup;
+
+        /** The size of the patch file in bytes. */
+        public final long size;
+
+        public Hop (long from, long to, String auxgroup, long size) {
+            this.from = from;
+            this.to = to;
+            this.auxgroup = auxgroup;
+            this.size = size;
+        }
+
+        /** Returns the name of the patch file that effects this hop. */
+        public String getPatchFile () {
+            return patchFile(auxgroup, from);
+        }
+
+        @Override public String toString () {
+            return getPatchFile() + "@" + to + " (" + size + " bytes)";
+        }
+    }
+
+    /**
+     * Returns the name of the patch file that takes the app (or the specified aux group) from the
+     * specified version to the version in whose directory the file lives.
+     */
+    public static String patchFile (String auxgroup, long from)
+    {
+        String infix = (auxgroup == null) ? "" : ("-" + auxgroup);
+        return "patch" + infix + from + ".dat";
+    }
+
+    /**
+     * Parses the supplied patch index file.
+     */
+    public static PatchIndex read (File index)
+        throws IOException
+    {
+        return new PatchIndex(ConfigUtil.parsePairs(index, false));
+    }
+
+    /**
+     * Creates a patch index from the supplied key/value pairs.
+     */
+    public PatchIndex (List<String[]> pairs)
+    {
+        for (String[] pair : pairs) {
+            try {
+                if (pair[0].equals("patch") || pair[0].startsWith("patch-")) {
+                    String[] bits = pair[1].split("\\s+");
+                    String auxgroup = pair[0].equals("patch") ? null : pair[0].substring(6);
+                    addHop(new Hop(Long.parseLong(bits[0]), Long.parseLong(bits[1]), auxgroup,
+                                   Long.parseLong(bits[2])));
+                } else if (pair[0].equals("changed") || pair[0].startsWith("changed-")) {
+                    String[] bits = pair[1].split("\\s+");
+                    String auxgroup = pair[0].equals("changed") ? null : pair[0].substring(8);
+                    setChangedSize(auxgroup, Long.parseLong(bits[0]), Long.parseLong(bits[1]));
+                } else if (pair[0].equals("full")) {
+                    _fullSizes.put(null, Long.parseLong(pair[1]));
+                } else if (pair[0].startsWith("full-")) {
+                    _fullSizes.put(pair[0].substring(5), Long.parseLong(pair[1]));
+                }
+            } catch (Exception e) {
+                log.warning("Ignoring bogus patch index entry", "key", pair[0], "value", pair[1],
+                            "error", e);
+            }
+        }
+    }
+
+    /**
+     * Adds a hop to this index.
+     */
+    public void addHop (Hop hop)
+    {
+        _hops.add(hop);
+    }
+
+    /**
+     * Returns all of the hops in this index.
+     */
+    public List<Hop> getHops ()
+    {
+        return Collections.unmodifiableList(_hops);
+    }
+
+    /**
+     * Returns the number of bytes needed to download the main application or the specified aux
+     * group in full, or -1 if that was not recorded in the index.
+     */
+    public long getFullSize (String auxgroup)
+    {
+        Long size = _fullSizes.get(auxgroup);
+        return (size == null) ? -1L : size;
+    }
+
+    /**
+     * Records the number of bytes needed to download the main application (auxgroup null) or the
+     * specified aux group in full.
+     */
+    public void setFullSize (String auxgroup, long size)
+    {
+        _fullSizes.put(auxgroup, size);
+    }
+
+    /**
+     * Returns the number of bytes of the resources in the main application (auxgroup null) or the
+     * specified aux group that differ between the specified version and the target version, or -1
+     * if that was not recorded in the index.
+     */
+    public long getChangedSize (String auxgroup, long from)
+    {
+        Map<Long, Long> sizes = _changedSizes.get(auxgroup);
+        Long size = (sizes == null) ? null : sizes.get(from);
+        return (size == null) ? -1L : size;
+    }
+
+    /**
+     * Records the number of bytes of the resources in the main application (auxgroup null) or the
+     * specified aux group that differ between the specified version and the target version.
+     */
+    public void setChangedSize (String auxgroup, long from, long size)
+    {
+        Map<Long, Long> sizes = _changedSizes.get(auxgroup);
+        if (sizes == null) {
+            _changedSizes.put(auxgroup, sizes = new TreeMap<Long, Long>());
+        }
+        sizes.put(from, size);
+    }
+
+    /**
+     * Returns the hop for the specified auxgroup between the specified versions, or null.
+     */
+    public Hop getHop (String auxgroup, long from, long to)
+    {
+        for (Hop hop : _hops) {
+            if (hop.from == from && hop.to == to &&
+                (auxgroup == null ? hop.auxgroup == null : auxgroup.equals(hop.auxgroup))) {
+                return hop;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Computes the cheapest (in bytes downloaded) chain of main application patches that takes the
+     * application from the specified version to the target version. The cost of each hop includes
+     * the corresponding patches for the supplied active aux groups; an active group that lacks a
+     * patch for any hop in a chain is charged its full download size once, because it will be
+     * brute-forced, and needs none of its patches after that.
+     *
+     * @return the main patch hops to be applied in order, or null if no chain exists.
+     */
+    public List<Hop> planChain (long version, long target, Collection<String> auxgroups)
+    {
+        // the cost of a hop depends on which aux groups the route to it has already charged in
+        // full, so we search over (version, groups charged in full) pairs, keeping the cheapest
+        // known cost and route to each
+        Map<Step, Step> steps = new HashMap<Step, Step>();
+        Set<Step> settled = new HashSet<Step>();
+        Step start = new Step(version, new TreeSet<String>());
+        start.cost = 0L;
+        steps.put(start, start);
+
+        // a plain Dijkstra; a patch index has tens of entries, so there's no need to be clever
+        Step found = null;
+        while (true) {
+            Step node = null;
+            for (Step step : steps.values()) {
+                if (!settled.contains(step) && (node == null || step.cost < node.cost)) {
+                    node = step;
+                }
+            }
+            if (node == null) {
+                break;
+            }
+            if (node.version == target) {
+                found = node;
+                break;
+            }
+            settled.add(node);
+
+            for (Hop hop : _hops) {
+                if (hop.auxgroup != null || hop.from != node.version || hop.to > target ||
+                    hop.to <= hop.from) {
+                    continue;
+                }
+                Set<String> full = new TreeSet<String>(node.full);
+                Step next = new Step(hop.to, full);
+                next.cost = node.cost + getHopCost(hop, auxgroups, full);
+                Step onext = steps.get(next);
+                if (onext == null || next.cost < onext.cost) {
+                    next.hop = hop;
+                    next.prev = node;
+                    steps.put(next, next);
+                }
+            }
+        }
+
+        if (found == null || version == target) {
+            return null;
+        }
+        List<Hop> chain = new ArrayList<Hop>();
+        for (Step step = found; step.hop != null; step = step.prev) {
+            chain.add(0, step.hop);
+        }
+        return chain;
+    }
+
+    /**
+     * Returns the number of bytes that must be downloaded to apply the supplied chain of hops.
+     */
+    public long getChainCost (List<Hop> chain, Collection<String> auxgroups)
+    {
+        Set<String> full = new HashSet<String>();
+        long cost = 0L;
+        for (Hop hop : chain) {
+            cost += getHopCost(hop, auxgroups, full);
+        }
+        return cost;
+    }
+
+    /**
+     * Returns those of the supplied active aux groups that lack a patch for at least one hop in
+     * the supplied chain. Such groups are brute-forced, so none of their patches are needed.
+     */
+    public Set<String> getUnpatchedAuxGroups (List<Hop> chain, Collection<String> auxgroups)
+    {
+        Set<String> full = new HashSet<String>();
+        for (Hop hop : chain) {
+            getHopCost(hop, auxgroups, full);
+        }
+        return full;
+    }
+
+    /**
+     * Returns the number of bytes that must be downloaded to bring the main application and the
+     * supplied active aux groups from the specified version up to date without patching, or -1 if
+     * that is not known. Only the changed resources are downloaded in that case, so their size is
+     * used when the index records it, otherwise the full size is assumed.
+     */
+    public long getFullCost (long version, Collection<String> auxgroups)
+    {
+        long cost = getBruteForceCost(null, version);
+        if (cost < 0) {
+            return -1L;
+        }
+        for (String auxgroup : auxgroups) {
+            cost += Math.max(getBruteForceCost(auxgroup, version), 0L);
+        }
+        return cost;
+    }
+
+    /**
+     * Returns the number of bytes that must be downloaded to effect the supplied main application
+     * hop, including the patches for the supplied active aux groups. An aux group that lacks a
+     * patch for the hop is charged its full download size and added to <code>full</code>; groups
+     * already in <code>full</code> cost nothing more.
+     */
+    protected long getHopCost (Hop hop, Collection<String> auxgroups, Set<String> full)
+    {
+        long cost = hop.size;
+        for (String auxgroup : auxgroups) {
+            if (full.contains(auxgroup)) {
+                continue;
+            }
+            Hop ahop = getHop(auxgroup, hop.from, hop.to);
+            if (ahop != null) {
+                cost += ahop.size;
+            } else {
+                cost += Math.max(getFullSize(auxgroup), 0L);
+                full.add(auxgroup);
+            }
+        }
+        return cost;
+    }
+
+    /** Helper function for {@link #getFullCost}. */
+    protected long getBruteForceCost (String auxgroup, long version)
+    {
+        long changed = getChangedSize(auxgroup, version);
+        return (changed >= 0) ? changed : getFullSize(auxgroup);
+    }
+
+    /**
+     * Writes this index out in the format parsed by {@link #read}.
+     */
+    public void write (PrintStream out)
+    {
+        for (Hop hop : _hops) {
+            String key = (hop.auxgroup == null) ? "patch" : ("patch-" + hop.auxgroup);
+            out.println(key + " = " + hop.from + " " + hop.to + " " + hop.size);
+        }
+        for (Map.Entry<String, Long> entry : _fullSizes.entrySet()) {
+            String key = (entry.getKey() == null) ? "full" : ("full-" + entry.getKey());
+            out.println(key + " = " + entry.getValue());
+        }
+        for (Map.Entry<String, Map<Long, Long>> entry : _changedSizes.entrySet()) {
+            String key = (entry.getKey() == null) ? "changed" : ("changed-" + entry.getKey());
+            for (Map.Entry<Long, Long> size : entry.getValue().entrySet()) {
+                out.println(key + " = " + size.getKey() + " " + size.getValue());
+            }
+        }
+    }
+
+    /** A version reached while planning a chain, and the aux groups charged in full so far. */
+    protected static class Step
+    {
+        public final long version;
+        public final Set<String> full;
+
+        /** The cheapest known cost of reaching this step, and the hop and step it's reached via. */
+        public long cost;
+        public Hop hop;
+        public Step prev;
+
+        public Step (long version, Set<String> full) {
+            this.version = version;
+            this.full = full;
+        }
+
+        @Override public boolean equals (Object other) {
+            return (other instanceof Step) && ((Step)other).version == version &&
+                ((Step)other).full.equals(full);
+        }
+
+        @Override public int hashCode () {
+            return (int)(version ^ (version >>> 32)) * 31 + full.hashCode();
+        }
+    }
+
+    protected List<Hop> _hops = new ArrayList<Hop>();
+    protected Map<String, Long> _fullSizes = new HashMap<String, Long>();
+    protected Map<String, Map<Long, Long>> _changedSizes = new HashMap<String, Map<Long, Long>>();
+}
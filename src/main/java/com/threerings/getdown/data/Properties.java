@@ -16,4 +16,9 @@ public class Properties
     /** If accepting connections from the launched application, this property
      * will be set to the connection server port. */
     public static final String CONNECT_PORT = "com.threerings.getdown.connectPort";
+
+    /** If the application has lazy auxiliary groups, this property will be set to the port on
+     * which Getdown accepts requests for them.
+     * See {@link com.threerings.getdown.util.AuxGroupClient}. */
+    public static final String AUXGROUP_PORT = "com.threerings.getdown.auxgroupPort";
 }
@@ -7,23 +7,34 @@ package com.threerings.getdown.data;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.MessageDigest;
 
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 import com.samskivert.io.StreamUtil;
-import com.samskivert.util.FileUtil;
 import com.samskivert.util.StringUtil;
 
+import com.threerings.getdown.util.Compression;
 import com.threerings.getdown.util.ProgressObserver;
+import com.threerings.getdown.util.Unpacker;
 
 import static com.threerings.getdown.Log.log;
 
@@ -32,6 +43,21 @@ import static com.threerings.getdown.Log.log;
  */
 public class Resource
 {
+    /** The download priority of code, which is needed to launch and so is fetched first. */
+    public static final int CODE_PRIORITY = 0;
+
+    /** The download priority of resources declared <code>critical</code> in the config. */
+    public static final int CRITICAL_PRIORITY = 1;
+
+    /** The download priority of ordinary resources. */
+    public static final int RESOURCE_PRIORITY = 2;
+
+    /** The download priority of resources that are unpacked once downloaded. */
+    public static final int URESOURCE_PRIORITY = 3;
+
+    /** The download priority of the non-code resources of auxiliary groups. */
+    public static final int AUX_PRIORITY = 4;
+
     /**
      * Creates a resource with the supplied remote URL and local path.
      */
@@ -68,6 +94,67 @@ public class Resource
         return _remote;
     }
 
+    /**
+     * Returns the compression in which this resource is published alongside its plain self for
+     * transfer, or null if it is only published plain.
+     */
+    public Compression getCompression ()
+    {
+        return _compression;
+    }
+
+    /**
+     * Configures the compression in which this resource is published for transfer.
+     */
+    public void setCompression (Compression compression)
+    {
+        _compression = compression;
+    }
+
+    /**
+     * Returns the remote location of the compressed variant of this resource, or null if it has
+     * no compressed variant.
+     */
+    public URL getCompressedRemote ()
+    {
+        if (_compression == null) {
+            return null;
+        }
+        try {
+            return new URL(_remote.toString() + "." + _compression.getSuffix());
+        } catch (MalformedURLException mue) {
+            log.warning("Invalid compressed URL", "rsrc", this, "error", mue);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the local file to which the compressed variant of this resource is written when
+     * publishing it.
+     */
+    public File getCompressedLocal ()
+    {
+        return (_compression == null) ? null :
+            new File(_local.getPath() + "." + _compression.getSuffix());
+    }
+
+    /**
+     * Returns the priority with which this resource is downloaded, one of the
+     * <code>_PRIORITY</code> constants. Lower values are downloaded first.
+     */
+    public int getPriority ()
+    {
+        return _priority;
+    }
+
+    /**
+     * Configures the priority with which this resource is downloaded.
+     */
+    public void setPriority (int priority)
+    {
+        _priority = priority;
+    }
+
     /**
      * Returns true if this resource should be unpacked as a part of the
      * validation process.
@@ -125,23 +212,103 @@ public class Resource
         }
     }
 
+    /**
+     * Writes the supplied data, the contents of this resource, to its local file. A jar that is
+     * to be unpacked is also unpacked as the data arrives, into a staging directory from which
+     * {@link #unpack} moves it into place once the resource has been validated. The digest of
+     * such a jar is computed along the way, so that validating it needn't read it again.
+     */
+    public void receive (InputStream in)
+        throws IOException
+    {
+        _received = null;
+        File staging = getUnpackStaging();
+        if (staging.exists()) {
+            Unpacker.discard(staging);
+        }
+
+        // replace rather than overwrite the file, as it may be linked to another version's
+        _local.delete();
+        FileOutputStream out = new FileOutputStream(_local);
+        try {
+            if (!_unpack || !_local.getPath().endsWith(".jar") || SysProps.noUnpack()) {
+                StreamUtil.copy(in, out);
+                return;
+            }
+
+            TeeInputStream tin = new TeeInputStream(in, out);
+            String digest = null;
+            try {
+                digest = Unpacker.unpack(tin, _local, _local.getParentFile(), staging,
+                                         Digest.getMessageDigest());
+            } catch (IOException ioe) {
+                if (tin.failure != null) {
+                    throw ioe;
+                }
+                // the jar may yet be unpacked once it has been downloaded and validated
+                log.warning("Unable to unpack while downloading", "rsrc", this, "error", ioe);
+                Unpacker.discard(staging);
+                byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+                while (tin.read(buffer) != -1) {
+                    // keep reading, so that the whole of the jar is written out
+                }
+                return;
+            }
+            out.close();
+            _received = new Received(digest);
+
+        } finally {
+            StreamUtil.close(out);
+            if (_received == null && staging.exists()) {
+                Unpacker.discard(staging);
+            }
+        }
+    }
+
+    /**
+     * Returns the digest of this resource computed while it was {@link #receive}d, or null if it
+     * was not computed or the resource has since changed.
+     */
+    public String getReceivedDigest ()
+    {
+        return isReceivedIntact() ? _received.digest : null;
+    }
+
     /**
      * Unpacks this resource file into the directory that contains it. Returns
      * false if an error occurs while unpacking it.
      */
     public boolean unpack ()
     {
-        // sanity check
-        if (!_local.getPath().endsWith(".jar")) {
-            log.warning("Requested to unpack non-jar file '" + _local + "'.");
-            return false;
+        return unpack(Collections.singletonList(this), null).isEmpty();
+    }
+
+    /**
+     * Unpacks the supplied resources, each into the directory that contains it. Those that were
+     * unpacked as they were received need only be moved into place; the rest are unpacked
+     * concurrently.
+     *
+     * @return the resources that could not be unpacked.
+     */
+    public static Set<Resource> unpack (Collection<Resource> rsrcs, ProgressObserver obs)
+    {
+        Set<Resource> failed = new HashSet<Resource>();
+        Map<File, File> jars = new LinkedHashMap<File, File>();
+        Map<File, Resource> owners = new HashMap<File, Resource>();
+        for (Resource rsrc : rsrcs) {
+            // sanity check
+            if (!rsrc._local.getPath().endsWith(".jar")) {
+                log.warning("Requested to unpack non-jar file '" + rsrc._local + "'.");
+                failed.add(rsrc);
+            } else if (!rsrc.commitReceived()) {
+                jars.put(rsrc._local, rsrc._local.getParentFile());
+                owners.put(rsrc._local, rsrc);
+            }
         }
-        try {
-            return FileUtil.unpackJar(new JarFile(_local), _local.getParentFile());
-        } catch (IOException ioe) {
-            log.warning("Failed to create JarFile from '" + _local + "': " + ioe);
-            return false;
+        for (File jar : Unpacker.unpack(jars, obs)) {
+            failed.add(owners.get(jar));
         }
+        return failed;
     }
 
     /**
@@ -151,6 +318,11 @@ public class Resource
     public void erase ()
     {
         clearMarker();
+        _received = null;
+        File staging = getUnpackStaging();
+        if (staging.exists()) {
+            Unpacker.discard(staging);
+        }
         if (_local.exists()) {
             if (!_local.delete()) {
                 log.warning("Failed to erase resource '" + _local + "'.");
@@ -255,6 +427,44 @@ public class Resource
         return StringUtil.hexlate(md.digest());
     }
 
+    /**
+     * Returns the directory into which this resource is unpacked while it is received.
+     */
+    protected File getUnpackStaging ()
+    {
+        return new File(_local.getPath() + "_unpacking");
+    }
+
+    /**
+     * Moves the files unpacked while this resource was received into place, if it has not changed
+     * since.
+     *
+     * @return true if the files were moved into place, false if the resource must be unpacked.
+     */
+    protected boolean commitReceived ()
+    {
+        File staging = getUnpackStaging();
+        if (isReceivedIntact()) {
+            _received = null;
+            if (Unpacker.commit(staging, _local, _local.getParentFile())) {
+                return true;
+            }
+            log.warning("Failed to move unpacked files into place, unpacking anew", "rsrc", this);
+        } else if (staging.exists()) {
+            Unpacker.discard(staging);
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if this resource was unpacked while it was received and has not changed since.
+     */
+    protected boolean isReceivedIntact ()
+    {
+        return _received != null && _received.length == _local.length() &&
+            _received.modified == _local.lastModified();
+    }
+
     /** Helper function to simplify the process of reporting progress. */
     protected static void updateProgress (
         ProgressObserver obs, long pos, long total)
@@ -268,6 +478,58 @@ public class Resource
     protected URL _remote;
     protected File _local, _marker;
     protected boolean _unpack;
+    protected Compression _compression;
+    protected int _priority = RESOURCE_PRIORITY;
+    protected Received _received;
+
+    /** Notes the state of a resource that was unpacked while it was received. */
+    protected class Received
+    {
+        public final String digest;
+        public final long length = _local.length();
+        public final long modified = _local.lastModified();
+
+        public Received (String digest) {
+            this.digest = digest;
+        }
+    }
+
+    /** Copies the data read through it to an output stream, noting any failure to read. */
+    protected static class TeeInputStream extends FilterInputStream
+    {
+        public IOException failure;
+
+        public TeeInputStream (InputStream in, OutputStream out) {
+            super(in);
+            _out = out;
+        }
+
+        @Override public int read () throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override public int read (byte[] b, int off, int len) throws IOException {
+            int read;
+            try {
+                read = super.read(b, off, len);
+            } catch (IOException ioe) {
+                throw (failure = ioe);
+            }
+            if (read > 0) {
+                _out.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override public long skip (long n) throws IOException {
+            byte[] b = new byte[(int)Math.min(n, 4096)];
+            int read = read(b, 0, b.length);
+            return (read < 0) ? 0 : read;
+        }
+
+        protected OutputStream _out;
+    }
 
     /** Used to sort the entries in a jar file. */
     protected static final Comparator<JarEntry> ENTRY_COMP =
@@ -0,0 +1,130 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.threerings.getdown.util.FileUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * A content-addressed store of resource files, shared by every application (and every version of
+ * an application) that is configured to use it. Files are keyed by their digest, so content that
+ * one application has already downloaded and validated can be linked into place by another
+ * rather than downloaded again. Where the file system supports it, the store and the applications
+ * share a single copy of each file via hard links.
+ *
+ * <p> Because linked files are shared, a file in an application directory must never be
+ * modified in place; it must be deleted and rewritten. Content fetched from the store is always
+ * validated like any download, and entries that fail validation are evicted.
+ */
+public class SharedStore
+{
+    /**
+     * Creates a store rooted at the specified directory, which is created if needed.
+     */
+    public SharedStore (File root)
+    {
+        _root = root;
+        if (!_root.isDirectory() && !_root.mkdirs()) {
+            log.warning("Unable to create shared store directory", "root", _root);
+        }
+    }
+
+    /**
+     * Links the stored content with the supplied digest into place as the supplied resource's
+     * local file.
+     *
+     * @return true if the content was in the store and is now in place, false if the resource
+     * must be downloaded.
+     */
+    public boolean fetch (Resource rsrc, String digest)
+    {
+        File stored = getFile(digest);
+        if (!stored.isFile()) {
+            return false;
+        }
+        try {
+            FileUtil.linkOrCopy(stored, rsrc.getLocal());
+        } catch (IOException ioe) {
+            log.warning("Failed to fetch resource from shared store", "rsrc", rsrc,
+                        "stored", stored, "error", ioe);
+            return false;
+        }
+        synchronized (_fetched) {
+            _fetched.put(rsrc.getLocal(), digest);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the supplied resource's local file, which must have been validated against the supplied
+     * digest, to the store. Failures are logged, as the store is only an optimization.
+     */
+    public void store (Resource rsrc, String digest)
+    {
+        synchronized (_fetched) {
+            _fetched.remove(rsrc.getLocal());
+        }
+        File stored = getFile(digest);
+        if (stored.exists()) {
+            return;
+        }
+        // add the file under a name unique to us and then move it into place, so that another
+        // process never sees an incomplete entry
+        File temp = new File(stored.getParentFile(), stored.getName() + "_" +
+                             Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            FileUtil.linkOrCopy(rsrc.getLocal(), temp);
+            if (!temp.renameTo(stored) && !stored.exists()) {
+                throw new IOException("Unable to rename " + temp);
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to add resource to shared store", "rsrc", rsrc, "error", ioe);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Notes that the supplied resource failed validation. If its content came from the store, the
+     * stored entry is corrupt, so we remove it.
+     */
+    public void evict (Resource rsrc)
+    {
+        String digest;
+        synchronized (_fetched) {
+            digest = _fetched.remove(rsrc.getLocal());
+        }
+        if (digest != null) {
+            File stored = getFile(digest);
+            log.warning("Evicting corrupt file from shared store", "rsrc", rsrc, "stored", stored);
+            if (!stored.delete()) {
+                log.warning("Failed to evict file from shared store", "stored", stored);
+            }
+        }
+    }
+
+    /**
+     * Returns the file in which content with the supplied digest is stored. Files are spread
+     * across subdirectories named for the first two characters of their digest, to keep any one
+     * directory from growing too large.
+     */
+    protected File getFile (String digest)
+    {
+        return new File(new File(_root, digest.substring(0, 2)), digest);
+    }
+
+    /** The directory that contains the store. */
+    protected File _root;
+
+    /** The local files we've fetched from the store, mapped to the digest of their content. */
+    protected Map<File, String> _fetched = new HashMap<File, String>();
+}
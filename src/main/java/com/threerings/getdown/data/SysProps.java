@@ -73,4 +73,47 @@ public class SysProps
     public static int connectTimeout () {
         return Integer.getInteger("connect_timeout", 0);
     }
+
+    /** Overrides the rate (in patch bytes per second) at which Getdown assumes it can apply
+     * patches when deciding whether to patch or to download changed resources in full.
+     * Usage: {@code -Dpatch_rate=N}. */
+    public static long patchRate () {
+        return Long.getLong("patch_rate", 0L);
+    }
+
+    /** Caps the rate (in bytes per second) at which Getdown downloads when running in the
+     * background, i.e. silently or after a start delay. Background downloads also slow down when
+     * they detect that they're congesting the user's connection. Zero (the default) means no cap
+     * other than that. Usage: {@code -Dbackground_rate=N}. */
+    public static long backgroundRate () {
+        return Long.getLong("background_rate", 0L);
+    }
+
+    /** If true, Getdown switches an application that installs each version into its own
+     * directory back to the version that was active before the current one, if it remains.
+     * Usage: {@code -Drollback}. */
+    public static boolean rollback () {
+        return Boolean.getBoolean("rollback");
+    }
+
+    /** Specifies a directory in which to keep a store of resource files, keyed by their content,
+     * which is shared by every application that specifies the same directory. Resources already
+     * in the store are linked into place rather than downloaded. Usage:
+     * {@code -Dshared_store=DIR}. */
+    public static String sharedStore () {
+        return System.getProperty("shared_store");
+    }
+
+    /** If set, Getdown shares the resources it has validated with other Getdown clients on the
+     * local network, serving them on the specified port (0 for any free port), and fetches
+     * resources from those clients in preference to the appbase. Usage: {@code -Dpeer_port=N}. */
+    public static int peerPort () {
+        return Integer.getInteger("peer_port", -1);
+    }
+
+    /** Lists peers with which to share resources, in addition to those discovered on the local
+     * network. Only used if {@link #peerPort} is set. Usage: {@code -Dpeers=host:port,...}. */
+    public static String peers () {
+        return System.getProperty("peers");
+    }
 }
@@ -0,0 +1,149 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import com.threerings.getdown.util.ConfigUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Tracks the rates at which this client has downloaded data and applied patches during past
+ * updates, so that Getdown can estimate whether patching or downloading the changed resources
+ * will be faster. The rates are stored in <code>rates.txt</code> in the application directory.
+ */
+public class UpdateRates
+{
+    /** The name of the file in which the rates are stored. */
+    public static final String RATES_FILE = "rates.txt";
+
+    /** The download rate (in bytes per second) assumed until one has been measured. */
+    public static final long DEFAULT_DOWNLOAD_RATE = 256 * 1024L;
+
+    /** The patch application rate (in patch bytes per second) assumed until one has been
+     * measured. Applying a jardiff involves rebuilding the patched jars, so it is rather slower
+     * than the raw disk. */
+    public static final long DEFAULT_PATCH_RATE = 2 * 1024 * 1024L;
+
+    /**
+     * Loads the rates stored in the supplied application directory. Missing or corrupt rates are
+     * replaced by the defaults.
+     */
+    public UpdateRates (File appdir)
+    {
+        _file = new File(appdir, RATES_FILE);
+        if (!_file.exists()) {
+            return;
+        }
+        try {
+            for (String[] pair : ConfigUtil.parsePairs(_file, false)) {
+                if (pair[0].equals("download")) {
+                    _downloadRate = Long.parseLong(pair[1]);
+                } else if (pair[0].equals("patch")) {
+                    _patchRate = Long.parseLong(pair[1]);
+                }
+            }
+        } catch (Exception e) {
+            log.warning("Failed to read update rates", "file", _file, "error", e);
+        }
+    }
+
+    /**
+     * Returns the rate (in bytes per second) at which we expect to download data.
+     */
+    public long getDownloadRate ()
+    {
+        return (_downloadRate > 0) ? _downloadRate : DEFAULT_DOWNLOAD_RATE;
+    }
+
+    /**
+     * Returns the rate (in patch bytes per second) at which we expect to apply patches. This may
+     * be overridden via {@link SysProps#patchRate}.
+     */
+    public long getPatchRate ()
+    {
+        long rate = SysProps.patchRate();
+        if (rate > 0) {
+            return rate;
+        }
+        return (_patchRate > 0) ? _patchRate : DEFAULT_PATCH_RATE;
+    }
+
+    /**
+     * Returns the estimated number of milliseconds needed to download the specified number of
+     * bytes and then apply the specified number of patch bytes.
+     */
+    public long estimateTime (long downloadBytes, long patchBytes)
+    {
+        return downloadBytes * 1000L / getDownloadRate() + patchBytes * 1000L / getPatchRate();
+    }
+
+    /**
+     * Notes that the specified number of bytes were downloaded in the specified number of
+     * milliseconds. Samples that are too small to be meaningful are ignored.
+     */
+    public void noteDownload (long bytes, long millis)
+    {
+        _downloadRate = blend(_downloadRate, bytes, millis);
+    }
+
+    /**
+     * Notes that the specified number of patch bytes were applied in the specified number of
+     * milliseconds. Samples that are too small to be meaningful are ignored.
+     */
+    public void notePatch (long bytes, long millis)
+    {
+        _patchRate = blend(_patchRate, bytes, millis);
+    }
+
+    /**
+     * Writes our rates to <code>rates.txt</code>. Failure is logged, but is otherwise harmless.
+     */
+    public void save ()
+    {
+        if (_downloadRate <= 0 && _patchRate <= 0) {
+            return;
+        }
+        try {
+            PrintStream out = new PrintStream(new FileOutputStream(_file));
+            try {
+                if (_downloadRate > 0) {
+                    out.println("download = " + _downloadRate);
+                }
+                if (_patchRate > 0) {
+                    out.println("patch = " + _patchRate);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to write update rates", "file", _file, "error", ioe);
+        }
+    }
+
+    /**
+     * Folds a new sample into an existing rate, weighting the sample and old rate equally so that
+     * a single unusual update does not dominate.
+     */
+    protected static long blend (long rate, long bytes, long millis)
+    {
+        if (bytes < MIN_SAMPLE_BYTES || millis <= 0) {
+            return rate;
+        }
+        long sample = bytes * 1000L / millis;
+        return (rate > 0) ? (rate + sample) / 2 : sample;
+    }
+
+    protected File _file;
+    protected long _downloadRate, _patchRate;
+
+    /** Samples smaller than this are dominated by latency and are not used. */
+    protected static final long MIN_SAMPLE_BYTES = 64 * 1024L;
+}
@@ -0,0 +1,365 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.launcher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.threerings.getdown.data.Application;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.data.SysProps;
+import com.threerings.getdown.net.AdaptiveRateLimiter;
+import com.threerings.getdown.net.Downloader;
+import com.threerings.getdown.net.HTTPDownloader;
+import com.threerings.getdown.util.AuxGroupClient;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Downloads an application's lazy auxiliary groups while it runs, and serves the requests that
+ * the application makes for them via {@link AuxGroupClient}. Active lazy groups are downloaded in
+ * the background at the background rate. A group that the application requests is downloaded
+ * first and at full speed, preempting any background download.
+ *
+ * <p> The fetcher should be given its own instance of the application, as it uses it from its
+ * own thread.
+ */
+public class AuxGroupFetcher
+{
+    /**
+     * Creates a fetcher for the lazy auxiliary groups of the supplied application and starts
+     * accepting requests for them. Nothing is downloaded until {@link #start} is called.
+     */
+    public AuxGroupFetcher (Application app)
+        throws IOException
+    {
+        _app = app;
+        for (Application.AuxGroup aux : app.getAuxGroups()) {
+            if (!app.isAuxGroupLazy(aux.name)) {
+                continue;
+            }
+            if (app.isAuxGroupActive(aux.name)) {
+                _queue.add(aux.name);
+                _states.put(aux.name, AuxGroupClient.PENDING);
+            } else {
+                _states.put(aux.name, AuxGroupClient.INACTIVE);
+            }
+        }
+
+        _server = new ServerSocket(0, 0, InetAddress.getByName(null));
+        Thread acceptor = new Thread("AuxGroupFetcher Server") {
+            @Override public void run () {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port on which we accept requests from the application.
+     */
+    public int getPort ()
+    {
+        return _server.getLocalPort();
+    }
+
+    /**
+     * Starts downloading, continuing until the application process watched by the supplied
+     * monitor exits.
+     */
+    public void start (ProcessMonitor monitor)
+    {
+        _worker = new Thread("AuxGroupFetcher") {
+            @Override public void run () {
+                work();
+            }
+        };
+        _worker.start();
+
+        monitor.onExit(new Runnable() {
+            public void run () {
+                shutdown();
+            }
+        });
+    }
+
+    /**
+     * Waits for the application to exit and for us to stop downloading.
+     */
+    public void join ()
+        throws InterruptedException
+    {
+        if (_worker != null) {
+            _worker.join();
+        }
+    }
+
+    /**
+     * Stops accepting requests and downloading.
+     */
+    public synchronized void shutdown ()
+    {
+        _shutdown = true;
+        try {
+            _server.close();
+        } catch (IOException ioe) {
+            // nothing doing
+        }
+        notifyAll();
+    }
+
+    /**
+     * Fetches queued groups until we're shut down.
+     */
+    protected void work ()
+    {
+        while (true) {
+            String auxgroup;
+            boolean urgent;
+            synchronized (this) {
+                while (!_shutdown && _queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        _shutdown = true;
+                    }
+                }
+                if (_shutdown) {
+                    return;
+                }
+                auxgroup = _queue.removeFirst();
+                urgent = _requested.contains(auxgroup);
+            }
+
+            String state = fetch(auxgroup, urgent);
+            synchronized (this) {
+                if (state == null) {
+                    // we were preempted, so pick up where we left off once the urgent work is done
+                    if (!_queue.contains(auxgroup)) {
+                        _queue.addLast(auxgroup);
+                    }
+                } else {
+                    log.info("Fetched lazy auxiliary group", "auxgroup", auxgroup, "state", state);
+                    _states.put(auxgroup, state);
+                    _requested.remove(auxgroup);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies the specified group, downloading whatever is missing or invalid.
+     *
+     * @return the group's new state, or null if we were preempted by an urgent request.
+     */
+    protected String fetch (String auxgroup, boolean urgent)
+    {
+        Set<Resource> unpacked = new HashSet<Resource>();
+        try {
+            if (!_app.isAuxGroupActive(auxgroup)) {
+                _app.activateAuxGroup(auxgroup);
+            }
+            for (int ii = 0; ii < MAX_PASSES; ii++) {
+                List<Resource> failures = _app.verifyAuxGroup(auxgroup, null, unpacked);
+                if (failures == null) {
+                    return AuxGroupClient.READY;
+                }
+                failures = _app.fetchFromPeers(_app.fetchFromStore(failures), null);
+                // download one resource at a time, so that an urgent request needn't wait long
+                for (Resource rsrc : failures) {
+                    if (!download(rsrc, urgent)) {
+                        return isShutdown() ? failed("Getdown is exiting") : null;
+                    }
+                }
+            }
+            return failed("Resources failed validation");
+
+        } catch (Exception e) {
+            log.warning("Failed to fetch lazy auxiliary group", "auxgroup", auxgroup, e);
+            return failed(String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Downloads the supplied resource.
+     *
+     * @return false if the download was aborted because we're shutting down or because an
+     * urgent request preempted it.
+     */
+    protected boolean download (Resource rsrc, final boolean urgent)
+        throws IOException
+    {
+        List<Resource> rsrcs = new ArrayList<Resource>();
+        rsrcs.add(rsrc);
+        Downloader dl = new HTTPDownloader(rsrcs, new Downloader.Observer() {
+            public void resolvingDownloads () {
+            }
+            public boolean downloadProgress (int percent, long remaining) {
+                return !isShutdown() && (urgent || !hasUrgent());
+            }
+            public void downloadFailed (Resource rsrc, Exception e) {
+            }
+        });
+        if (_app.getMirrors().haveMirrors()) {
+            dl.setMirrors(_app.getMirrors());
+        }
+        if (!urgent) {
+            dl.setRateLimiter(_limiter);
+        }
+        if (!dl.download()) {
+            return false;
+        }
+        IOException failure = dl.getFailures().get(rsrc);
+        if (failure != null) {
+            throw failure;
+        }
+        return true;
+    }
+
+    /**
+     * Accepts requests from the application until we're shut down.
+     */
+    protected void accept ()
+    {
+        while (!_server.isClosed()) {
+            try {
+                final Socket sock = _server.accept();
+                Thread handler = new Thread("AuxGroupFetcher Request") {
+                    @Override public void run () {
+                        handle(sock);
+                    }
+                };
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ioe) {
+                if (!_server.isClosed()) {
+                    log.warning("Failed to accept auxiliary group request", "error", ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a single request: <code>STATUS group</code> or <code>FETCH group</code>.
+     */
+    protected void handle (Socket sock)
+    {
+        try {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(sock.getInputStream(), "UTF-8"));
+            String request = in.readLine();
+            int sidx = (request == null) ? -1 : request.indexOf(' ');
+            String response;
+            if (sidx < 0) {
+                response = failed("Malformed request");
+            } else if (request.startsWith("FETCH ")) {
+                response = request(request.substring(sidx+1));
+            } else if (request.startsWith("STATUS ")) {
+                response = getState(request.substring(sidx+1));
+            } else {
+                response = failed("Unknown request");
+            }
+            OutputStream out = sock.getOutputStream();
+            out.write((response + "\n").getBytes("UTF-8"));
+            out.flush();
+
+        } catch (Exception e) {
+            log.warning("Failed to handle auxiliary group request", "error", e);
+
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException ioe) {
+                // nothing doing
+            }
+        }
+    }
+
+    /**
+     * Returns the state of the specified group.
+     */
+    protected synchronized String getState (String auxgroup)
+    {
+        String state = _states.get(auxgroup);
+        return (state == null) ? AuxGroupClient.UNKNOWN : state;
+    }
+
+    /**
+     * Moves the specified group to the front of our queue and waits until it has been fetched.
+     *
+     * @return the group's resulting state.
+     */
+    protected synchronized String request (String auxgroup)
+        throws InterruptedException
+    {
+        String state = _states.get(auxgroup);
+        if (state == null || state.equals(AuxGroupClient.READY)) {
+            return getState(auxgroup);
+        }
+        if (!_requested.contains(auxgroup)) {
+            log.info("Application requested lazy auxiliary group", "auxgroup", auxgroup);
+            _requested.add(auxgroup);
+            _queue.remove(auxgroup);
+            _queue.addFirst(auxgroup);
+            _states.put(auxgroup, AuxGroupClient.PENDING);
+            notifyAll();
+        }
+        while (!_shutdown && _states.get(auxgroup).equals(AuxGroupClient.PENDING)) {
+            wait();
+        }
+        return _shutdown ? failed("Getdown is exiting") : _states.get(auxgroup);
+    }
+
+    protected synchronized boolean hasUrgent ()
+    {
+        return !_requested.isEmpty();
+    }
+
+    protected synchronized boolean isShutdown ()
+    {
+        return _shutdown;
+    }
+
+    protected static String failed (String reason)
+    {
+        return AuxGroupClient.FAILED + " " + reason;
+    }
+
+    protected Application _app;
+    protected ServerSocket _server;
+    protected Thread _worker;
+    protected boolean _shutdown;
+
+    /** The groups to be fetched, in order. */
+    protected LinkedList<String> _queue = new LinkedList<String>();
+
+    /** The groups that the application has requested and is waiting for. */
+    protected Set<String> _requested = new HashSet<String>();
+
+    /** The state of each lazy group, as reported to the application. */
+    protected Map<String, String> _states = new HashMap<String, String>();
+
+    /** Keeps our background downloads from competing with the application for bandwidth. */
+    protected AdaptiveRateLimiter _limiter = new AdaptiveRateLimiter(SysProps.backgroundRate());
+
+    /** The number of times we'll try to download and validate a group before giving up. */
+    protected static final int MAX_PASSES = 3;
+}
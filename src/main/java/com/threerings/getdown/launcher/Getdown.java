@@ -16,13 +16,10 @@ import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -57,10 +54,14 @@ import com.samskivert.util.RunAnywhere;
 import com.samskivert.util.StringUtil;
 import com.threerings.getdown.data.Application;
 import com.threerings.getdown.data.Application.UpdateInterface.Step;
+import com.threerings.getdown.data.Properties;
 import com.threerings.getdown.data.Resource;
 import com.threerings.getdown.data.SysProps;
+import com.threerings.getdown.data.UpdateRates;
+import com.threerings.getdown.net.AdaptiveRateLimiter;
 import com.threerings.getdown.net.Downloader;
 import com.threerings.getdown.net.HTTPDownloader;
+import com.threerings.getdown.net.PeerCache;
 import com.threerings.getdown.tools.Patcher;
 import com.threerings.getdown.util.ConfigUtil;
 import com.threerings.getdown.util.ConnectionUtil;
@@ -145,7 +146,7 @@ public abstract class Getdown extends Thread
         }
 
         // determine whether or not we can write to our install directory
-        File instdir = _app.getLocalPath("");
+        File instdir = _app.getAppdirPath("");
         if (!instdir.canWrite()) {
             String path = instdir.getPath();
             if (path.equals(".")) {
@@ -198,7 +199,7 @@ public abstract class Getdown extends Thread
 
         // if we're provided with valid values, create a proxy.txt file
         if (!StringUtil.isBlank(host)) {
-            File pfile = _app.getLocalPath("proxy.txt");
+            File pfile = _app.getAppdirPath("proxy.txt");
             try {
                 PrintStream pout = new PrintStream(new FileOutputStream(pfile));
                 pout.println("host = " + host);
@@ -271,7 +272,7 @@ public abstract class Getdown extends Thread
         }
 
         // otherwise look for and read our proxy.txt file
-        File pfile = _app.getLocalPath("proxy.txt");
+        File pfile = _app.getAppdirPath("proxy.txt");
         if (pfile.exists()) {
             try {
                 Map<String, Object> pconf = ConfigUtil.parseConfig(pfile, false);
@@ -375,8 +376,10 @@ public abstract class Getdown extends Thread
             	acquireLock();           
             }
 
-            // Update the config modtime so a sleeping getdown will notice the change.
-            File config = _app.getLocalPath(Application.CONFIG_FILE);
+            // Update the config modtime so a sleeping getdown will notice the change. We use the
+            // config file in the application directory, as the one in a version's directory
+            // depends on which version the getdown in question started with.
+            File config = _app.getAppdirPath(Application.CONFIG_FILE);
             if (!config.setLastModified(System.currentTimeMillis())) {
                 log.warning("Unable to set modtime on config file, will be unable to check for " +
                             "another instance of getdown running while this one waits.");
@@ -394,6 +397,47 @@ public abstract class Getdown extends Thread
                 }
             }
 
+            // switching versions moves files about, so it needs the update lock, which we gave up
+            // while waiting; if another getdown has taken it since, leave the switch to that one
+            if (_delay > 0 && !_app.lockForUpdates()) {
+                log.warning("Another getdown took the lock while this one waited.");
+                throw new MultipleGetdownRunning();
+            }
+
+            // if we staged an update while the application last ran, now is the time to switch
+            if (_app.activateStagedVersion()) {
+                _ifc = _app.init(true);
+            }
+
+            // if we've been asked to go back to the version we had before, do so
+            if (SysProps.rollback() && _app.rollback()) {
+                _ifc = _app.init(true);
+            }
+
+            if (_delay > 0) {
+                _app.releaseLock();
+            }
+
+            // if we're to share resources with other clients on our network, start doing so
+            if (SysProps.peerPort() >= 0) {
+                try {
+                    _app.setPeerCache(new PeerCache(SysProps.peerPort(),
+                                                    PeerCache.parsePeers(SysProps.peers()), true));
+                } catch (IOException ioe) {
+                    log.warning("Unable to share resources with peers", "error", ioe);
+                }
+            }
+
+            // if nothing has changed since we last verified our installation, launch straight away
+            // and check for updates once the application is running
+            if (_app.allowsWarmLaunch() && _delay == 0 && (!_silent || _launchInSilent) &&
+                _app.haveValidJavaVersion() && _app.checkLaunchFingerprint()) {
+                log.info("Installation unchanged, launching without verification.");
+                _checkAfterLaunch = true;
+                launch();
+                return;
+            }
+
             // we create this tracking counter here so that we properly note the first time through
             // the update process whether we previously had validated resources (which means this
             // is not a first time install); we may, in the course of updating, wipe out our
@@ -427,6 +471,10 @@ public abstract class Getdown extends Thread
                 setStep(Step.VERIFY_METADATA);
                 setStatus("m.validating", -1, -1L, false);
                 if (_app.verifyMetadata(this)) {
+                    // if we can, launch the version we have and stage the update in the background
+                    if (launchFirst()) {
+                        return;
+                    }
                     log.info("Application requires update.");
                     update();
                     // loop back again and reverify the metadata
@@ -443,7 +491,7 @@ public abstract class Getdown extends Thread
                     // if we were downloaded in full from another service (say, Steam), we may
                     // not have unpacked all of our resources yet
                     if (Boolean.getBoolean("check_unpacked")) {
-                        File ufile = _app.getLocalPath("unpacked.dat");
+                        File ufile = _app.getAppdirPath("unpacked.dat");
                         long version = -1;
                         long aversion = _app.getVersion();
                         if (!ufile.exists()) {
@@ -466,6 +514,11 @@ public abstract class Getdown extends Thread
                         }
                     }
 
+                    // note our verified state so that our next launch can skip all of the above
+                    if (_app.allowsWarmLaunch()) {
+                        _app.saveLaunchFingerprint();
+                    }
+
                     // Only launch if we aren't in silent mode. Some mystery program starting out
                     // of the blue would be disconcerting.
                     if (!_silent || _launchInSilent) {
@@ -488,10 +541,14 @@ public abstract class Getdown extends Thread
                     reportTrackingEvent("app_start", -1);
 
                     // redownload any that are corrupt or invalid...
-                    log.info(failures.size() + " of " + _app.getAllActiveResources().size() +
+                    log.info(failures.size() + " of " + _app.getLaunchResources().size() +
                              " rsrcs require update (" + alreadyValid[0] + " assumed valid).");
                     setStep(Step.REDOWNLOAD_RESOURCES);
-                    download(failures);
+                    List<Resource> missing =
+                        _app.fetchFromPeers(_app.fetchFromStore(failures), _progobs);
+                    if (!missing.isEmpty()) {
+                        download(missing);
+                    }
 
                     reportTrackingEvent("app_complete", -1);
                 } finally {
@@ -596,7 +653,7 @@ public abstract class Getdown extends Thread
         if (!RunAnywhere.isWindows()) {
             String vmbin = LaunchUtil.LOCAL_JAVA_DIR + File.separator + "bin" +
                 File.separator + "java";
-            String cmd = "chmod a+rx " + _app.getLocalPath(vmbin);
+            String cmd = "chmod a+rx " + _app.getAppdirPath(vmbin);
             try {
                 log.info("Please smack a Java engineer. Running: " + cmd);
                 Runtime.getRuntime().exec(cmd);
@@ -607,7 +664,7 @@ public abstract class Getdown extends Thread
         }
 
         // lastly regenerate the .jsa dump file that helps Java to start up faster
-        String vmpath = LaunchUtil.getJVMPath(_app.getLocalPath(""));
+        String vmpath = LaunchUtil.getJVMPath(_app.getAppdirPath(""));
         try {
             log.info("Regenerating classes.jsa for " + vmpath + "...");
             Runtime.getRuntime().exec(vmpath + " -Xshare:dump");
@@ -618,31 +675,107 @@ public abstract class Getdown extends Thread
         reportTrackingEvent("jvm_complete", -1);
     }
 
+    /**
+     * Launches the current version of the application, leaving its update to be staged once it is
+     * running, if the application is so configured and its current version is intact.
+     *
+     * @return true if the application was launched.
+     */
+    protected boolean launchFirst ()
+        throws InterruptedException
+    {
+        if (!_app.isLaunchFirst() || _silent || _delay > 0 || invokeDirect()) {
+            return false;
+        }
+        setStep(Step.VERIFY_RESOURCES);
+        setStatus("m.validating", -1, -1L, false);
+        if (_app.verifyResources(_progobs, null, new HashSet<Resource>()) != null) {
+            log.info("Current version is incomplete, updating before launch.");
+            return false;
+        }
+        log.info("Launching current version, will stage update in the background.");
+        _stageAfterLaunch = true;
+        launch();
+        return true;
+    }
+
+    /**
+     * Downloads the resources of the target version that differ from ours into the staging
+     * directory, so that the target version can be activated on our next launch. Any failure
+     * leaves the staging incomplete, and it will be discarded.
+     */
+    protected void stageUpdate ()
+    {
+        try {
+            Application staged = _app.createStagedApplication();
+            List<Resource> rsrcs = _app.getStagedResources(staged);
+            log.info("Staging update", "resources", rsrcs.size());
+
+            // we're in the background, so don't compete with the application for bandwidth
+            Downloader dl = new HTTPDownloader(
+                staged.fetchFromPeers(staged.fetchFromStore(rsrcs), null), null);
+            if (_app.getMirrors().haveMirrors()) {
+                dl.setMirrors(_app.getMirrors());
+            }
+            dl.setRateLimiter(new AdaptiveRateLimiter(SysProps.backgroundRate()));
+            if (!dl.download() || !dl.getFailures().isEmpty()) {
+                throw new IOException("Failed to download " + dl.getFailures().keySet());
+            }
+            _app.completeStaging(staged, rsrcs);
+
+        } catch (Exception e) {
+            log.warning("Failed to stage update.", e);
+        }
+    }
+
+    /**
+     * Checks whether the application's metadata is current. If it is not, the launch fingerprint
+     * is cleared so that the next launch verifies and updates the application.
+     */
+    protected void checkForUpdates ()
+    {
+        try {
+            if (_app.verifyMetadata(this)) {
+                log.info("Update available, will apply on next launch.");
+                _app.clearLaunchFingerprint();
+                _stageAfterLaunch = _app.isLaunchFirst();
+            }
+        } catch (Exception e) {
+            log.warning("Failed to check for updates after launch.", e);
+            _app.clearLaunchFingerprint();
+        }
+    }
+
     /**
      * Called if the application is determined to be of an old version.
      */
     protected void update ()
         throws IOException, InterruptedException
     {
-        // first clear all validation markers
-        _app.clearValidationMarkers();
-
-        // attempt to download the patch files
-        Resource patch = _app.getPatchResource(null);
-        if (patch != null) {
-            List<Resource> list = new ArrayList<Resource>();
-            list.add(patch);
-
-            // add the auxiliary group patch files for activated groups
-            for (Application.AuxGroup aux : _app.getAuxGroups()) {
-                if (_app.isAuxGroupActive(aux.name)) {
-                    patch = _app.getPatchResource(aux.name);
-                    if (patch != null) {
-                        list.add(patch);
-                    }
-                }
+        // if each version has its own directory, build the new one beside the current one and
+        // switch to it, leaving the current version untouched
+        if (_app.hasVersionDirs()) {
+            Application staged = _app.createStagedApplication();
+            List<Resource> rsrcs = _app.getStagedResources(staged);
+            setStep(Step.DOWNLOAD);
+            List<Resource> missing =
+                staged.fetchFromPeers(staged.fetchFromStore(rsrcs), _progobs);
+            if (!missing.isEmpty()) {
+                download(missing);
             }
+            _app.completeStaging(staged, rsrcs);
+            _ifc = _app.init(true);
+            return;
+        }
+
+        // note that we're updating; once the update completes, the validation markers of those
+        // resources that changed will be cleared
+        _app.beginUpdate();
 
+        // determine which patch files to download (including those for activated auxiliary
+        // groups); if we're several versions behind this may be a chain of patches
+        List<Resource> list = _app.getPatchResources();
+        if (!list.isEmpty()) {
             // show the patch notes button, if applicable
             if (!StringUtil.isBlank(_ifc.patchNotesUrl)) {
                 createInterface(false);
@@ -663,13 +796,27 @@ public abstract class Getdown extends Thread
 
             // create a new ProgressObserver that divides the different patching phases
             MetaProgressObserver mprog = new MetaProgressObserver(_progobs, list.size());
+            long patchBytes = 0L, patchStart = System.currentTimeMillis();
+            boolean failed = false;
             for (Resource prsrc : list) {
                 mprog.startElement(1);
-                try {
+                // each hop of a chain builds on the last, so once one fails, we stop patching and
+                // leave it to validation to download whatever is amiss
+                if (!failed) {
+                    patchBytes += prsrc.getLocal().length();
                     Patcher patcher = new Patcher();
-                    patcher.patch(prsrc.getLocal().getParentFile(), prsrc.getLocal(), mprog);
-                } catch (Exception e) {
-                    log.warning("Failed to apply patch", "prsrc", prsrc, e);
+                    try {
+                        patcher.patch(prsrc.getLocal().getParentFile(), prsrc.getLocal(), mprog);
+                        if (patcher.getErrorCount() > 0) {
+                            log.warning("Failed to apply patch", "prsrc", prsrc,
+                                        "errors", patcher.getErrorCount());
+                            failed = true;
+                        }
+                    } catch (Exception e) {
+                        log.warning("Failed to apply patch", "prsrc", prsrc, e);
+                        failed = true;
+                    }
+                    _app.notePatchedPaths(patcher.getTouchedPaths());
                 }
 
                 // clean up the patch file
@@ -678,11 +825,20 @@ public abstract class Getdown extends Thread
                     prsrc.getLocal().deleteOnExit();
                 }
             }
+
+            if (failed) {
+                _app.notePatchFailure();
+            } else {
+                // note how quickly we patched so that future updates can choose a strategy wisely
+                UpdateRates rates = _app.getUpdateRates();
+                rates.notePatch(patchBytes, System.currentTimeMillis() - patchStart);
+                rates.save();
+            }
         }
 
-        // if the patch resource is null, that means something was booched in the application, so
-        // we skip the patching process but update the metadata which will result in a "brute
-        // force" upgrade
+        // if there are no patch resources, that means something was booched in the application or
+        // downloading the changed resources in full is cheaper than patching, so we skip the
+        // patching process but update the metadata which will result in a "brute force" upgrade
 
         // finally update our metadata files...
         _app.updateMetadata();
@@ -739,14 +895,28 @@ public abstract class Getdown extends Thread
             protected int _lastCheck = -1;
         };
 
-        // start the download and wait for it to complete
+        // start the download and wait for it to complete; if we're running in the background,
+        // don't hog the user's connection while they may be using it for something else
         Downloader dl = new HTTPDownloader(resources, obs);
+        if (_app.getMirrors().haveMirrors() && !resources.isEmpty()) {
+            // find out which of our servers responds quickest before we start
+            _app.getMirrors().probe(resources.get(0).getRemote());
+            dl.setMirrors(_app.getMirrors());
+        }
+        if (_silent || _delay > 0) {
+            dl.setRateLimiter(new AdaptiveRateLimiter(SysProps.backgroundRate()));
+        }
         if (!dl.download()) {
             if (Thread.interrupted()) {
                 throw new InterruptedException("m.applet_stopped");
             }
             throw new MultipleGetdownRunning();
         }
+
+        // note our download rate so that future updates can choose a strategy wisely
+        UpdateRates rates = _app.getUpdateRates();
+        rates.noteDownload(dl.getDownloadedBytes(), dl.getElapsedMillis());
+        rates.save();
     }
 
     /**
@@ -766,58 +936,77 @@ public abstract class Getdown extends Thread
                 _app.invokeDirect(getApplet());
 
             } else {
-                Process proc;
-                if (_app.hasOptimumJvmArgs()) {
-                    // if we have "optimum" arguments, we want to try launching with them first
-                    proc = _app.createProcess(true);
-
-                    long fallback = System.currentTimeMillis() + FALLBACK_CHECK_TIME;
-                    boolean error = false;
-                    while (fallback > System.currentTimeMillis()) {
-                        try {
-                            error = proc.exitValue() != 0;
-                            break;
-                        } catch (IllegalThreadStateException e) {
-                            Thread.yield();
-                        }
+                // if the application has groups that it can do without at first, we fetch them
+                // while it runs and let it know how to ask us for them
+                if (_app.hasLazyAuxGroups()) {
+                    try {
+                        _fetcher = new AuxGroupFetcher(_app.createCopy());
+                        System.setProperty(Application.PROP_PASSTHROUGH_PREFIX +
+                                           Properties.AUXGROUP_PORT,
+                                           String.valueOf(_fetcher.getPort()));
+                    } catch (IOException ioe) {
+                        log.warning("Unable to fetch lazy auxiliary groups", "error", ioe);
                     }
+                }
 
-                    if (error) {
-                        log.info("Failed to launch with optimum arguments; falling back.");
-                        proc = _app.createProcess(false);
+                ProcessMonitor monitor;
+                if (_app.hasOptimumJvmArgs()) {
+                    // if we have "optimum" arguments, we want to try launching with them first;
+                    // we block (rather than poll) while we see whether the JVM accepts them, so
+                    // as not to take the CPU away from the starting application
+                    monitor = new ProcessMonitor(_app.createProcess(true));
+                    Integer code = monitor.waitFor(FALLBACK_CHECK_TIME);
+                    if (code != null && code != 0) {
+                        log.info("Failed to launch with optimum arguments; falling back.",
+                                 "diagnostics", monitor.getDiagnostics());
+                        monitor = new ProcessMonitor(_app.createProcess(false));
                     }
                 } else {
-                    proc = _app.createProcess(false);
+                    monitor = new ProcessMonitor(_app.createProcess(false));
                 }
 
+                Process proc = monitor.getProcess();
                 // close standard in to avoid choking standard out of the launched process
                 proc.getInputStream().close();
                 // close standard out, since we're not going to write to anything to it anyway
                 proc.getOutputStream().close();
 
-                // on Windows 98 and ME we need to stick around and read the output of stderr lest
-                // the process fill its output buffer and choke, yay!
-                final InputStream stderr = proc.getErrorStream();
+                if (_fetcher != null) {
+                    _fetcher.start(monitor);
+                }
+
+                // the monitor copies the process's stderr to our own for as long as we're around,
+                // keeping the early bits of it in case the launch fails; on Windows 98 and ME we
+                // need to stick around and keep reading it lest the process fill its output
+                // buffer and choke, yay!
                 if (LaunchUtil.mustMonitorChildren()) {
                     // close our window if it's around
                     disposeContainer();
                     _status = null;
-                    copyStream(stderr, System.err);
-                    log.info("Process exited: " + proc.waitFor());
-
-                } else {
-                    // spawn a daemon thread that will catch the early bits of stderr in case the
-                    // launch fails
-                    Thread t = new Thread() {
-                        @Override public void run () {
-                            copyStream(stderr, System.err);
-                        }
-                    };
-                    t.setDaemon(true);
-                    t.start();
+                    monitor.waitFor();
                 }
             }
 
+            // if we launched without verifying, check for updates now that the application is
+            // running so that the next launch can apply them
+            if (_checkAfterLaunch) {
+                checkForUpdates();
+            }
+
+            // if we launched in spite of an update, download it while the application runs
+            if (_stageAfterLaunch) {
+                disposeContainer();
+                _status = null;
+                stageUpdate();
+            }
+
+            // stick around to fetch lazy auxiliary groups for as long as the application runs
+            if (_fetcher != null) {
+                disposeContainer();
+                _status = null;
+                _fetcher.join();
+            }
+
             // if we have a UI open and we haven't been around for at least 5 seconds, don't stick
             // a fork in ourselves straight away but give our lovely user a chance to see what
             // we're doing
@@ -1131,24 +1320,6 @@ public abstract class Getdown extends Thread
      */
     protected abstract void exit (int exitCode);
 
-    /**
-     * Copies the supplied stream from the specified input to the specified output. Used to copy
-     * our child processes stderr and stdout to our own stderr and stdout.
-     */
-    protected static void copyStream (InputStream in, PrintStream out)
-    {
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                out.print(line);
-                out.flush();
-            }
-        } catch (IOException ioe) {
-            log.warning("Failure copying", "in", in, "out", out, "error", ioe);
-        }
-    }
-
     /** Used to fetch a progress report URL. */
     protected class ProgressReporter extends Thread
     {
@@ -1238,6 +1409,11 @@ public abstract class Getdown extends Thread
 
     protected boolean _dead;
     protected boolean _silent;
+    protected boolean _checkAfterLaunch;
+    protected boolean _stageAfterLaunch;
+
+    /** Fetches the application's lazy auxiliary groups while it runs, if it has any. */
+    protected AuxGroupFetcher _fetcher;
     protected boolean _launchInSilent;
     protected long _startup;
 
@@ -0,0 +1,206 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.launcher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.samskivert.util.StringUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Watches a launched process, copying what it writes to stderr to our own and noting when and
+ * how it exits. Waiting for the process to exit blocks rather than polls, so we don't compete
+ * with the process for the CPU while it starts up, and the tail of its stderr is kept so that we
+ * can explain an early exit.
+ */
+public class ProcessMonitor
+{
+    /**
+     * Starts monitoring the supplied process, which was launched just now.
+     */
+    public ProcessMonitor (Process proc)
+    {
+        _proc = proc;
+        _started = System.currentTimeMillis();
+
+        _stderr = new Thread("ProcessMonitor stderr") {
+            @Override public void run () {
+                copyStderr();
+            }
+        };
+        _stderr.setDaemon(true);
+        _stderr.start();
+
+        Thread waiter = new Thread("ProcessMonitor") {
+            @Override public void run () {
+                awaitExit();
+            }
+        };
+        waiter.setDaemon(true);
+        waiter.start();
+    }
+
+    /**
+     * Returns the monitored process.
+     */
+    public Process getProcess ()
+    {
+        return _proc;
+    }
+
+    /**
+     * Waits for up to the specified number of milliseconds for the process to exit.
+     *
+     * @return the process's exit code, or null if it is still running.
+     */
+    public Integer waitFor (long millis)
+        throws InterruptedException
+    {
+        return _exited.await(millis, TimeUnit.MILLISECONDS) ? _exitCode : null;
+    }
+
+    /**
+     * Waits for the process to exit.
+     *
+     * @return the process's exit code.
+     */
+    public int waitFor ()
+        throws InterruptedException
+    {
+        _exited.await();
+        return _exitCode;
+    }
+
+    /**
+     * Arranges for the supplied runnable to be run once the process has exited, on the thread
+     * that notices it exit. It is run right away if the process has already exited.
+     */
+    public void onExit (Runnable action)
+    {
+        synchronized (_actions) {
+            if (_exited.getCount() > 0) {
+                _actions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Describes how the process exited, including the last lines it wrote to stderr.
+     */
+    public String getDiagnostics ()
+    {
+        if (_exited.getCount() > 0) {
+            return "still running after " + (System.currentTimeMillis() - _started) + "ms";
+        }
+        try {
+            // the process has exited, so its stderr is about to reach its end
+            _stderr.join(STDERR_DRAIN_TIME);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("exited with code ").append(_exitCode).append(" after ");
+        buf.append(_exitTime - _started).append("ms");
+        synchronized (_tail) {
+            if (!_tail.isEmpty()) {
+                buf.append(", stderr:\n  ").append(StringUtil.join(_tail.toArray(), "\n  "));
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Waits for the process to exit, then notes how it exited and runs our exit actions.
+     */
+    protected void awaitExit ()
+    {
+        int code;
+        try {
+            code = _proc.waitFor();
+        } catch (InterruptedException ie) {
+            log.warning("Interrupted while monitoring process");
+            return;
+        }
+        _exitCode = code;
+        _exitTime = System.currentTimeMillis();
+
+        List<Runnable> actions;
+        synchronized (_actions) {
+            _exited.countDown();
+            actions = new ArrayList<Runnable>(_actions);
+            _actions.clear();
+        }
+        if (code != 0 && _exitTime - _started < EARLY_EXIT_TIME) {
+            log.warning("Process exited early: " + getDiagnostics());
+        } else {
+            log.info("Process exited", "code", code, "millis", _exitTime - _started);
+        }
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (Exception e) {
+                log.warning("Process exit action failed", "action", action, e);
+            }
+        }
+    }
+
+    /**
+     * Copies the process's stderr to our own, keeping the last lines of it.
+     */
+    protected void copyStderr ()
+    {
+        try {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(_proc.getErrorStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                System.err.println(line);
+                synchronized (_tail) {
+                    _tail.addLast(line);
+                    if (_tail.size() > MAX_TAIL_LINES) {
+                        _tail.removeFirst();
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            // the stream is closed when the process exits, which may beat us to its end
+        }
+    }
+
+    protected Process _proc;
+    protected long _started, _exitTime;
+    protected volatile int _exitCode;
+    protected Thread _stderr;
+
+    /** Released once the process has exited. */
+    protected CountDownLatch _exited = new CountDownLatch(1);
+
+    /** Actions to be run once the process has exited. */
+    protected List<Runnable> _actions = new ArrayList<Runnable>();
+
+    /** The last lines that the process wrote to stderr. */
+    protected LinkedList<String> _tail = new LinkedList<String>();
+
+    /** The number of lines of stderr that we keep. */
+    protected static final int MAX_TAIL_LINES = 50;
+
+    /** A failing process that exits within this many milliseconds is reported in detail. */
+    protected static final long EARLY_EXIT_TIME = 10 * 1000L;
+
+    /** The longest we'll wait for the stderr of an exited process to reach its end. */
+    protected static final long STDERR_DRAIN_TIME = 500L;
+}
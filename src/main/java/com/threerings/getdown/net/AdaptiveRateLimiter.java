@@ -0,0 +1,71 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+/**
+ * A rate limiter that yields to other traffic, in the manner of LEDBAT: it tracks the lowest
+ * latency observed to the server (the base delay) and treats latency above that as queuing delay
+ * caused by a congested link. It backs off when the queuing delay exceeds a target and speeds
+ * back up (to at most its cap) when it falls below.
+ */
+public class AdaptiveRateLimiter extends RateLimiter
+{
+    /**
+     * Creates an adaptive limiter.
+     *
+     * @param maxRate the most bytes per second that will ever be allowed, or zero for no cap
+     * other than that imposed by latency.
+     */
+    public AdaptiveRateLimiter (long maxRate)
+    {
+        super((maxRate > 0) ? Math.min(maxRate, INITIAL_RATE) : INITIAL_RATE);
+        _maxRate = (maxRate > 0) ? maxRate : Long.MAX_VALUE / 1000L;
+    }
+
+    /**
+     * Notes a round trip latency sample and adjusts our rate accordingly.
+     */
+    public synchronized void noteLatency (long millis)
+    {
+        // the base delay is the minimum seen recently; let old minima expire so that a route
+        // change doesn't leave us permanently thinking the link is congested
+        long now = System.currentTimeMillis();
+        if (_baseDelay < 0 || millis < _baseDelay || now - _baseStamp > BASE_HISTORY) {
+            _baseDelay = millis;
+            _baseStamp = now;
+        }
+
+        // scale our rate in proportion to how far we are from our target queuing delay
+        long queuing = millis - _baseDelay;
+        double offTarget = (TARGET_DELAY - queuing) / (double)TARGET_DELAY;
+        offTarget = Math.max(-1, Math.min(1, offTarget));
+        long rate = (long)(_rate * (1 + GAIN * offTarget));
+        setRate(Math.min(rate, _maxRate));
+    }
+
+    /**
+     * Returns the most recently computed base delay, or -1 if no samples have been noted.
+     */
+    public synchronized long getBaseDelay ()
+    {
+        return _baseDelay;
+    }
+
+    protected long _maxRate;
+    protected long _baseDelay = -1, _baseStamp;
+
+    /** The rate at which we start, before we have any latency samples. */
+    protected static final long INITIAL_RATE = 256 * 1024L;
+
+    /** The queuing delay (in millis) we're willing to add to the user's link. */
+    protected static final long TARGET_DELAY = 100L;
+
+    /** How strongly we react to a single sample. */
+    protected static final double GAIN = 0.5;
+
+    /** How long (in millis) a base delay sample is trusted. */
+    protected static final long BASE_HISTORY = 10 * 60 * 1000L;
+}
@@ -8,10 +8,15 @@ package com.threerings.getdown.net;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.samskivert.util.RandomUtil;
+
 import com.threerings.getdown.data.Resource;
 
 import static com.threerings.getdown.Log.log;
@@ -71,6 +76,24 @@ public abstract class Downloader extends Thread
         _obs = obs;
     }
 
+    /**
+     * Configures a limiter that will restrict the rate at which this downloader transfers data.
+     * This must be called before the download is started.
+     */
+    public void setRateLimiter (RateLimiter limiter)
+    {
+        _limiter = limiter;
+    }
+
+    /**
+     * Configures the servers from which resources may be downloaded. Without them, resources are
+     * downloaded from their remote URLs. This must be called before the download is started.
+     */
+    public void setMirrors (Mirrors mirrors)
+    {
+        _mirrors = mirrors;
+    }
+
     /**
      * This method is invoked as the downloader thread and performs the actual downloading.
      */
@@ -95,10 +118,22 @@ public abstract class Downloader extends Thread
                 _obs.resolvingDownloads();
             }
 
-            // first compute the total size of our download
+            // first compute the total size of our download; if we can't determine the size of a
+            // resource, we'll find out why when we try to download it
             for (Resource resource : _resources) {
-                discoverSize(resource);
+                current = resource;
+                try {
+                    discoverSize(resource);
+                } catch (DownloadAbortedException dae) {
+                    throw dae;
+                } catch (IOException ioe) {
+                    log.warning("Failed to determine resource size", "rsrc", resource,
+                                "error", ioe);
+                    _sizes.put(resource, 0L);
+                }
             }
+            // failures from here on are reported against the resource that was being downloaded
+            current = null;
 
             long totalSize = sum(_sizes.values());
             log.info("Downloading " + totalSize + " bytes...");
@@ -106,10 +141,50 @@ public abstract class Downloader extends Thread
             // make a note of the time at which we started the download
             _start = System.currentTimeMillis();
 
-            // now actually download the files
-            for (Resource resource : _resources) {
-                download(resource);
+            // now actually download the files, the most urgent first; big files are streamed in a
+            // lane of their own, so that they don't hold up the small files queued behind them
+            List<Resource> small = new ArrayList<Resource>(), big = new ArrayList<Resource>();
+            for (Resource resource : schedule(_resources)) {
+                (_sizes.get(resource) >= BIG_RESOURCE_SIZE ? big : small).add(resource);
+            }
+            if (small.isEmpty() || big.isEmpty()) {
+                small.addAll(big);
+                downloadAll(small);
+            } else {
+                // downloadAll() reports the failure of each resource itself, as for the small
+                // files; anything else that befalls the lane is passed on once it has finished
+                final List<Resource> fbig = big;
+                final Error[] failure = new Error[1];
+                Thread lane = new Thread(getName() + " (big files)") {
+                    @Override public void run () {
+                        try {
+                            downloadAll(fbig);
+                        } catch (DownloadAbortedException dae) {
+                            // the other lane will notice that we've been aborted
+                        } catch (Error e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                lane.start();
+                try {
+                    downloadAll(small);
+                } finally {
+                    try {
+                        lane.join();
+                    } catch (InterruptedException ie) {
+                        _aborted = true;
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                if (_aborted) {
+                    throw new DownloadAbortedException();
+                }
             }
+            _elapsed = System.currentTimeMillis() - _start;
 
             // finally report our download completion if we did not already do so when downloading
             // our final resource
@@ -132,6 +207,89 @@ public abstract class Downloader extends Thread
         return true;
     }
 
+    /**
+     * Returns the supplied resources in the order in which they should be downloaded: by priority
+     * and, within a priority, smallest first, so that as much as possible arrives early.
+     */
+    protected List<Resource> schedule (List<Resource> resources)
+    {
+        List<Resource> ordered = new ArrayList<Resource>(resources);
+        Collections.sort(ordered, new Comparator<Resource>() {
+            public int compare (Resource r1, Resource r2) {
+                if (r1.getPriority() != r2.getPriority()) {
+                    return (r1.getPriority() < r2.getPriority()) ? -1 : 1;
+                }
+                return _sizes.get(r1).compareTo(_sizes.get(r2));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Downloads the supplied resources in order. A resource that fails despite our retries does
+     * not prevent the others from being downloaded.
+     */
+    protected void downloadAll (List<Resource> resources)
+        throws DownloadAbortedException
+    {
+        for (Resource resource : resources) {
+            if (_aborted) {
+                throw new DownloadAbortedException();
+            }
+            try {
+                downloadWithRetries(resource);
+            } catch (DownloadAbortedException dae) {
+                _aborted = true;
+                throw dae;
+            } catch (IOException ioe) {
+                reportFailure(resource, ioe);
+            } catch (RuntimeException re) {
+                IOException ioe = new IOException("Download failed: " + re);
+                ioe.initCause(re);
+                reportFailure(resource, ioe);
+            }
+        }
+    }
+
+    /**
+     * Notes that the supplied resource could not be downloaded and lets the observer know.
+     */
+    protected synchronized void reportFailure (Resource resource, IOException error)
+    {
+        _failures.put(resource, error);
+        if (_obs != null) {
+            _obs.downloadFailed(resource, error);
+        } else {
+            log.warning("Download failed", "rsrc", resource, "error", error);
+        }
+    }
+
+    /**
+     * Returns the resources that could not be downloaded, mapped to the error that thwarted the
+     * final attempt to download them.
+     */
+    public Map<Resource, IOException> getFailures ()
+    {
+        return _failures;
+    }
+
+    /**
+     * Returns the total number of bytes transferred by a completed download.
+     */
+    public long getDownloadedBytes ()
+    {
+        return sum(_downloaded.values());
+    }
+
+    /**
+     * Returns the number of milliseconds spent transferring data by a completed download, or zero
+     * if the download did not complete.
+     */
+    public long getElapsedMillis ()
+    {
+        return _elapsed;
+    }
+
     /**
      * Notes the amount of data needed to download the given resource..
      */
@@ -146,6 +304,39 @@ public abstract class Downloader extends Thread
      */
     protected abstract long checkSize (Resource rsrc) throws IOException;
 
+    /**
+     * Downloads the specified resource, retrying transient failures after a backoff. The maximum
+     * delay doubles with each retry (up to a cap) and the actual delay is chosen at random between
+     * half of and all of that maximum, so that many clients that hit the same error don't all
+     * retry in lockstep.
+     */
+    protected void downloadWithRetries (Resource rsrc)
+        throws IOException
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                download(rsrc);
+                return;
+            } catch (DownloadAbortedException dae) {
+                throw dae;
+            } catch (IOException ioe) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw ioe;
+                }
+                long maxDelay = Math.min(RETRY_BASE_DELAY << (attempt-1), RETRY_MAX_DELAY);
+                long delay = maxDelay/2 + RandomUtil.getInt((int)(maxDelay/2) + 1);
+                log.info("Download failed, will retry", "rsrc", rsrc, "attempt", attempt,
+                         "delay", delay, "error", ioe);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new DownloadAbortedException();
+                }
+            }
+        }
+    }
+
     /**
      * Downloads the specified resource from its remote location to its local location.
      */
@@ -176,9 +367,14 @@ public abstract class Downloader extends Thread
      * updated sizes here we can recover from receiving bogus information in the earlier {@link
      * #checkSize} phase.
      */
-    protected void updateObserver (Resource rsrc, long currentSize, long actualSize)
+    protected synchronized void updateObserver (Resource rsrc, long currentSize, long actualSize)
         throws IOException
     {
+        // if our other lane was aborted, so are we
+        if (_aborted) {
+            throw new DownloadAbortedException();
+        }
+
         // update the actual size for this resource (but don't let it shrink)
         _sizes.put(rsrc, actualSize = Math.max(actualSize, _sizes.get(rsrc)));
 
@@ -198,7 +394,7 @@ public abstract class Downloader extends Thread
 
             // compute our bytes per second
             long secs = (now - _start) / 1000L;
-            long bps = (secs == 0) ? 0 : (downloaded / secs);
+            long bps = _bytesPerSecond = (secs == 0) ? 0 : (downloaded / secs);
 
             // compute our percentage completion
             int pctdone = (totalSize == 0) ? 0 : (int)((downloaded * 100f) / totalSize);
@@ -210,10 +406,19 @@ public abstract class Downloader extends Thread
             if (pctdone < 100 || !_complete) {
                 _complete = (pctdone == 100);
                 if (!_obs.downloadProgress(pctdone, remaining)) {
+                    _aborted = true;
                     throw new DownloadAbortedException();
                 }
             }
-        }   
+        }
+    }
+
+    /**
+     * Returns the size that we expect to download for the supplied resource.
+     */
+    protected synchronized long getSize (Resource rsrc)
+    {
+        return _sizes.get(rsrc);
     }
 
     /**
@@ -243,11 +448,17 @@ public abstract class Downloader extends Thread
     /** The bytes downloaded for each resource. */
     protected Map<Resource, Long> _downloaded = new HashMap<Resource, Long>();
 
+    /** The resources that could not be downloaded. */
+    protected Map<Resource, IOException> _failures = new HashMap<Resource, IOException>();
+
     /** The observer with whom we are communicating. */
     protected Observer _obs;
 
-    /** Used while downloading. */
-    protected byte[] _buffer = new byte[4096];
+    /** The servers from which we download, or null. */
+    protected Mirrors _mirrors;
+
+    /** Limits our transfer rate, or null if we transfer as fast as we can. */
+    protected RateLimiter _limiter;
 
     /** The time at which the file transfer began. */
     protected long _start;
@@ -255,13 +466,31 @@ public abstract class Downloader extends Thread
     /** The current transfer rate in bytes per second. */
     protected long _bytesPerSecond;
 
+    /** The time in milliseconds spent transferring data, set once the download completes. */
+    protected long _elapsed;
+
     /** The time at which the last progress update was posted to the progress observer. */
     protected long _lastUpdate;
 
     /** Whether the download has completed and the progress observer notified. */
     protected boolean _complete;
 
+    /** Whether the download has been aborted, which ends the downloads in all lanes. */
+    protected volatile boolean _aborted;
+
     /** The delay in milliseconds between notifying progress observers of file download
      * progress. */
     protected static final long UPDATE_DELAY = 500L;
+
+    /** Resources at least this large (in bytes) are downloaded concurrently with the rest. */
+    protected static final long BIG_RESOURCE_SIZE = 4L * 1024 * 1024;
+
+    /** The number of times we try to download a resource before giving up on it. */
+    protected static final int MAX_ATTEMPTS = 4;
+
+    /** The maximum delay (in millis) before our first retry; it doubles for each retry. */
+    protected static final long RETRY_BASE_DELAY = 1000L;
+
+    /** The longest we'll ever wait (in millis) before a retry. */
+    protected static final long RETRY_MAX_DELAY = 8000L;
 }
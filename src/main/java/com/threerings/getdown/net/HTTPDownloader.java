@@ -5,12 +5,18 @@
 
 package com.threerings.getdown.net;
 
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.samskivert.io.StreamUtil;
 
@@ -33,7 +39,44 @@ public class HTTPDownloader extends Downloader
     protected long checkSize (Resource rsrc)
         throws IOException
     {
-        URLConnection conn = ConnectionUtil.open(rsrc.getRemote());
+        IOException failure = null;
+        for (Mirrors.Mirror mirror : getMirrors()) {
+            try {
+                return checkSize(rsrc, mirror);
+            } catch (IOException ioe) {
+                failure = ioe;
+                noteFailure(rsrc, mirror, ioe);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Determines the size of the supplied resource on the specified server.
+     */
+    protected long checkSize (Resource rsrc, Mirrors.Mirror mirror)
+        throws IOException
+    {
+        URL curl = getCompressedURL(rsrc, mirror);
+        if (curl != null) {
+            try {
+                return checkSize(curl);
+            } catch (IOException ioe) {
+                log.info("Compressed variant unavailable, will download plain", "url", curl,
+                         "error", ioe);
+                _plain.add(rsrc);
+            }
+        }
+        return checkSize(rebase(rsrc.getRemote(), mirror));
+    }
+
+    /**
+     * Determines the size of the file at the specified URL.
+     */
+    protected long checkSize (URL url)
+        throws IOException
+    {
+        URLConnection conn = ConnectionUtil.open(url);
         try {
             // if we're accessing our data via HTTP, we only need a HEAD request
             if (conn instanceof HttpURLConnection) {
@@ -43,7 +86,7 @@ public class HTTPDownloader extends Downloader
                 // make sure we got a satisfactory response code
                 if (hcon.getResponseCode() != HttpURLConnection.HTTP_OK) {
                     throw new IOException("Unable to check up-to-date for " +
-                                          rsrc.getRemote() + ": " + hcon.getResponseCode());
+                                          url + ": " + hcon.getResponseCode());
                 }
             }
             return conn.getContentLength();
@@ -58,50 +101,262 @@ public class HTTPDownloader extends Downloader
     protected void doDownload (Resource rsrc)
         throws IOException
     {
-        // download the resource from the specified URL
-        URLConnection conn = ConnectionUtil.open(rsrc.getRemote());
+        // try each of our servers in turn, fastest first
+        IOException failure = null;
+        for (Mirrors.Mirror mirror : getMirrors()) {
+            long start = System.currentTimeMillis();
+            try {
+                doDownload(rsrc, mirror);
+                if (mirror != null) {
+                    mirror.noteSuccess(getSize(rsrc), System.currentTimeMillis() - start);
+                }
+                return;
+            } catch (DownloadAbortedException dae) {
+                throw dae;
+            } catch (IOException ioe) {
+                failure = ioe;
+                noteFailure(rsrc, mirror, ioe);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Downloads the supplied resource from the specified server.
+     */
+    protected void doDownload (Resource rsrc, Mirrors.Mirror mirror)
+        throws IOException
+    {
+        // download the compressed variant of the resource if there is one, otherwise the resource
+        URL curl = getCompressedURL(rsrc, mirror);
+        URL url = (curl == null) ? rebase(rsrc.getRemote(), mirror) : curl;
+        long requested = System.currentTimeMillis();
+        URLConnection conn = ConnectionUtil.open(url);
         conn.connect();
 
         // make sure we got a satisfactory response code
         if (conn instanceof HttpURLConnection) {
             HttpURLConnection hcon = (HttpURLConnection)conn;
-            if (hcon.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                throw new IOException("Unable to download resource " + rsrc.getRemote() + ": " +
-                                      hcon.getResponseCode());
+            int code = hcon.getResponseCode();
+            // the time to obtain a response approximates the round trip time to the server
+            noteLatency(System.currentTimeMillis() - requested);
+            if (code != HttpURLConnection.HTTP_OK) {
+                // we won't read the response, so let go of the connection before we move on
+                hcon.disconnect();
+                if (curl != null) {
+                    log.info("Compressed variant unavailable, downloading plain", "url", curl,
+                             "code", code);
+                    _plain.add(rsrc);
+                    doDownload(rsrc, mirror);
+                    return;
+                }
+                throw new IOException("Unable to download resource " + url + ": " + code);
             }
         }
 
         long actualSize = conn.getContentLength();
-        log.info("Downloading resource", "url", rsrc.getRemote(), "size", actualSize);
+        log.info("Downloading resource", "url", url, "size", actualSize);
         InputStream in = null;
-        FileOutputStream out = null;
-        long currentSize = 0L;
         try {
-            in = conn.getInputStream();
-            out = new FileOutputStream(rsrc.getLocal());
-            int read;
+            // we report progress in terms of bytes transferred, which for a compressed variant
+            // differs from the bytes written out
+            CountingInputStream cin = new CountingInputStream(conn.getInputStream());
+            in = (curl == null) ? cin : rsrc.getCompression().decode(cin);
 
             // TODO: look to see if we have a download info file
             // containing info on potentially partially downloaded data;
             // if so, use a "Range: bytes=HAVE-" header.
 
-            // read in the file data
-            while ((read = in.read(_buffer)) != -1) {
-                // write it out to our local copy
-                out.write(_buffer, 0, read);
+            // read in the file data, throttling and reporting progress as it arrives
+            rsrc.receive(new ProgressInputStream(in, cin, url, rsrc, actualSize));
+        } catch (IOException ioe) {
+            if (curl == null || ioe instanceof DownloadAbortedException) {
+                throw ioe;
+            }
+            // the variant may be corrupt or we may be unable to decode it, so try the plain file
+            log.warning("Failed to decode compressed variant, downloading plain", "url", curl,
+                        "error", ioe);
+            _plain.add(rsrc);
+        } finally {
+            StreamUtil.close(in);
+        }
+        if (_plain.contains(rsrc) && curl != null) {
+            doDownload(rsrc, mirror);
+        }
+    }
+
+    /**
+     * Charges the supplied number of transferred bytes to our rate limiter. If the limiter adapts
+     * to latency, the latency to the server is periodically measured while we transfer.
+     */
+    protected void throttle (URL url, long bytes)
+        throws IOException
+    {
+        _limiter.consume((int)bytes);
+
+        long now = System.currentTimeMillis();
+        if (_limiter instanceof AdaptiveRateLimiter && now - _lastProbe >= PROBE_INTERVAL &&
+            _probing.compareAndSet(false, true)) {
+            _lastProbe = now;
+            probeLatency(url);
+        }
+    }
 
-                // if we have no observer, then don't bother computing download statistics
-                if (_obs == null) {
-                    continue;
+    /**
+     * Measures the latency to the server of the supplied URL on a thread of its own, so that the
+     * transfer isn't held up waiting for the answer, and passes it on to our rate limiter.
+     */
+    protected void probeLatency (final URL url)
+    {
+        Thread probe = new Thread(getName() + " (latency probe)") {
+            @Override public void run () {
+                try {
+                    long start = System.currentTimeMillis();
+                    checkSize(url);
+                    noteLatency(System.currentTimeMillis() - start);
+                } catch (IOException ioe) {
+                    log.info("Latency probe failed", "url", url, "error", ioe);
+                } finally {
+                    _probing.set(false);
                 }
+            }
+        };
+        probe.setDaemon(true);
+        probe.start();
+    }
+
+    /**
+     * Passes a latency sample on to our rate limiter, if it cares.
+     */
+    protected void noteLatency (long millis)
+    {
+        if (_limiter instanceof AdaptiveRateLimiter) {
+            ((AdaptiveRateLimiter)_limiter).noteLatency(millis);
+        }
+    }
 
-                // note that we've downloaded some data
-                currentSize += read;
-                updateObserver(rsrc, currentSize, actualSize);
+    /**
+     * Returns the URL of the compressed variant of the supplied resource on the specified server,
+     * or null if it should be downloaded plain.
+     */
+    protected URL getCompressedURL (Resource rsrc, Mirrors.Mirror mirror)
+        throws IOException
+    {
+        URL curl = _plain.contains(rsrc) ? null : rsrc.getCompressedRemote();
+        return (curl == null) ? null : rebase(curl, mirror);
+    }
+
+    /**
+     * Returns the servers to try, in order. If we have no servers configured, this contains only
+     * null, indicating that resources be downloaded from their remote URLs.
+     */
+    protected List<Mirrors.Mirror> getMirrors ()
+    {
+        List<Mirrors.Mirror> mirrors = (_mirrors == null) ? null : _mirrors.getOrdered();
+        if (mirrors == null || mirrors.isEmpty()) {
+            mirrors = new ArrayList<Mirrors.Mirror>();
+            mirrors.add(null);
+        }
+        return mirrors;
+    }
+
+    /**
+     * Maps the supplied URL onto the specified server.
+     */
+    protected URL rebase (URL url, Mirrors.Mirror mirror)
+        throws IOException
+    {
+        return (mirror == null) ? url : _mirrors.rebase(url, mirror);
+    }
+
+    /**
+     * Notes that a request for the supplied resource failed on the specified server.
+     */
+    protected void noteFailure (Resource rsrc, Mirrors.Mirror mirror, IOException error)
+    {
+        if (mirror != null) {
+            mirror.noteFailure();
+            log.warning("Download failed on server", "rsrc", rsrc, "server", mirror.prefix,
+                        "error", error);
+        }
+    }
+
+    /** Counts the bytes read through it. */
+    protected static class CountingInputStream extends FilterInputStream
+    {
+        public long count;
+
+        public CountingInputStream (InputStream in) {
+            super(in);
+        }
+
+        @Override public int read () throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
             }
-        } finally {
-            StreamUtil.close(in);
-            StreamUtil.close(out);
+            return b;
         }
+
+        @Override public int read (byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Throttles the transfer of a resource and reports its progress as it is read.
+     */
+    protected class ProgressInputStream extends FilterInputStream
+    {
+        public ProgressInputStream (InputStream in, CountingInputStream cin, URL url,
+                                    Resource rsrc, long actualSize) {
+            super(in);
+            _cin = cin;
+            _url = url;
+            _rsrc = rsrc;
+            _actualSize = actualSize;
+        }
+
+        @Override public int read () throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override public int read (byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+
+            // if we're being throttled, stay within our allotted rate
+            if (_limiter != null) {
+                throttle(_url, _cin.count - _lastCount);
+                _lastCount = _cin.count;
+            }
+
+            // if we have no observer, then don't bother computing download statistics
+            if (_obs != null && read > 0) {
+                updateObserver(_rsrc, _cin.count, _actualSize);
+            }
+            return read;
+        }
+
+        protected CountingInputStream _cin;
+        protected URL _url;
+        protected Resource _rsrc;
+        protected long _actualSize, _lastCount;
     }
+
+    /** Resources whose compressed variants turned out to be unavailable. */
+    protected Set<Resource> _plain = Collections.synchronizedSet(new HashSet<Resource>());
+
+    /** The time at which we last probed the latency to the server. */
+    protected volatile long _lastProbe;
+
+    /** Whether a latency probe is in flight. */
+    protected AtomicBoolean _probing = new AtomicBoolean();
+
+    /** The interval (in millis) between latency probes while we're adaptively throttled. */
+    protected static final long PROBE_INTERVAL = 2000L;
 }
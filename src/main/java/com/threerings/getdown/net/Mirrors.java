@@ -0,0 +1,291 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.threerings.getdown.util.ConnectionUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Tracks the servers from which an application's files may be downloaded: the appbase and any
+ * number of mirrors of it. Mirrors must have the same layout as the appbase; a URL under the
+ * appbase is mapped onto a mirror by replacing the portion of the appbase that precedes
+ * <code>%VERSION%</code> (or the whole appbase, for unversioned applications) with that of the
+ * mirror. The health and speed of each server is tracked for the duration of the session, so that
+ * downloads prefer the fastest server and avoid those that are failing.
+ */
+public class Mirrors
+{
+    /** A single server from which files may be downloaded. */
+    public static class Mirror
+    {
+        /** The portion of this server's appbase that precedes the version. */
+        public final String prefix;
+
+        /** Whether this is the appbase itself, rather than a mirror. */
+        public final boolean primary;
+
+        public Mirror (String prefix, boolean primary) {
+            this.prefix = prefix;
+            this.primary = primary;
+        }
+
+        /** Returns true if this server has failed repeatedly, so is to be used as a last resort. */
+        public synchronized boolean isFailing () {
+            return _failures >= MAX_FAILURES;
+        }
+
+        /** Returns the observed throughput in bytes per millisecond, or 0 if unknown. */
+        public synchronized double getThroughput () {
+            return _throughput;
+        }
+
+        /** Returns the observed latency in milliseconds, or -1 if unknown. */
+        public synchronized long getLatency () {
+            return _latency;
+        }
+
+        /** Notes a successful transfer of the specified bytes in the specified millis. */
+        public synchronized void noteSuccess (long bytes, long millis) {
+            _failures = 0;
+            // tiny transfers are all latency and say little about throughput
+            if (bytes >= MIN_THROUGHPUT_BYTES && millis > 0) {
+                double sample = bytes / (double)millis;
+                _throughput = (_throughput == 0) ? sample : (_throughput + sample) / 2;
+            }
+        }
+
+        /** Notes a failed transfer. */
+        public synchronized void noteFailure () {
+            _failures++;
+        }
+
+        /** Notes a latency sample. */
+        public synchronized void noteLatency (long millis) {
+            _latency = (_latency < 0) ? millis : (_latency + millis) / 2;
+        }
+
+        @Override public String toString () {
+            return prefix + " (fails=" + _failures + ", lat=" + _latency + "ms, tput=" +
+                (long)(_throughput * 1000) + "B/s)";
+        }
+
+        protected int _failures;
+        protected double _throughput;
+        protected long _latency = -1;
+    }
+
+    /**
+     * Configures the servers to use. Servers that were already configured retain their health
+     * information.
+     *
+     * @param appbase the application's appbase (which may contain <code>%VERSION%</code>).
+     * @param mirrors the appbases of the application's mirrors, in the same form.
+     */
+    public synchronized void configure (String appbase, List<String> mirrors)
+    {
+        List<Mirror> nmirrors = new ArrayList<Mirror>();
+        nmirrors.add(getMirror(getPrefix(appbase), true));
+        for (String mirror : mirrors) {
+            String prefix = getPrefix(mirror);
+            if (!prefix.equals(nmirrors.get(0).prefix)) {
+                nmirrors.add(getMirror(prefix, false));
+            }
+        }
+        _mirrors = nmirrors;
+    }
+
+    /**
+     * Returns true if there is more than one server configured.
+     */
+    public synchronized boolean haveMirrors ()
+    {
+        return _mirrors.size() > 1;
+    }
+
+    /**
+     * Returns our servers in the order in which they should be tried: healthy servers before
+     * failing ones, and faster servers before slower ones, judged by the estimated time to fetch
+     * a typical file. The appbase is preferred when nothing distinguishes the servers.
+     */
+    public synchronized List<Mirror> getOrdered ()
+    {
+        // snapshot the costs, as other threads may update the mirrors while we sort
+        final Map<Mirror, Double> costs = new HashMap<Mirror, Double>();
+        for (Mirror mirror : _mirrors) {
+            costs.put(mirror, getCost(mirror));
+        }
+        List<Mirror> ordered = new ArrayList<Mirror>(_mirrors);
+        Collections.sort(ordered, new Comparator<Mirror>() {
+            public int compare (Mirror m1, Mirror m2) {
+                int rv = Double.compare(costs.get(m1), costs.get(m2));
+                return (rv != 0 || m1.primary == m2.primary) ? rv : (m1.primary ? -1 : 1);
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Maps the supplied URL, which must be located under the appbase, onto the specified server.
+     * If the URL is not under the appbase, it is returned unchanged.
+     */
+    public URL rebase (URL url, Mirror mirror)
+        throws MalformedURLException
+    {
+        Mirror primary;
+        synchronized (this) {
+            primary = _mirrors.get(0);
+        }
+        String surl = url.toString();
+        if (mirror == null || mirror.primary || !surl.startsWith(primary.prefix)) {
+            return url;
+        }
+        return new URL(mirror.prefix + surl.substring(primary.prefix.length()));
+    }
+
+    /**
+     * Measures the latency to each server by requesting the headers of the supplied URL (which
+     * must be located under the appbase) from each of them, in parallel. This blocks for at most
+     * {@link #PROBE_TIMEOUT} millis. It does nothing if there are no mirrors or they have already
+     * been probed.
+     */
+    public void probe (final URL url)
+    {
+        List<Mirror> mirrors;
+        synchronized (this) {
+            if (_probed || _mirrors.size() < 2) {
+                return;
+            }
+            _probed = true;
+            mirrors = new ArrayList<Mirror>(_mirrors);
+        }
+
+        List<Thread> probers = new ArrayList<Thread>();
+        for (final Mirror mirror : mirrors) {
+            Thread prober = new Thread("MirrorProbe") {
+                @Override public void run () {
+                    probe(url, mirror);
+                }
+            };
+            prober.setDaemon(true);
+            prober.start();
+            probers.add(prober);
+        }
+
+        long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+        try {
+            for (Thread prober : probers) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0) {
+                    prober.join(remaining);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Probed mirrors", "mirrors", getOrdered());
+    }
+
+    /**
+     * Probes a single server.
+     */
+    protected void probe (URL url, Mirror mirror)
+    {
+        try {
+            URL murl = rebase(url, mirror);
+            long start = System.currentTimeMillis();
+            URLConnection conn = ConnectionUtil.open(murl);
+            conn.setConnectTimeout((int)PROBE_TIMEOUT);
+            conn.setReadTimeout((int)PROBE_TIMEOUT);
+            if (conn instanceof HttpURLConnection) {
+                HttpURLConnection hcon = (HttpURLConnection)conn;
+                hcon.setRequestMethod("HEAD");
+                if (hcon.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Probe failed: " + hcon.getResponseCode());
+                }
+                hcon.disconnect();
+            } else {
+                conn.getInputStream().close();
+            }
+            mirror.noteLatency(System.currentTimeMillis() - start);
+        } catch (IOException ioe) {
+            log.info("Mirror probe failed", "mirror", mirror.prefix, "error", ioe);
+            mirror.noteFailure();
+        }
+    }
+
+    /**
+     * Returns the existing mirror with the specified prefix or a new one.
+     */
+    protected Mirror getMirror (String prefix, boolean primary)
+    {
+        for (Mirror mirror : _mirrors) {
+            if (mirror.prefix.equals(prefix) && mirror.primary == primary) {
+                return mirror;
+            }
+        }
+        return new Mirror(prefix, primary);
+    }
+
+    /**
+     * Returns the estimated time (in millis) to fetch a typical file from the supplied server,
+     * using defaults for whatever we haven't observed. Failing servers cost more than any other.
+     */
+    protected static double getCost (Mirror mirror)
+    {
+        if (mirror.isFailing()) {
+            return Double.MAX_VALUE;
+        }
+        long latency = mirror.getLatency();
+        double throughput = mirror.getThroughput();
+        return ((latency < 0) ? DEFAULT_LATENCY : latency) +
+            TYPICAL_SIZE / ((throughput > 0) ? throughput : DEFAULT_THROUGHPUT);
+    }
+
+    /**
+     * Returns the portion of the supplied appbase that precedes the version.
+     */
+    protected static String getPrefix (String appbase)
+    {
+        int vidx = appbase.indexOf("%VERSION%");
+        String prefix = (vidx < 0) ? appbase : appbase.substring(0, vidx);
+        return (vidx < 0 && !prefix.endsWith("/")) ? (prefix + "/") : prefix;
+    }
+
+    protected List<Mirror> _mirrors = new ArrayList<Mirror>();
+    protected boolean _probed;
+
+    /** The number of consecutive failures after which a server is considered to be failing. */
+    protected static final int MAX_FAILURES = 2;
+
+    /** The smallest transfer that we use to estimate throughput. */
+    protected static final long MIN_THROUGHPUT_BYTES = 64 * 1024L;
+
+    /** The size of a typical file, used to weigh latency against throughput. */
+    protected static final double TYPICAL_SIZE = 512 * 1024;
+
+    /** The latency (in millis) we assume for a server we haven't probed. */
+    protected static final long DEFAULT_LATENCY = 200L;
+
+    /** The throughput (in bytes per milli) we assume for a server we haven't downloaded from. */
+    protected static final double DEFAULT_THROUGHPUT = 256;
+
+    /** The longest we'll wait for servers to respond to a probe. */
+    protected static final long PROBE_TIMEOUT = 3000L;
+}
@@ -0,0 +1,468 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import com.samskivert.io.StreamUtil;
+
+import com.threerings.getdown.util.ConnectionUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Shares resources with other Getdown clients on the local network. Each client serves the
+ * resources it has validated over HTTP, keyed by their digest, and announces itself to the other
+ * clients on its subnet via multicast. Peers may also be listed explicitly, which allows several
+ * clients on one machine to share over loopback.
+ *
+ * <p> Peers are not trusted: whatever is fetched from a peer must be validated against the
+ * application's digest before it is used.
+ */
+public class PeerCache
+{
+    /**
+     * Starts serving shared resources and, if requested, discovering other peers.
+     *
+     * @param port the port on which to serve resources, or 0 to use any free port.
+     * @param peers peers to use whether or not they are discovered.
+     * @param discover whether to announce ourselves to and discover peers on the local network.
+     */
+    public PeerCache (int port, List<InetSocketAddress> peers, boolean discover)
+        throws IOException
+    {
+        _server = new ServerSocket(port);
+        for (InetSocketAddress peer : peers) {
+            _peers.put(peer, Long.MAX_VALUE);
+        }
+
+        Thread acceptor = new Thread("PeerCache Server") {
+            @Override public void run () {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        if (discover) {
+            try {
+                startDiscovery();
+            } catch (IOException ioe) {
+                log.warning("Unable to discover peers, using only those listed", "error", ioe);
+            }
+        }
+        log.info("Sharing resources with peers", "port", getPort(), "peers", peers,
+                 "discover", _discovery != null);
+    }
+
+    /**
+     * Parses a comma separated list of <code>host:port</code> peer addresses.
+     */
+    public static List<InetSocketAddress> parsePeers (String peers)
+    {
+        List<InetSocketAddress> addrs = new ArrayList<InetSocketAddress>();
+        if (peers == null) {
+            return addrs;
+        }
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            int cidx = peer.lastIndexOf(':');
+            try {
+                addrs.add(new InetSocketAddress(peer.substring(0, cidx),
+                                                Integer.parseInt(peer.substring(cidx+1))));
+            } catch (Exception e) {
+                log.warning("Ignoring invalid peer address", "peer", peer);
+            }
+        }
+        return addrs;
+    }
+
+    /**
+     * Returns the port on which we serve resources.
+     */
+    public int getPort ()
+    {
+        return _server.getLocalPort();
+    }
+
+    /**
+     * Makes the supplied file, whose content has the supplied digest, available to our peers.
+     */
+    public void share (String digest, File file)
+    {
+        synchronized (_shared) {
+            _shared.put(digest, file);
+        }
+    }
+
+    /**
+     * Returns a random selection of the peers we currently know of, from which to request a
+     * resource, omitting those that recently failed us. Waits briefly, the first time it is
+     * called, so that peers have a chance to respond to our announcement.
+     */
+    public List<InetSocketAddress> getPeers ()
+    {
+        long wait = _started + DISCOVERY_WAIT - System.currentTimeMillis();
+        if (_discovery != null && wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        long now = System.currentTimeMillis();
+        synchronized (_peers) {
+            for (Iterator<Map.Entry<InetSocketAddress, Long>> iter = _peers.entrySet().iterator();
+                 iter.hasNext(); ) {
+                Map.Entry<InetSocketAddress, Long> entry = iter.next();
+                Long retry = _failed.get(entry.getKey());
+                if (entry.getValue() < now) {
+                    iter.remove();
+                } else if (retry == null || retry < now) {
+                    peers.add(entry.getKey());
+                }
+            }
+        }
+        // spread our requests across our peers
+        Collections.shuffle(peers, _rando);
+        return (peers.size() > MAX_PEER_TRIES) ? peers.subList(0, MAX_PEER_TRIES) : peers;
+    }
+
+    /**
+     * Requests the content with the supplied digest from the specified peer, writing it to the
+     * supplied file if the peer has it. The caller must validate the content.
+     *
+     * @return true if the peer supplied the content, false if it doesn't have it or failed.
+     */
+    public boolean fetch (InetSocketAddress peer, String digest, File target)
+    {
+        HttpURLConnection conn = null;
+        InputStream in = null;
+        OutputStream out = null;
+        if (peer.isUnresolved()) {
+            return false;
+        }
+        try {
+            URL url = new URL("http", peer.getAddress().getHostAddress(), peer.getPort(),
+                              "/" + digest);
+            // peers are on our network, so bypass any proxy
+            conn = (HttpURLConnection)url.openConnection(Proxy.NO_PROXY);
+            conn.setConnectTimeout(PEER_TIMEOUT);
+            conn.setReadTimeout(PEER_TIMEOUT);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return false;
+            }
+            in = conn.getInputStream();
+            target.getParentFile().mkdirs();
+            // replace rather than overwrite the file, as it may be linked to a shared copy
+            target.delete();
+            out = new FileOutputStream(target);
+            StreamUtil.copy(in, out);
+            out.close();
+            out = null;
+            log.info("Fetched resource from peer", "peer", peer, "file", target);
+            return true;
+
+        } catch (IOException ioe) {
+            log.info("Failed to fetch resource from peer", "peer", peer, "error", ioe);
+            // we don't know when it will recover, and every attempt may cost us a timeout, so
+            // leave it be for a while, whether it was listed or discovered
+            synchronized (_peers) {
+                _failed.put(peer, System.currentTimeMillis() + PEER_BACKOFF);
+            }
+            if (out != null) {
+                StreamUtil.close(out);
+                target.delete();
+            }
+            return false;
+
+        } finally {
+            StreamUtil.close(in);
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Stops serving resources and discovering peers.
+     */
+    public void shutdown ()
+    {
+        try {
+            _server.close();
+        } catch (IOException ioe) {
+            // nothing doing
+        }
+        if (_discovery != null) {
+            _discovery.close();
+        }
+        _servers.shutdown();
+    }
+
+    /**
+     * Accepts connections from peers until we're shut down.
+     */
+    protected void accept ()
+    {
+        while (!_server.isClosed()) {
+            try {
+                final Socket sock = _server.accept();
+                try {
+                    _servers.execute(new Runnable() {
+                        public void run () {
+                            serve(sock);
+                        }
+                    });
+                } catch (RejectedExecutionException ree) {
+                    // we were shut down just as the connection arrived
+                    sock.close();
+                }
+            } catch (IOException ioe) {
+                if (!_server.isClosed()) {
+                    log.warning("Failed to accept peer connection", "error", ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves a single request, for the content with the digest named by the request path.
+     */
+    protected void serve (Socket sock)
+    {
+        InputStream fin = null;
+        try {
+            sock.setSoTimeout(PEER_TIMEOUT);
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+            String[] request = ConnectionUtil.readLine(in, MAX_LINE).split(" ");
+            // skip the headers, we have no use for them
+            while (ConnectionUtil.readLine(in, MAX_LINE).length() > 0) {
+                continue;
+            }
+
+            File file = null;
+            if (request.length >= 2 && request[0].equals("GET") && request[1].startsWith("/")) {
+                synchronized (_shared) {
+                    file = _shared.get(request[1].substring(1));
+                }
+            }
+
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            if (file == null || !file.isFile()) {
+                out.write(header("404 Not Found", 0L));
+            } else {
+                fin = new FileInputStream(file);
+                out.write(header("200 OK", file.length()));
+                StreamUtil.copy(fin, out);
+            }
+            out.flush();
+
+        } catch (IOException ioe) {
+            log.info("Failed to serve peer", "peer", sock.getRemoteSocketAddress(), "error", ioe);
+
+        } finally {
+            StreamUtil.close(fin);
+            try {
+                sock.close();
+            } catch (IOException ioe) {
+                // nothing doing
+            }
+        }
+    }
+
+    /**
+     * Joins our discovery group and starts listening for and making announcements.
+     */
+    protected void startDiscovery ()
+        throws IOException
+    {
+        _group = InetAddress.getByName(DISCOVERY_GROUP);
+        _discovery = new MulticastSocket(DISCOVERY_PORT);
+        _discovery.setTimeToLive(1); // stay on our subnet
+        _discovery.setLoopbackMode(false); // hear other clients on this machine
+        _discovery.setSoTimeout((int)ANNOUNCE_INTERVAL);
+        _discovery.joinGroup(_group);
+
+        Thread listener = new Thread("PeerCache Discovery") {
+            @Override public void run () {
+                discover();
+            }
+        };
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Listens for announcements from other peers, and periodically announces ourselves, until
+     * we're shut down.
+     */
+    protected void discover ()
+    {
+        // ask the peers that are already running to announce themselves right away
+        announce(true);
+        byte[] buffer = new byte[256];
+        while (!_discovery.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                _discovery.receive(packet);
+                String[] msg = new String(
+                    packet.getData(), 0, packet.getLength(), "UTF-8").split(" ");
+                if (msg.length >= 3 && msg[0].equals(ANNOUNCE_PREFIX) && !msg[1].equals(_id)) {
+                    noteAnnouncement(new InetSocketAddress(packet.getAddress(),
+                                                           Integer.parseInt(msg[2])));
+                    if (msg.length > 3) {
+                        announce(false); // they're new, so let them know about us
+                    }
+                }
+            } catch (SocketTimeoutException ste) {
+                // time to announce ourselves again
+            } catch (Exception e) {
+                if (_discovery.isClosed()) {
+                    break;
+                }
+                log.info("Failed to process peer announcement", "error", e);
+            }
+            if (System.currentTimeMillis() - _lastAnnounce >= ANNOUNCE_INTERVAL) {
+                announce(false);
+            }
+        }
+    }
+
+    /**
+     * Notes that we've heard from the supplied peer.
+     */
+    protected void noteAnnouncement (InetSocketAddress peer)
+    {
+        synchronized (_peers) {
+            Long expires = _peers.get(peer);
+            if (expires == null) {
+                log.info("Discovered peer", "peer", peer);
+            }
+            if (expires == null || expires != Long.MAX_VALUE) {
+                _peers.put(peer, System.currentTimeMillis() + PEER_EXPIRY);
+            }
+        }
+    }
+
+    /**
+     * Announces ourselves to the other peers on our subnet.
+     *
+     * @param hello whether to ask those peers to announce themselves in response.
+     */
+    protected void announce (boolean hello)
+    {
+        _lastAnnounce = System.currentTimeMillis();
+        try {
+            byte[] msg = (ANNOUNCE_PREFIX + " " + _id + " " + getPort() +
+                          (hello ? " hello" : "")).getBytes("UTF-8");
+            _discovery.send(new DatagramPacket(msg, msg.length, _group, DISCOVERY_PORT));
+        } catch (IOException ioe) {
+            log.info("Failed to announce ourselves to peers", "error", ioe);
+        }
+    }
+
+    /**
+     * Returns the header of a response with the supplied status and content length.
+     */
+    protected static byte[] header (String status, long length)
+        throws IOException
+    {
+        return ("HTTP/1.0 " + status + "\r\nContent-Length: " + length +
+                "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII");
+    }
+
+    /** Serves our resources. */
+    protected ServerSocket _server;
+
+    /** Handles requests from our peers. */
+    protected ExecutorService _servers = Executors.newFixedThreadPool(MAX_UPLOADS,
+        new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "PeerCache Upload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** The files we share, keyed by the digest of their content. */
+    protected Map<String, File> _shared = new HashMap<String, File>();
+
+    /** The peers we know of, mapped to the time at which we'll forget them if we don't hear from
+     * them again. Listed peers are never forgotten. */
+    protected Map<InetSocketAddress, Long> _peers = new HashMap<InetSocketAddress, Long>();
+
+    /** The peers that have failed us, mapped to the time after which we'll try them again. */
+    protected Map<InetSocketAddress, Long> _failed = new HashMap<InetSocketAddress, Long>();
+
+    /** Identifies us in our announcements, so that we can ignore our own. */
+    protected Random _rando = new Random();
+    protected String _id = Long.toHexString(_rando.nextLong());
+
+    protected MulticastSocket _discovery;
+    protected InetAddress _group;
+    protected long _started = System.currentTimeMillis(), _lastAnnounce;
+
+    /** The multicast group and port on which peers announce themselves. */
+    protected static final String DISCOVERY_GROUP = "239.255.71.68";
+    protected static final int DISCOVERY_PORT = 47168;
+    protected static final String ANNOUNCE_PREFIX = "getdown-peer";
+
+    /** How often (in millis) we announce ourselves. */
+    protected static final long ANNOUNCE_INTERVAL = 5000L;
+
+    /** How long (in millis) we remember a peer that has stopped announcing itself. */
+    protected static final long PEER_EXPIRY = 3 * ANNOUNCE_INTERVAL;
+
+    /** How long (in millis) we wait for peers to announce themselves before our first request. */
+    protected static final long DISCOVERY_WAIT = 500L;
+
+    /** The timeout (in millis) for connections to and from peers. */
+    protected static final int PEER_TIMEOUT = 5000;
+
+    /** How long (in millis) we leave a peer be after failing to fetch from it. */
+    protected static final long PEER_BACKOFF = 5 * 60 * 1000L;
+
+    /** The most peers we'll ask for any one resource. */
+    protected static final int MAX_PEER_TRIES = 4;
+
+    /** The most requests we'll serve at once. */
+    protected static final int MAX_UPLOADS = 4;
+
+    /** The longest request line we'll accept. */
+    protected static final int MAX_LINE = 1024;
+}
@@ -0,0 +1,93 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+/**
+ * Limits the rate at which data is transferred using a token bucket: tokens (bytes) accrue at the
+ * configured rate, up to a small burst, and a transfer that has used them all up must wait for
+ * more to accrue.
+ */
+public class RateLimiter
+{
+    /**
+     * Creates a limiter that allows the specified number of bytes per second.
+     */
+    public RateLimiter (long bytesPerSecond)
+    {
+        setRate(bytesPerSecond);
+        _tokens = getBurst();
+        _lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of bytes per second currently allowed.
+     */
+    public synchronized long getRate ()
+    {
+        return _rate;
+    }
+
+    /**
+     * Changes the number of bytes per second allowed.
+     */
+    public synchronized void setRate (long bytesPerSecond)
+    {
+        _rate = Math.max(bytesPerSecond, MIN_RATE);
+    }
+
+    /**
+     * Notes that the specified number of bytes were transferred, blocking until the transfer is
+     * within our rate.
+     *
+     * @exception DownloadAbortedException if the thread is interrupted while waiting.
+     */
+    public void consume (int bytes)
+        throws DownloadAbortedException
+    {
+        long wait;
+        synchronized (this) {
+            refill();
+            _tokens -= bytes;
+            // if we're in debt, wait until enough tokens have accrued to pay it off
+            wait = (_tokens >= 0) ? 0 : (-_tokens * 1000L / _rate);
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ie) {
+                // preserve the interrupt so that our caller can tell why the download aborted
+                Thread.currentThread().interrupt();
+                throw new DownloadAbortedException();
+            }
+        }
+    }
+
+    /**
+     * Adds the tokens accrued since we last refilled the bucket.
+     */
+    protected void refill ()
+    {
+        long now = System.currentTimeMillis();
+        _tokens = Math.min(_tokens + (now - _lastRefill) * _rate / 1000L, getBurst());
+        _lastRefill = now;
+    }
+
+    /**
+     * Returns the maximum number of tokens that may accrue.
+     */
+    protected long getBurst ()
+    {
+        return _rate * BURST_MILLIS / 1000L;
+    }
+
+    protected long _rate, _tokens, _lastRefill;
+
+    /** The slowest rate we'll allow, so that transfers always make some progress. */
+    protected static final long MIN_RATE = 8 * 1024L;
+
+    /** The number of milliseconds worth of transfer that may accrue while we're idle. */
+    protected static final long BURST_MILLIS = 250L;
+}
@@ -0,0 +1,643 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.samskivert.io.StreamUtil;
+
+import com.threerings.getdown.data.Application;
+import com.threerings.getdown.data.Digest;
+import com.threerings.getdown.data.PatchIndex;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.ConfigUtil;
+import com.threerings.getdown.util.ConnectionUtil;
+import com.threerings.getdown.util.FileUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * A caching HTTP server for a versioned application's appbase, to be run on a site's local
+ * network so that the site fetches each release from the internet only once. Clients are pointed
+ * at it with <code>-Dappbase_domain=http://host:port</code>.
+ *
+ * <p> The files of each version are immutable, so they're fetched from the origin server the
+ * first time they're requested and then served from disk. Each resource is validated against its
+ * version's digest before it is cached (files that aren't in the digest, such as patches, are
+ * cached as is). Requests outside of the versioned part of the appbase, for example for the
+ * <code>latest</code> config, are passed through to the origin. If given the URL of the latest
+ * config, the server checks it periodically and fetches each new version in advance.
+ */
+public class CacheServer
+{
+    /**
+     * A command line entry point for the cache server.
+     */
+    public static void main (String[] args)
+        throws IOException
+    {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println(
+                "Usage: CacheServer cache_dir appbase port [latest_url [threads]]");
+            System.exit(255);
+        }
+        CacheServer server = new CacheServer(new File(args[0]), args[1]);
+        if (args.length > 3) {
+            server.startWarming(new URL(args[3]));
+        }
+        int threads = (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_THREADS;
+        server.serve(Integer.parseInt(args[2]), threads);
+    }
+
+    /**
+     * Creates a server that caches the specified appbase, which must contain
+     * <code>%VERSION%</code>, in the specified directory.
+     */
+    public CacheServer (File cacheDir, String appbase)
+        throws MalformedURLException
+    {
+        int vidx = appbase.indexOf("%VERSION%");
+        if (vidx < 0) {
+            throw new MalformedURLException("Appbase is not versioned: " + appbase);
+        }
+        URL prefix = new URL(appbase.substring(0, vidx));
+        _cacheDir = cacheDir;
+        _origin = prefix.getProtocol() + "://" + prefix.getAuthority();
+        _vprefix = prefix.getPath();
+    }
+
+    /**
+     * Serves requests on the specified port, using the specified number of threads. Does not
+     * return.
+     */
+    public void serve (int port, int threads)
+        throws IOException
+    {
+        ExecutorService handlers = Executors.newFixedThreadPool(threads);
+        ServerSocket server = new ServerSocket(port);
+        log.info("Serving cache", "port", port, "origin", _origin + _vprefix, "dir", _cacheDir);
+        while (true) {
+            final Socket sock = server.accept();
+            handlers.execute(new Runnable() {
+                public void run () {
+                    handle(sock);
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts checking the supplied latest config periodically, fetching each new version that it
+     * names into the cache.
+     */
+    public void startWarming (final URL latest)
+    {
+        Thread warmer = new Thread("CacheServer Warmer") {
+            @Override public void run () {
+                while (true) {
+                    try {
+                        warm(latest);
+                    } catch (Exception e) {
+                        log.warning("Failed to warm cache", "latest", latest, "error", e);
+                    }
+                    try {
+                        Thread.sleep(WARM_INTERVAL);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        };
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * Fetches the version named by the supplied latest config into the cache, if we haven't
+     * already, along with the patches that lead to it.
+     */
+    protected void warm (URL latest)
+        throws IOException
+    {
+        File config = File.createTempFile("latest", ".txt");
+        long version;
+        try {
+            if (!fetch(latest, config)) {
+                throw new IOException("Latest config not found");
+            }
+            Object vstr = ConfigUtil.parseConfig(config, false).get("version");
+            version = Long.parseLong(String.valueOf(vstr));
+        } finally {
+            config.delete();
+        }
+        if (version <= _warmed) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        Version vers = getVersion(version);
+        for (String path : vers.rsrcs.keySet()) {
+            getFile(version, path);
+        }
+
+        // fetch the patches that lead to the new version, as listed by its patch index, or the
+        // patch from the last version we warmed if it has none
+        List<String> patches = new ArrayList<String>();
+        File ifile = getFile(version, PatchIndex.INDEX_FILE);
+        if (ifile != null) {
+            for (PatchIndex.Hop hop : PatchIndex.read(ifile).getHops()) {
+                if (hop.to == version) {
+                    patches.add(hop.getPatchFile());
+                }
+            }
+        } else if (_warmed > 0) {
+            patches.add(PatchIndex.patchFile(null, _warmed));
+            for (String auxgroup : vers.auxgroups) {
+                patches.add(PatchIndex.patchFile(auxgroup, _warmed));
+            }
+        }
+        for (String patch : patches) {
+            getFile(version, patch);
+        }
+
+        log.info("Warmed cache", "version", version, "resources", vers.rsrcs.size(),
+                 "patches", patches.size(), "millis", System.currentTimeMillis() - start);
+        _warmed = version;
+    }
+
+    /**
+     * Handles a single request.
+     */
+    protected void handle (Socket sock)
+    {
+        try {
+            sock.setSoTimeout(SOCKET_TIMEOUT);
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+            String[] request = ConnectionUtil.readLine(in, MAX_LINE).split(" ");
+            Map<String, String> headers = new HashMap<String, String>();
+            for (String line; (line = ConnectionUtil.readLine(in, MAX_LINE)).length() > 0; ) {
+                int cidx = line.indexOf(':');
+                if (cidx > 0) {
+                    headers.put(line.substring(0, cidx).trim().toLowerCase(),
+                                line.substring(cidx+1).trim());
+                }
+            }
+
+            if (request.length < 3 || !(request[0].equals("GET") || request[0].equals("HEAD"))) {
+                respond(out, "400 Bad Request");
+            } else {
+                handle(request[0].equals("HEAD"), request[1], headers, out);
+            }
+            out.flush();
+
+        } catch (IOException ioe) {
+            log.info("Failed to handle request", "client", sock.getRemoteSocketAddress(),
+                     "error", ioe);
+
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException ioe) {
+                // nothing doing
+            }
+        }
+    }
+
+    /**
+     * Handles a single request for the supplied (raw) request path, with the supplied headers
+     * (whose names are lower cased).
+     */
+    protected void handle (boolean head, String rpath, Map<String, String> headers,
+                           OutputStream out)
+        throws IOException
+    {
+        String path;
+        try {
+            path = new URI(rpath).getPath();
+        } catch (URISyntaxException use) {
+            respond(out, "400 Bad Request");
+            return;
+        }
+
+        // anything outside of a version's directory may change, so we pass it along
+        if (!path.startsWith(_vprefix)) {
+            passThrough(head, rpath, headers, out);
+            return;
+        }
+        String vpath = path.substring(_vprefix.length());
+        int sidx = vpath.indexOf('/');
+        long version;
+        try {
+            version = Long.parseLong(vpath.substring(0, sidx));
+        } catch (Exception e) {
+            passThrough(head, rpath, headers, out);
+            return;
+        }
+        String rel = vpath.substring(sidx+1);
+        if (rel.length() == 0 || !isWithin(getVersionDir(version), new File(rel))) {
+            respond(out, "400 Bad Request");
+            return;
+        }
+
+        File file;
+        try {
+            file = getFile(version, rel);
+        } catch (IOException ioe) {
+            log.warning("Failed to cache file", "version", version, "path", rel, "error", ioe);
+            respond(out, "502 Bad Gateway");
+            return;
+        }
+        if (file == null) {
+            respond(out, "404 Not Found");
+        } else {
+            sendFile(head, file, headers.get("range"), out);
+        }
+    }
+
+    /**
+     * Returns the cached copy of the specified file of the specified version, fetching and
+     * validating it if necessary, or null if the origin doesn't have it.
+     */
+    protected File getFile (long version, String path)
+        throws IOException
+    {
+        File file = new File(getVersionDir(version), path);
+        // files are only ever moved into place once they're complete and valid
+        if (file.exists()) {
+            return file;
+        }
+        synchronized (getLock(file.getPath())) {
+            if (file.exists()) {
+                return file;
+            }
+            Version vers = getVersion(version);
+            if (file.exists()) {
+                return file; // it was part of the version's metadata
+            }
+            URL remote = getRemote(version, path);
+            File part = new File(file.getParentFile(), PART_PREFIX + file.getName());
+            try {
+                if (!fetch(remote, part)) {
+                    return null;
+                }
+                // validate under the resource's own path, so that it's identified by its digest
+                Resource rsrc = vers.rsrcs.get(path);
+                if (rsrc != null) {
+                    Resource prsrc = new Resource(path, remote, part, false);
+                    if (!vers.digest.validateResource(prsrc, null)) {
+                        throw new IOException("Failed validation: " + remote);
+                    }
+                }
+                if (!FileUtil.renameTo(part, file)) {
+                    throw new IOException("Failed to move " + part + " into place");
+                }
+                log.info("Cached file", "version", version, "path", path,
+                         "size", file.length(), "validated", rsrc != null);
+                return file;
+            } finally {
+                part.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the metadata of the specified version, fetching it into the cache if necessary.
+     */
+    protected Version getVersion (long version)
+        throws IOException
+    {
+        synchronized (getLock("version:" + version)) {
+            Version vers = _versions.get(version);
+            if (vers != null) {
+                return vers;
+            }
+
+            // fetch the metadata into a directory of its own, so that it's only served once
+            // we've checked that it's consistent
+            File vdir = getVersionDir(version), mdir = vdir;
+            if (!new File(vdir, Digest.DIGEST_FILE).exists()) {
+                mdir = new File(vdir, PART_PREFIX + "metadata");
+                FileUtil.recursiveDelete(mdir);
+                mdir.mkdirs();
+                for (String file : METADATA_FILES) {
+                    if (!fetch(getRemote(version, file), new File(mdir, file))) {
+                        throw new IOException("Metadata not found for version " + version);
+                    }
+                }
+            }
+
+            vers = new Version();
+            Application app = new Application(mdir, null);
+            app.init(false);
+            vers.digest = new Digest(mdir, false);
+            if (!vers.digest.validateResource(app.getConfigResource(), null)) {
+                throw new IOException("Config does not match digest for version " + version);
+            }
+            if (mdir != vdir) {
+                // move the digest last, as its presence indicates that the metadata is in place
+                for (int ii = METADATA_FILES.length - 1; ii >= 0; ii--) {
+                    File file = new File(mdir, METADATA_FILES[ii]);
+                    if (!FileUtil.renameTo(file, new File(vdir, METADATA_FILES[ii]))) {
+                        throw new IOException("Failed to move " + file + " into place");
+                    }
+                }
+                mdir.delete();
+            }
+            addResources(vers, app.getCodeResources());
+            addResources(vers, app.getResources());
+            for (Application.AuxGroup aux : app.getAuxGroups()) {
+                vers.auxgroups.add(aux.name);
+                addResources(vers, aux.codes);
+                addResources(vers, aux.rsrcs);
+            }
+            _versions.put(version, vers);
+            return vers;
+        }
+    }
+
+    /**
+     * Passes the supplied request along to the origin server, without caching the result. The
+     * validators of a conditional request, and those of the response, are passed along too, so
+     * that clients can avoid refetching files that haven't changed.
+     */
+    protected void passThrough (boolean head, String rpath, Map<String, String> headers,
+                                OutputStream out)
+        throws IOException
+    {
+        HttpURLConnection conn = ConnectionUtil.openHttp(new URL(_origin + rpath));
+        InputStream in = null;
+        try {
+            if (head) {
+                conn.setRequestMethod("HEAD");
+            }
+            for (String[] names : CONDITIONAL_HEADERS) {
+                String value = headers.get(names[0].toLowerCase());
+                if (value != null) {
+                    conn.setRequestProperty(names[0], value);
+                }
+            }
+            int code = conn.getResponseCode();
+            StringBuilder validators = new StringBuilder();
+            for (String[] names : CONDITIONAL_HEADERS) {
+                String value = conn.getHeaderField(names[1]);
+                if (value != null) {
+                    validators.append((validators.length() == 0) ? "" : "\r\n");
+                    validators.append(names[1]).append(": ").append(value);
+                }
+            }
+            String extra = (validators.length() == 0) ? null : validators.toString();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                out.write(header("304 Not Modified", -1, extra));
+                return;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                respond(out, code + " " + conn.getResponseMessage());
+                return;
+            }
+            long length = conn.getContentLength();
+            out.write(header("200 OK", length, extra));
+            if (!head) {
+                in = conn.getInputStream();
+                StreamUtil.copy(in, out);
+            }
+        } finally {
+            StreamUtil.close(in);
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Sends the supplied file, or the requested range of it.
+     */
+    protected void sendFile (boolean head, File file, String range, OutputStream out)
+        throws IOException
+    {
+        long length = file.length(), start = 0, end = length - 1;
+        String status = "200 OK", crange = null;
+        // we support a single range, and ignore requests for several or that we can't parse,
+        // sending the whole file in a plain 200 response
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            try {
+                long[] bounds = parseRange(range.substring(6), length);
+                if (bounds == null) {
+                    out.write(header("416 Requested Range Not Satisfiable", 0,
+                                     "Content-Range: bytes */" + length));
+                    return;
+                }
+                start = bounds[0];
+                end = bounds[1];
+                status = "206 Partial Content";
+                crange = "Content-Range: bytes " + start + "-" + end + "/" + length;
+            } catch (NumberFormatException nfe) {
+                // ignored, as noted above
+            }
+        }
+
+        out.write(header(status, end - start + 1, crange));
+        if (head) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(start);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (long remain = end - start + 1; remain > 0; ) {
+                int read = raf.read(buffer, 0, (int)Math.min(buffer.length, remain));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                out.write(buffer, 0, read);
+                remain -= read;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Parses the supplied byte range specification (e.g. <code>0-499</code>, <code>500-</code>
+     * or <code>-500</code>) for a file of the supplied length.
+     *
+     * @return the first and last byte offsets of the range, or null if it is unsatisfiable.
+     */
+    protected static long[] parseRange (String spec, long length)
+    {
+        int didx = spec.indexOf('-');
+        if (didx < 0) {
+            throw new NumberFormatException("Invalid range: " + spec);
+        }
+        String first = spec.substring(0, didx).trim(), last = spec.substring(didx+1).trim();
+        long start, end;
+        if (first.length() == 0) {
+            // a suffix: the last N bytes
+            start = Math.max(0, length - Long.parseLong(last));
+            end = length - 1;
+        } else {
+            start = Long.parseLong(first);
+            end = (last.length() == 0) ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+        }
+        return (start > end || start >= length) ? null : new long[] { start, end };
+    }
+
+    /**
+     * Downloads the supplied URL into the supplied file.
+     *
+     * @return false if the origin doesn't have the file.
+     */
+    protected boolean fetch (URL url, File target)
+        throws IOException
+    {
+        URLConnection conn = ConnectionUtil.open(url);
+        if (conn instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection)conn).getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unable to fetch " + url + ": " + code);
+            }
+        }
+        long expected = conn.getContentLength();
+        target.getParentFile().mkdirs();
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = conn.getInputStream();
+            out = new FileOutputStream(target);
+            StreamUtil.copy(in, out);
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+        if (expected >= 0 && target.length() != expected) {
+            throw new IOException("Truncated download of " + url + " [expected=" + expected +
+                                  ", got=" + target.length() + "]");
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the supplied relative path, resolved against the supplied directory, names
+     * a file beneath it. The paths are canonicalized, so that neither <code>..</code> (with
+     * whatever separator the platform uses) nor an absolute path can escape the directory.
+     */
+    protected static boolean isWithin (File dir, File rel)
+        throws IOException
+    {
+        if (rel.isAbsolute()) {
+            return false;
+        }
+        String root = dir.getCanonicalPath() + File.separator;
+        return new File(dir, rel.getPath()).getCanonicalPath().startsWith(root);
+    }
+
+    protected File getVersionDir (long version)
+    {
+        return new File(_cacheDir, String.valueOf(version));
+    }
+
+    protected URL getRemote (long version, String path)
+        throws MalformedURLException
+    {
+        return new URL(_origin + _vprefix + version + "/" + path.replace(" ", "%20"));
+    }
+
+    protected Object getLock (String key)
+    {
+        Object lock = new Object();
+        Object olock = _locks.putIfAbsent(key, lock);
+        return (olock == null) ? lock : olock;
+    }
+
+    protected static void addResources (Version vers, List<Resource> rsrcs)
+    {
+        for (Resource rsrc : rsrcs) {
+            vers.rsrcs.put(rsrc.getPath(), rsrc);
+        }
+    }
+
+    protected static void respond (OutputStream out, String status)
+        throws IOException
+    {
+        out.write(header(status, 0, null));
+    }
+
+    protected static byte[] header (String status, long length, String extra)
+        throws IOException
+    {
+        StringBuilder buf = new StringBuilder("HTTP/1.0 ").append(status).append("\r\n");
+        if (length >= 0) {
+            buf.append("Content-Length: ").append(length).append("\r\n");
+        }
+        if (extra != null) {
+            buf.append(extra).append("\r\n");
+        }
+        buf.append("Accept-Ranges: bytes\r\nConnection: close\r\n\r\n");
+        return buf.toString().getBytes("US-ASCII");
+    }
+
+    /** The metadata of a single version. */
+    protected static class Version
+    {
+        public Digest digest;
+        public Map<String, Resource> rsrcs = new HashMap<String, Resource>();
+        public List<String> auxgroups = new ArrayList<String>();
+    }
+
+    protected File _cacheDir;
+
+    /** The scheme and authority of the origin server, and the path that precedes the version. */
+    protected String _origin, _vprefix;
+
+    protected Map<Long, Version> _versions = new ConcurrentHashMap<Long, Version>();
+    protected ConcurrentMap<String, Object> _locks = new ConcurrentHashMap<String, Object>();
+
+    /** The latest version we have fetched in advance. */
+    protected volatile long _warmed = -1;
+
+    /** The files that describe a version, the digest last. */
+    protected static final String[] METADATA_FILES = {
+        Application.CONFIG_FILE, Digest.DIGEST_FILE };
+
+    /** The conditional request headers that we pass through, and the validators they use. */
+    protected static final String[][] CONDITIONAL_HEADERS = {
+        { "If-None-Match", "ETag" }, { "If-Modified-Since", "Last-Modified" } };
+
+    /** The prefix of files that are being fetched. */
+    protected static final String PART_PREFIX = "_part_";
+
+    protected static final int DEFAULT_THREADS = 16;
+    protected static final int SOCKET_TIMEOUT = 30 * 1000;
+    protected static final int BUFFER_SIZE = 64 * 1024;
+    protected static final int MAX_LINE = 8192;
+
+    /** How often (in millis) we check for a new version to fetch in advance. */
+    protected static final long WARM_INTERVAL = 10 * 60 * 1000L;
+}
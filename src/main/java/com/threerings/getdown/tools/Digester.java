@@ -9,17 +9,24 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.Signature;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.codec.binary.Base64;
 
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.StringUtil;
+
 import com.threerings.getdown.data.Application;
 import com.threerings.getdown.data.Digest;
 import com.threerings.getdown.data.Resource;
@@ -44,6 +51,7 @@ public class Digester
         if (args.length == 4) {
             signDigest(new File(args[0]), new File(args[1]), args[2], args[3]);
         }
+        createMetadataBundle(new File(args[0]));
     }
 
     /**
@@ -68,25 +76,125 @@ public class Digester
             rsrcs.addAll(ag.rsrcs);
         }
 
-        // now generate the digest file
+        // now generate the digest file, and the binary form for those applications that use it
         Digest.createDigest(rsrcs, target);
+        if (app.hasBinaryDigest()) {
+            File btarget = new File(appdir, Digest.BINARY_DIGEST_FILE);
+            System.out.println("Generating binary digest file '" + btarget + "'...");
+            Digest.createBinaryDigest(rsrcs, btarget);
+        }
+
+        // and the compressed variants of any resources that are transferred compressed
+        for (Resource rsrc : rsrcs) {
+            if (rsrc.getCompression() != null) {
+                createCompressed(rsrc);
+            }
+        }
     }
 
     /**
-     * Creates a digest file in the specified application directory.
+     * Bundles the control files in the specified application directory into a single archive, if
+     * the application is configured to publish one. This must be called after the digest has been
+     * created and signed.
+     */
+    public static void createMetadataBundle (File appdir)
+        throws IOException
+    {
+        Application app = new Application(appdir, null);
+        app.init(false);
+        if (!app.hasMetadataBundle()) {
+            return;
+        }
+
+        File target = new File(appdir, Application.METADATA_BUNDLE);
+        System.out.println("Generating metadata bundle '" + target + "'...");
+        String[] files = { Application.CONFIG_FILE, app.getDigestFile(),
+                           app.getDigestFile() + Application.SIGNATURE_SUFFIX };
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(target));
+        try {
+            for (String file : files) {
+                File source = new File(appdir, file);
+                if (!source.exists()) {
+                    continue; // the digest is not signed
+                }
+                out.putNextEntry(new ZipEntry(file));
+                FileInputStream in = new FileInputStream(source);
+                try {
+                    StreamUtil.copy(in, out);
+                } finally {
+                    StreamUtil.close(in);
+                }
+            }
+        } finally {
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Writes the compressed variant of the supplied resource next to it, and checks that the
+     * variant decodes back to the resource.
+     */
+    public static void createCompressed (Resource rsrc)
+        throws IOException
+    {
+        File target = rsrc.getCompressedLocal();
+        rsrc.getCompression().encode(rsrc.getLocal(), target);
+
+        String expect = hashStream(new FileInputStream(rsrc.getLocal()));
+        String actual = hashStream(rsrc.getCompression().decode(new FileInputStream(target)));
+        if (!expect.equals(actual)) {
+            throw new IOException("Compressed variant does not match original: " + target);
+        }
+        System.out.println("Compressed '" + rsrc.getPath() + "': " + rsrc.getLocal().length() +
+                           " -> " + target.length() + " bytes");
+    }
+
+    /**
+     * Computes the MD5 hash of the contents of the supplied stream, and closes it.
+     */
+    protected static String hashStream (InputStream in)
+        throws IOException
+    {
+        try {
+            MessageDigest md = Digest.getMessageDigest();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+            return StringUtil.hexlate(md.digest());
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Signs the digest files in the specified application directory.
      */
     public static void signDigest (File appdir, File storePath, String storePass, String storeAlias)
         throws IOException, GeneralSecurityException
     {
-        File inputFile = new File(appdir, Digest.DIGEST_FILE);
-        File signatureFile = new File(appdir, Digest.DIGEST_FILE + Application.SIGNATURE_SUFFIX);
-
         // initialize the keystore
         KeyStore store = KeyStore.getInstance("JKS");
         FileInputStream storeInput = new FileInputStream(storePath);
         store.load(storeInput, storePass.toCharArray());
         PrivateKey key = (PrivateKey)store.getKey(storeAlias, storePass.toCharArray());
 
+        signFile(new File(appdir, Digest.DIGEST_FILE), key);
+        File binary = new File(appdir, Digest.BINARY_DIGEST_FILE);
+        if (binary.exists()) {
+            signFile(binary, key);
+        }
+    }
+
+    /**
+     * Writes a signature for the supplied file next to it.
+     */
+    protected static void signFile (File inputFile, PrivateKey key)
+        throws IOException, GeneralSecurityException
+    {
+        File signatureFile = new File(inputFile.getPath() + Application.SIGNATURE_SUFFIX);
+
         // sign the digest file
         Signature sig = Signature.getInstance("SHA1withRSA");
         FileInputStream dataInput = new FileInputStream(inputFile);
@@ -94,13 +202,21 @@ public class Digester
         int length;
 
         sig.initSign(key);
-        while ((length = dataInput.read(buffer)) != -1) {
-            sig.update(buffer, 0, length);
+        try {
+            while ((length = dataInput.read(buffer)) != -1) {
+                sig.update(buffer, 0, length);
+            }
+        } finally {
+            StreamUtil.close(dataInput);
         }
 
         // Write out the signature
         FileOutputStream signatureOutput = new FileOutputStream(signatureFile);
-        String signed = new String(Base64.encodeBase64(sig.sign()));
-        signatureOutput.write(signed.getBytes("utf8"));
+        try {
+            String signed = new String(Base64.encodeBase64(sig.sign()));
+            signatureOutput.write(signed.getBytes("utf8"));
+        } finally {
+            StreamUtil.close(signatureOutput);
+        }
     }
 }
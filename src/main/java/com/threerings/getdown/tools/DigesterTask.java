@@ -76,6 +76,7 @@ public class DigesterTask extends Task
             if (_storepath != null) {
                 Digester.signDigest(_appdir, _storepath, _storepass, _storealias);
             }
+            Digester.createMetadataBundle(_appdir);
         } catch (IOException ioe) {
             throw new BuildException("Error creating digest: " + ioe.getMessage(), ioe);
         } catch (GeneralSecurityException gse) {
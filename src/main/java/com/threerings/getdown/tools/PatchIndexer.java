@@ -0,0 +1,215 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.threerings.getdown.data.Application;
+import com.threerings.getdown.data.Digest;
+import com.threerings.getdown.data.PatchIndex;
+import com.threerings.getdown.data.Resource;
+
+/**
+ * Generates the <code>patches.txt</code> index for a target version of an application from the
+ * patch files (created by {@link Differ}) found in the version directories that precede it. This
+ * allows clients that are several versions behind to chain patches together, and records how
+ * much data each earlier version would have to download without patching, so that clients can
+ * decide whether patching is worthwhile at all.
+ */
+public class PatchIndexer
+{
+    /**
+     * Creates the patch index for the specified target version.
+     *
+     * @param vsdir the directory that contains one subdirectory per application version (named
+     * by its version number).
+     * @param target the version for which to create the index.
+     */
+    public void createIndex (File vsdir, long target, boolean verbose)
+        throws IOException
+    {
+        File tvdir = new File(vsdir, String.valueOf(target));
+        if (!tvdir.isDirectory()) {
+            throw new IOException("Missing target version directory: " + tvdir);
+        }
+
+        // determine which versions are available
+        Set<Long> versions = new TreeSet<Long>();
+        File[] vdirs = vsdir.listFiles();
+        if (vdirs != null) {
+            for (File vdir : vdirs) {
+                try {
+                    long version = Long.parseLong(vdir.getName());
+                    if (vdir.isDirectory() && version <= target) {
+                        versions.add(version);
+                    }
+                } catch (NumberFormatException nfe) {
+                    // not a version directory, skip it
+                }
+            }
+        }
+
+        // add every patch file found in those version directories to the index
+        PatchIndex index = new PatchIndex(new ArrayList<String[]>());
+        for (long version : versions) {
+            File[] files = new File(vsdir, String.valueOf(version)).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                PatchIndex.Hop hop = parsePatch(file, version, versions);
+                if (hop != null) {
+                    if (verbose) {
+                        System.out.println("Patch: " + hop);
+                    }
+                    index.addHop(hop);
+                }
+            }
+        }
+
+        // note the size of the target version's resources so clients can compare the cost of
+        // patching with the cost of downloading everything
+        Application app = new Application(tvdir, null);
+        app.init(false);
+        List<Resource> rsrcs = new ArrayList<Resource>();
+        rsrcs.addAll(app.getCodeResources());
+        rsrcs.addAll(app.getResources());
+        index.setFullSize(null, totalSize(rsrcs));
+        addChangedSizes(index, vsdir, versions, target, null, rsrcs, verbose);
+        for (Application.AuxGroup ag : app.getAuxGroups()) {
+            rsrcs = new ArrayList<Resource>();
+            rsrcs.addAll(ag.codes);
+            rsrcs.addAll(ag.rsrcs);
+            index.setFullSize(ag.name, totalSize(rsrcs));
+            addChangedSizes(index, vsdir, versions, target, ag.name, rsrcs, verbose);
+        }
+
+        File ifile = new File(tvdir, PatchIndex.INDEX_FILE);
+        PrintStream out = new PrintStream(new FileOutputStream(ifile));
+        try {
+            index.write(out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Created patch index: " + ifile);
+    }
+
+    /**
+     * Parses the name of a patch file found in the directory of the specified version.
+     *
+     * @return the described hop or null if the file is not a patch file.
+     */
+    protected PatchIndex.Hop parsePatch (File file, long version, Set<Long> versions)
+    {
+        String name = file.getName();
+        if (!name.startsWith("patch") || !name.endsWith(".dat")) {
+            return null;
+        }
+        String spec = name.substring(5, name.length() - 4);
+        if (!spec.startsWith("-")) {
+            try {
+                return new PatchIndex.Hop(Long.parseLong(spec), version, null, file.length());
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+
+        // aux group names may end in digits, so pick the split that yields a known version
+        for (int ii = 2; ii < spec.length(); ii++) {
+            try {
+                long from = Long.parseLong(spec.substring(ii));
+                if (from < version && versions.contains(from)) {
+                    return new PatchIndex.Hop(from, version, spec.substring(1, ii), file.length());
+                }
+            } catch (NumberFormatException nfe) {
+                // keep looking
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Notes, for each earlier version that has a digest, the size of the supplied target version
+     * resources that changed since that version. That is what a client on that version downloads
+     * if it does not patch, which is often far less than the full size.
+     */
+    protected void addChangedSizes (PatchIndex index, File vsdir, Set<Long> versions, long target,
+                                    String auxgroup, List<Resource> rsrcs, boolean verbose)
+        throws IOException
+    {
+        Digest tdigest = getDigest(new File(vsdir, String.valueOf(target)));
+        if (tdigest == null) {
+            return;
+        }
+        for (long version : versions) {
+            Digest odigest = (version == target) ? null :
+                getDigest(new File(vsdir, String.valueOf(version)));
+            if (odigest == null) {
+                continue;
+            }
+            long size = 0L;
+            for (Resource rsrc : rsrcs) {
+                String digest = tdigest.getDigest(rsrc);
+                if (digest == null || !digest.equals(odigest.getDigest(rsrc))) {
+                    size += rsrc.getLocal().length();
+                }
+            }
+            if (verbose) {
+                System.out.println("Changed since " + version +
+                                   (auxgroup == null ? "" : (" (" + auxgroup + ")")) + ": " +
+                                   size + " bytes");
+            }
+            index.setChangedSize(auxgroup, version, size);
+        }
+    }
+
+    /**
+     * Loads the digest for the supplied version directory, returning null if it has none.
+     */
+    protected Digest getDigest (File vdir)
+        throws IOException
+    {
+        return new File(vdir, Digest.DIGEST_FILE).exists() ? new Digest(vdir) : null;
+    }
+
+    protected static long totalSize (List<Resource> rsrcs)
+    {
+        long size = 0L;
+        for (Resource rsrc : rsrcs) {
+            size += rsrc.getLocal().length();
+        }
+        return size;
+    }
+
+    public static void main (String[] args)
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: PatchIndexer [-verbose] versions_dir target_version");
+            System.exit(255);
+        }
+        boolean verbose = false;
+        int aidx = 0;
+        if (args[0].equals("-verbose")) {
+            verbose = true;
+            aidx++;
+        }
+        try {
+            new PatchIndexer().createIndex(
+                new File(args[aidx++]), Long.parseLong(args[aidx++]), verbose);
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(255);
+        }
+    }
+}
@@ -11,6 +11,8 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
@@ -66,20 +68,24 @@ public class Patcher
             // depending on the suffix, we do The Right Thing (tm)
             if (path.endsWith(CREATE)) {
                 path = strip(path, CREATE);
+                _touched.add(path);
                 System.out.println("Creating " + path + "...");
                 createFile(file, entry, new File(appdir, path));
 
             } else if (path.endsWith(PATCH)) {
                 path = strip(path, PATCH);
+                _touched.add(path);
                 System.out.println("Patching " + path + "...");
                 patchFile(file, entry, appdir, path);
 
             } else if (path.endsWith(DELETE)) {
                 path = strip(path, DELETE);
+                _touched.add(path);
                 System.out.println("Removing " + path + "...");
                 File target = new File(appdir, path);
-                if (!target.delete()) {
+                if (!target.delete() && target.exists()) {
                     System.err.println("Failure deleting '" + target + "'.");
+                    _errors++;
                 }
 
             } else {
@@ -92,6 +98,24 @@ public class Patcher
         file.close();
     }
 
+    /**
+     * Returns the paths, relative to the application directory, of the files that the patches
+     * applied by this patcher created, patched or deleted, or attempted to.
+     */
+    public Set<String> getTouchedPaths ()
+    {
+        return _touched;
+    }
+
+    /**
+     * Returns the number of files that the patches applied by this patcher failed to create,
+     * patch or delete.
+     */
+    public int getErrorCount ()
+    {
+        return _errors;
+    }
+
     protected String strip (String path, String suffix)
     {
         return path.substring(0, path.length() - suffix.length());
@@ -116,6 +140,8 @@ public class Patcher
         FileOutputStream fout = null;
         try {
             in = file.getInputStream(entry);
+            // replace rather than overwrite the file, as it may be linked to a shared copy
+            target.delete();
             fout = new FileOutputStream(target);
             int total = 0, read;
             while ((read = in.read(_buffer)) != -1) {
@@ -126,6 +152,7 @@ public class Patcher
 
         } catch (IOException ioe) {
             System.err.println("Error creating '" + target + "': " + ioe);
+            _errors++;
 
         } finally {
             StreamUtil.close(in);
@@ -155,6 +182,7 @@ public class Patcher
             // move the current version of the jar to .old
             if (!FileUtil.renameTo(target, otarget)) {
                 System.err.println("Failed to .oldify '" + target + "'.");
+                _errors++;
                 return;
             }
 
@@ -177,6 +205,7 @@ public class Patcher
             } else {
                 System.err.println("Error patching '" + target + "': " + ioe);
             }
+            _errors++;
 
         } finally {
             StreamUtil.close(fout);
@@ -217,6 +246,10 @@ public class Patcher
     protected ProgressObserver _obs;
     protected long _complete, _plength;
     protected byte[] _buffer;
+    protected int _errors;
+
+    /** The paths of the files that our patches touched. */
+    protected Set<String> _touched = new HashSet<String>();
 
     protected static final int COPY_BUFFER_SIZE = 4096;
 }
@@ -0,0 +1,120 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import com.threerings.getdown.data.Properties;
+
+/**
+ * Used by an application launched by Getdown to obtain its lazy auxiliary groups: those listed
+ * in the <code>lazy_auxgroups</code> config value, which Getdown downloads while the application
+ * runs. Requesting a group moves it to the front of Getdown's queue and downloads it at full
+ * speed; a group that isn't active is activated, so that it is kept up to date from then on.
+ */
+public class AuxGroupClient
+{
+    /** The state of a group that is valid and ready for use. */
+    public static final String READY = "READY";
+
+    /** The state of an active group that is still to be downloaded or validated. */
+    public static final String PENDING = "PENDING";
+
+    /** The state of a group that has not been activated. */
+    public static final String INACTIVE = "INACTIVE";
+
+    /** The state of a group that Getdown failed to download. Followed by the reason. */
+    public static final String FAILED = "FAILED";
+
+    /** The state of a group that the application does not define as lazy. */
+    public static final String UNKNOWN = "UNKNOWN";
+
+    /**
+     * Returns true if this application was launched by a Getdown that will supply its lazy
+     * auxiliary groups.
+     */
+    public static boolean isAvailable ()
+    {
+        return System.getProperty(Properties.AUXGROUP_PORT) != null;
+    }
+
+    /**
+     * Creates a client that talks to the Getdown that launched us.
+     *
+     * @exception IOException thrown if we were not launched by such a Getdown.
+     */
+    public AuxGroupClient ()
+        throws IOException
+    {
+        _port = Integer.getInteger(Properties.AUXGROUP_PORT, -1);
+        if (_port < 0) {
+            throw new IOException("Not launched with lazy auxiliary groups");
+        }
+    }
+
+    /**
+     * Returns the current state of the specified group, one of {@link #READY}, {@link #PENDING},
+     * {@link #INACTIVE}, {@link #FAILED} (followed by the reason) or {@link #UNKNOWN}.
+     */
+    public String getState (String auxgroup)
+        throws IOException
+    {
+        return send("STATUS", auxgroup);
+    }
+
+    /**
+     * Returns true if the specified group has been downloaded and validated.
+     */
+    public boolean isReady (String auxgroup)
+        throws IOException
+    {
+        return READY.equals(getState(auxgroup));
+    }
+
+    /**
+     * Requests the specified group, activating it if need be, and blocks until it is ready.
+     *
+     * @exception IOException thrown if the group could not be obtained.
+     */
+    public void fetch (String auxgroup)
+        throws IOException
+    {
+        String state = send("FETCH", auxgroup);
+        if (!READY.equals(state)) {
+            throw new IOException("Failed to fetch " + auxgroup + ": " + state);
+        }
+    }
+
+    /**
+     * Sends a single request to Getdown and returns its response.
+     */
+    protected String send (String command, String auxgroup)
+        throws IOException
+    {
+        Socket sock = new Socket(InetAddress.getByName(null), _port);
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write((command + " " + auxgroup + "\n").getBytes("UTF-8"));
+            out.flush();
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(sock.getInputStream(), "UTF-8"));
+            String response = in.readLine();
+            if (response == null) {
+                throw new IOException("Getdown closed the connection");
+            }
+            return response;
+        } finally {
+            sock.close();
+        }
+    }
+
+    protected int _port;
+}
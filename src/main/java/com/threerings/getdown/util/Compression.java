@@ -0,0 +1,139 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Collection;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.samskivert.io.StreamUtil;
+
+/**
+ * The encodings in which resources may be published alongside their plain selves, to save
+ * bandwidth when they are transferred. A compressed variant lives next to the resource on the
+ * server, with the encoding's suffix appended to its name (e.g. <code>foo.dat.gz</code>). The
+ * variant is decoded as it is downloaded, so digests are always computed on the plain bytes.
+ */
+public enum Compression
+{
+    /** Gzip (deflate) compression, which the JVM supports without further libraries. */
+    GZIP("gz") {
+        @Override public InputStream decode (InputStream in) throws IOException {
+            return new GZIPInputStream(in, 8192);
+        }
+        @Override public void encode (File source, File target) throws IOException {
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                in = new FileInputStream(source);
+                out = gzip(new FileOutputStream(target));
+                StreamUtil.copy(in, out);
+                out.close();
+                out = null;
+            } finally {
+                StreamUtil.close(in);
+                StreamUtil.close(out);
+            }
+        }
+    },
+
+    /** Jars converted to {@link SolidJar} form, which compresses far better than the jars. */
+    SOLID_JAR("sjar") {
+        @Override public InputStream decode (InputStream in) throws IOException {
+            return SolidJar.decode(in);
+        }
+        @Override public void encode (File source, File target) throws IOException {
+            SolidJar.encode(source, target);
+        }
+    };
+
+    /** File suffixes of formats that are already compressed, which we don't bother to
+     * recompress. */
+    public static final String[] COMPRESSED_SUFFIXES = {
+        ".jar", ".zip", ".gz", ".bz2", ".xz", ".zst", ".png", ".jpg", ".jpeg", ".gif", ".ogg",
+        ".mp3", ".mp4" };
+
+    /**
+     * Returns the compression with the specified suffix, or null if we know of no such
+     * compression.
+     */
+    public static Compression forSuffix (String suffix)
+    {
+        for (Compression comp : values()) {
+            if (comp.getSuffix().equals(suffix)) {
+                return comp;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if a resource with the specified path is worth transferring compressed, that
+     * is, it is not in a format that is already compressed and does not have one of the supplied
+     * (application configured) suffixes.
+     */
+    public static boolean shouldCompress (String path, Collection<String> skipSuffixes)
+    {
+        String lpath = path.toLowerCase();
+        for (String suffix : COMPRESSED_SUFFIXES) {
+            if (lpath.endsWith(suffix)) {
+                return false;
+            }
+        }
+        for (String suffix : skipSuffixes) {
+            if (lpath.endsWith(suffix.toLowerCase())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the suffix appended to the name of a resource to obtain the name of its variant in
+     * this compression.
+     */
+    public String getSuffix ()
+    {
+        return _suffix;
+    }
+
+    /**
+     * Returns a stream that decompresses the supplied stream.
+     */
+    public abstract InputStream decode (InputStream in) throws IOException;
+
+    /**
+     * Writes the compressed form of the supplied source file to the specified target file.
+     */
+    public abstract void encode (File source, File target) throws IOException;
+
+    /**
+     * Returns a stream that gzips data written to it, as tightly as possible, into the supplied
+     * stream. The returned stream must be closed to complete the compressed data.
+     */
+    public static OutputStream gzip (OutputStream out)
+        throws IOException
+    {
+        return new GZIPOutputStream(out, 8192) {
+            { def.setLevel(Deflater.BEST_COMPRESSION); }
+        };
+    }
+
+    Compression (String suffix)
+    {
+        _suffix = suffix;
+    }
+
+    protected final String _suffix;
+}
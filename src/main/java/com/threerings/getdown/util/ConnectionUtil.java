@@ -6,6 +6,7 @@
 package com.threerings.getdown.util;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
@@ -46,4 +47,24 @@ public class ConnectionUtil
     {
         return (HttpURLConnection)open(url);
     }
+
+    /**
+     * Reads a line of an HTTP request, omitting its terminator.
+     *
+     * @param maxLength the length beyond which the line is considered malformed.
+     */
+    public static String readLine (InputStream in, int maxLength)
+        throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        for (int c; (c = in.read()) != '\n'; ) {
+            if (c == -1 || line.length() > maxLength) {
+                throw new IOException("Malformed request");
+            }
+            if (c != '\r') {
+                line.append((char)c);
+            }
+        }
+        return line.toString();
+    }
 }
@@ -11,6 +11,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Reader;
+import java.lang.reflect.Method;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -80,6 +81,63 @@ public class FileUtil
         }
     }
 
+    /**
+     * Copies the specified source file to the specified destination file, replacing it.
+     */
+    public static void copy (File source, File dest)
+        throws IOException
+    {
+        FileInputStream fin = new FileInputStream(source);
+        FileOutputStream fout = null;
+        try {
+            fout = new FileOutputStream(dest);
+            StreamUtil.copy(fin, fout);
+        } finally {
+            StreamUtil.close(fin);
+            StreamUtil.close(fout);
+        }
+    }
+
+    /**
+     * Creates a hard link to the specified source file at the specified destination, so that the
+     * two share their contents, or copies the file if we can't link it. Links are created via
+     * reflection, as only Java 7 and newer VMs can create them.
+     */
+    public static void linkOrCopy (File source, File dest)
+        throws IOException
+    {
+        dest.getParentFile().mkdirs();
+        if (dest.exists() && !dest.delete()) {
+            throw new IOException("Unable to replace " + dest);
+        }
+        if (_createLink != null) {
+            try {
+                _createLink.invoke(null, _toPath.invoke(dest), _toPath.invoke(source));
+                return;
+            } catch (Exception e) {
+                // the file system may not support links, in which case we'll copy
+                log.info("Failed to link, copying", "source", source, "error", e);
+            }
+        }
+        copy(source, dest);
+    }
+
+    /**
+     * Deletes the specified file, or the specified directory and everything in it.
+     *
+     * @return true if everything was deleted, false otherwise.
+     */
+    public static boolean recursiveDelete (File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                recursiveDelete(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
     /**
      * Reads the contents of the supplied input stream into a list of lines. Closes the reader on
      * successful or failed completion.
@@ -96,4 +154,17 @@ public class FileUtil
         }
         return lines;
     }
+
+    /** The means by which we create hard links, or null if this VM can't. */
+    protected static Method _toPath, _createLink;
+    static {
+        try {
+            Class<?> pclass = Class.forName("java.nio.file.Path");
+            Class<?> files = Class.forName("java.nio.file.Files");
+            _toPath = File.class.getMethod("toPath");
+            _createLink = files.getMethod("createLink", pclass, pclass);
+        } catch (Exception e) {
+            // we're running on an older VM
+        }
+    }
 }
@@ -0,0 +1,456 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * A class loader that finds classes and resources in a list of jar files via an index that maps
+ * each directory (package) in the jars to the jars that contain it. A lookup need only check the
+ * jars that contain the named entry's directory, rather than every jar in turn, which makes a
+ * difference when there are many jars.
+ *
+ * <p> The jars named by the <code>Class-Path</code> attributes of the jars' manifests, which a
+ * {@link URLClassLoader} would also search, are indexed along with them.
+ *
+ * <p> The index is built when the loader is first created for a set of jars and saved to the
+ * supplied file, from which it is read when the loader is next created for the same jars. If the
+ * index can neither be read nor built, for example because a <code>Class-Path</code> names a
+ * directory, the loader searches every jar, as would a {@link URLClassLoader}.
+ */
+public class IndexedClassLoader extends URLClassLoader
+{
+    /**
+     * Creates a loader for the supplied jar files.
+     *
+     * @param index the file from which the index of the jars is read, or to which it is written
+     * if it is missing or was built for different jars.
+     */
+    public IndexedClassLoader (List<File> jars, File index, ClassLoader parent)
+    {
+        super(toURLs(jars), parent);
+        _given = jars.size();
+        setJars(jars);
+        try {
+            if (!readIndex(index)) {
+                long start = System.currentTimeMillis();
+                buildIndex();
+                writeIndex(index);
+                log.info("Indexed classpath", "jars", _jars.length, "dirs", _index.size(),
+                         "millis", System.currentTimeMillis() - start);
+            }
+        } catch (IOException ioe) {
+            log.warning("Unable to index classpath, searching it in full", "error", ioe);
+            _index = null;
+            setJars(jars);
+        }
+    }
+
+    /**
+     * Returns the jars that this loader searches via its index, which are the jars with which it
+     * was created followed by those named by their manifests, or just the former if it has no
+     * index.
+     */
+    public List<File> getJars ()
+    {
+        return Collections.unmodifiableList(Arrays.asList(_jars));
+    }
+
+    @Override
+    protected Class<?> findClass (String name)
+        throws ClassNotFoundException
+    {
+        if (_index == null) {
+            return super.findClass(name);
+        }
+        String path = name.replace('.', '/') + ".class";
+        try {
+            for (int jidx : getCandidates(path)) {
+                JarFile jar = getJar(jidx);
+                JarEntry entry = jar.getJarEntry(path);
+                if (entry != null) {
+                    return defineClass(name, jidx, jar, entry);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new ClassNotFoundException(name, ioe);
+        }
+        throw new ClassNotFoundException(name);
+    }
+
+    @Override
+    public URL findResource (String name)
+    {
+        if (_index == null) {
+            return super.findResource(name);
+        }
+        List<URL> urls = findResourceURLs(name, true);
+        return urls.isEmpty() ? null : urls.get(0);
+    }
+
+    @Override
+    public Enumeration<URL> findResources (String name)
+        throws IOException
+    {
+        if (_index == null) {
+            return super.findResources(name);
+        }
+        return Collections.enumeration(findResourceURLs(name, false));
+    }
+
+    /**
+     * Returns the URLs of the jar entries with the specified name, in classpath order.
+     */
+    protected List<URL> findResourceURLs (String name, boolean first)
+    {
+        List<URL> urls = new ArrayList<URL>();
+        for (int jidx : getCandidates(name)) {
+            try {
+                if (getJar(jidx).getEntry(name) != null) {
+                    urls.add(new URL("jar:" + _urls[jidx] + "!/" + name));
+                    if (first) {
+                        break;
+                    }
+                }
+            } catch (IOException ioe) {
+                log.warning("Failed to search jar", "jar", _jars[jidx], "error", ioe);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Defines the class with the supplied name from the supplied jar entry.
+     */
+    protected Class<?> defineClass (String name, int jidx, JarFile jar, JarEntry entry)
+        throws IOException
+    {
+        byte[] data = new byte[(int)entry.getSize()];
+        DataInputStream in = new DataInputStream(jar.getInputStream(entry));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        int didx = name.lastIndexOf('.');
+        if (didx >= 0) {
+            String pkgname = name.substring(0, didx);
+            synchronized (this) {
+                if (getPackage(pkgname) == null) {
+                    Manifest man = jar.getManifest();
+                    if (man != null) {
+                        definePackage(pkgname, man, _urls[jidx]);
+                    } else {
+                        definePackage(pkgname, null, null, null, null, null, null, null);
+                    }
+                }
+            }
+        }
+
+        // the signers of an entry are known once it has been read in full
+        CodeSource source = new CodeSource(_urls[jidx], entry.getCodeSigners());
+        return defineClass(name, data, 0, data.length, source);
+    }
+
+    /**
+     * Returns the indices of the jars that may contain the specified entry.
+     */
+    protected int[] getCandidates (String path)
+    {
+        int[] jidxs = _index.get(getDirectory(path));
+        return (jidxs == null) ? NO_JARS : jidxs;
+    }
+
+    /**
+     * Returns the specified jar, opening it if it has not yet been opened.
+     */
+    protected synchronized JarFile getJar (int jidx)
+        throws IOException
+    {
+        if (_files[jidx] == null) {
+            _files[jidx] = new JarFile(_jars[jidx]);
+        }
+        return _files[jidx];
+    }
+
+    /**
+     * Reads our index from the supplied file.
+     *
+     * @return true if the index was read, false if it is missing or was built for other jars.
+     */
+    protected boolean readIndex (File index)
+    {
+        if (!index.exists()) {
+            return false;
+        }
+        try {
+            List<String> lines = FileUtil.readLines(
+                new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            String header = getHeader(_given) + " ";
+            if (lines.isEmpty() || !lines.get(0).startsWith(header)) {
+                return false;
+            }
+            int count = Integer.parseInt(lines.get(0).substring(header.length()));
+            if (count < _given || lines.size() < count + 1) {
+                return false;
+            }
+            // the jars named by manifests follow those we were given
+            List<File> jars = new ArrayList<File>(Arrays.asList(_jars));
+            for (int ii = _given; ii < count; ii++) {
+                jars.add(new File(lines.get(ii+1).split(" ", 3)[2]));
+            }
+            for (int ii = 0; ii < count; ii++) {
+                if (!lines.get(ii+1).equals(describe(jars.get(ii)))) {
+                    log.info("Classpath has changed, reindexing", "jar", jars.get(ii));
+                    return false;
+                }
+            }
+            setJars(jars);
+            Map<String, int[]> dirs = new HashMap<String, int[]>();
+            for (String line : lines.subList(count + 1, lines.size())) {
+                String[] bits = line.split(" ", 2);
+                String[] idxs = bits[0].split(",");
+                int[] jidxs = new int[idxs.length];
+                for (int ii = 0; ii < idxs.length; ii++) {
+                    jidxs[ii] = Integer.parseInt(idxs[ii]);
+                    if (jidxs[ii] < 0 || jidxs[ii] >= _jars.length) {
+                        throw new IOException("Invalid jar index: " + line);
+                    }
+                }
+                dirs.put((bits.length > 1) ? bits[1] : "", jidxs);
+            }
+            _index = dirs;
+            return true;
+
+        } catch (Exception e) {
+            log.warning("Failed to read classpath index", "file", index, "error", e);
+            return false;
+        }
+    }
+
+    /**
+     * Builds our index from the contents of our jars and those named by their manifests.
+     */
+    protected void buildIndex ()
+        throws IOException
+    {
+        // add the jars named by our jars' manifests (and theirs, and so on), skipping those that
+        // don't exist, as does URLClassLoader
+        List<File> jars = new ArrayList<File>(Arrays.asList(_jars));
+        for (int jidx = 0; jidx < jars.size(); jidx++) {
+            File jar = jars.get(jidx);
+            Manifest man = getJar(jidx).getManifest();
+            String cpath = (man == null) ? null :
+                man.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+            if (cpath == null) {
+                continue;
+            }
+            for (String entry : cpath.trim().split("\\s+")) {
+                if (entry.length() == 0) {
+                    continue;
+                }
+                File file = resolve(jar, entry);
+                if (file != null && !file.exists()) {
+                    continue;
+                }
+                if (file == null || file.isDirectory()) {
+                    throw new IOException("Unable to index " + entry + " on Class-Path of " + jar);
+                }
+                if (!jars.contains(file)) {
+                    jars.add(file);
+                    setJars(jars);
+                }
+            }
+        }
+
+        Map<String, List<Integer>> dirs = new HashMap<String, List<Integer>>();
+        for (int jidx = 0; jidx < _jars.length; jidx++) {
+            for (JarEntry entry : Collections.list(getJar(jidx).entries())) {
+                String dir = getDirectory(entry.getName());
+                List<Integer> jidxs = dirs.get(dir);
+                if (jidxs == null) {
+                    dirs.put(dir, jidxs = new ArrayList<Integer>());
+                }
+                if (jidxs.isEmpty() || jidxs.get(jidxs.size()-1) != jidx) {
+                    jidxs.add(jidx);
+                }
+            }
+        }
+        _index = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> entry : dirs.entrySet()) {
+            List<Integer> jidxs = entry.getValue();
+            int[] array = new int[jidxs.size()];
+            for (int ii = 0; ii < array.length; ii++) {
+                array[ii] = jidxs.get(ii);
+            }
+            _index.put(entry.getKey(), array);
+        }
+    }
+
+    /**
+     * Writes our index to the supplied file. Failure to do so is not fatal, as the index will
+     * simply be built anew next time.
+     */
+    protected void writeIndex (File index)
+    {
+        File temp = new File(index.getPath() + "_new");
+        try {
+            PrintWriter out = new PrintWriter(
+                new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            try {
+                out.println(getHeader(_given) + " " + _jars.length);
+                for (File jar : _jars) {
+                    out.println(describe(jar));
+                }
+                for (Map.Entry<String, int[]> entry : _index.entrySet()) {
+                    StringBuilder buf = new StringBuilder();
+                    for (int jidx : entry.getValue()) {
+                        buf.append((buf.length() == 0) ? "" : ",").append(jidx);
+                    }
+                    out.println(buf.append(" ").append(entry.getKey()));
+                }
+            } finally {
+                out.close();
+            }
+            if (out.checkError() || !FileUtil.renameTo(temp, index)) {
+                throw new IOException("Unable to write " + index);
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to save classpath index", "file", index, "error", ioe);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Makes the supplied jars the ones we search, those that we were given first.
+     */
+    protected void setJars (List<File> jars)
+    {
+        JarFile[] files = new JarFile[jars.size()];
+        if (_files != null) {
+            System.arraycopy(_files, 0, files, 0, Math.min(_files.length, files.length));
+            for (int ii = files.length; ii < _files.length; ii++) {
+                close(_files[ii]);
+            }
+        }
+        _jars = jars.toArray(new File[jars.size()]);
+        _files = files;
+        _urls = toURLs(jars);
+    }
+
+    /**
+     * Returns the start of the first line of an index of our jars, which identifies its format
+     * and the number of jars we were given. It is followed by the number of jars that the index
+     * lists, including those named by manifests.
+     */
+    protected static String getHeader (int given)
+    {
+        return INDEX_HEADER + " " + given;
+    }
+
+    /**
+     * Resolves the supplied <code>Class-Path</code> entry of the supplied jar's manifest.
+     *
+     * @return the named file, or null if it is not a local file.
+     */
+    protected static File resolve (File jar, String entry)
+    {
+        try {
+            URL url = new URL(jar.getAbsoluteFile().getParentFile().toURI().toURL(), entry);
+            return url.getProtocol().equals("file") ? new File(url.toURI()) : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the directory that contains the specified entry, with a trailing slash, or the
+     * empty string for an entry at the root of a jar.
+     */
+    protected static String getDirectory (String path)
+    {
+        int end = path.endsWith("/") ? path.length() - 1 : path.length();
+        return path.substring(0, path.lastIndexOf('/', end - 1) + 1);
+    }
+
+    /**
+     * Describes the supplied jar for the purpose of noticing when it changes.
+     */
+    protected static String describe (File jar)
+    {
+        return jar.length() + " " + jar.lastModified() + " " + jar.getAbsolutePath();
+    }
+
+    protected static void close (JarFile jar)
+    {
+        if (jar != null) {
+            try {
+                jar.close();
+            } catch (IOException ioe) {
+                // nothing doing
+            }
+        }
+    }
+
+    protected static URL[] toURLs (List<File> jars)
+    {
+        URL[] urls = new URL[jars.size()];
+        for (int ii = 0; ii < urls.length; ii++) {
+            try {
+                urls[ii] = new URL("file", "", jars.get(ii).getAbsolutePath());
+            } catch (MalformedURLException mue) {
+                throw new RuntimeException(mue); // not possible for file URLs
+            }
+        }
+        return urls;
+    }
+
+    /** The jars from which we load, those we were given followed by those named by manifests. */
+    protected File[] _jars;
+
+    /** The number of jars with which we were created. */
+    protected int _given;
+
+    /** Our jars, opened as needed. */
+    protected JarFile[] _files;
+
+    /** The URLs of our jars. */
+    protected URL[] _urls;
+
+    /** Maps each directory in our jars to the indices of the jars that contain it, in order. */
+    protected Map<String, int[]> _index;
+
+    /** Starts the first line of an index file. */
+    protected static final String INDEX_HEADER = "# getdown classpath index 2";
+
+    protected static final int[] NO_JARS = new int[0];
+}
@@ -188,6 +188,73 @@ public class LaunchUtil
         return (osname.indexOf("windows 98") != -1 || osname.indexOf("windows me") != -1);
     }
 
+    /**
+     * Returns the major version (e.g. 8 or 17) of the JVM with the supplied executable, or -1 if
+     * it can't be determined. The version is read from the <code>release</code> file in the JVM's
+     * home directory, or from our own properties if it is the JVM in which we're running.
+     */
+    public static int getJVMMajorVersion (String vmpath)
+    {
+        File home;
+        try {
+            File bin = new File(vmpath).getCanonicalFile().getParentFile();
+            home = (bin == null) ? null : bin.getParentFile();
+        } catch (IOException ioe) {
+            home = null;
+        }
+        if (home == null) {
+            return -1;
+        }
+
+        String version = null;
+        File release = new File(home, "release");
+        if (release.exists()) {
+            try {
+                java.util.Properties props = new java.util.Properties();
+                FileInputStream in = new FileInputStream(release);
+                try {
+                    props.load(in);
+                } finally {
+                    StreamUtil.close(in);
+                }
+                version = props.getProperty("JAVA_VERSION");
+            } catch (IOException ioe) {
+                log.warning("Unable to read JVM release file", "file", release, "error", ioe);
+            }
+        }
+        if (version == null) {
+            try {
+                File ourHome = new File(System.getProperty("java.home")).getCanonicalFile();
+                if (home.equals(ourHome) || home.equals(ourHome.getParentFile())) {
+                    version = System.getProperty("java.specification.version");
+                }
+            } catch (IOException ioe) {
+                // fall through and report the version as unknown
+            }
+        }
+        return parseMajorVersion(version);
+    }
+
+    /**
+     * Parses the major version out of a Java version string, such as <code>1.8.0_292</code> or
+     * <code>"17.0.2"</code>, returning -1 if it can't be parsed.
+     */
+    public static int parseMajorVersion (String version)
+    {
+        if (version == null) {
+            return -1;
+        }
+        version = version.replace("\"", "").trim();
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        int end = 0;
+        while (end < version.length() && Character.isDigit(version.charAt(end))) {
+            end++;
+        }
+        return (end == 0) ? -1 : Integer.parseInt(version.substring(0, end));
+    }
+
     /**
      * Checks whether a Java Virtual Machine can be located in the supplied path.
      */
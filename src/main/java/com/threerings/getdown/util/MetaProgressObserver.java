@@ -28,7 +28,7 @@ public class MetaProgressObserver implements ProgressObserver
     // documentation inherited from interface
     public void progress (int percent)
     {
-        if (_totalSize > 0) {
+        if (_target != null && _totalSize > 0) {
             _target.progress((int)((_accum + (percent * _elementSize)) / _totalSize));
         }
     }
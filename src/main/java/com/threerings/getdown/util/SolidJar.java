@@ -0,0 +1,326 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Converts jar files to and from a "solid" form for transfer. Class files are small and each is
+ * deflated separately in a jar, so a jar compresses poorly; the solid form stores every deflated
+ * entry inflated, next to its neighbors, so that the whole archive can be compressed as one
+ * stream. The client re-deflates each entry with the settings that originally produced it, which
+ * yields a byte-identical jar.
+ *
+ * <p> The solid form is a gzipped sequence of records: raw bytes copied verbatim from the jar
+ * (headers, stored entries, and any entry that we can't reproduce exactly), and inflated entry
+ * contents along with the deflate level that reproduces them.
+ */
+public class SolidJar
+{
+    /**
+     * Converts the supplied jar file into its solid form.
+     */
+    public static void encode (File jar, File target)
+        throws IOException
+    {
+        Map<String, Long> csizes = new HashMap<String, Long>();
+        ZipFile zfile = new ZipFile(jar);
+        try {
+            for (Enumeration<? extends ZipEntry> iter = zfile.entries(); iter.hasMoreElements(); ) {
+                ZipEntry entry = iter.nextElement();
+                csizes.put(entry.getName(), entry.getCompressedSize());
+            }
+        } finally {
+            zfile.close();
+        }
+
+        RandomAccessFile in = new RandomAccessFile(jar, "r");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                Compression.gzip(new FileOutputStream(target))));
+            long length = in.length(), pos = 0L, rawStart = 0L;
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+
+            // walk the local file headers, which precede each entry's data
+            while (pos + LOCAL_HEADER_SIZE <= length) {
+                in.seek(pos);
+                in.readFully(header);
+                if (readInt(header, 0) != LOCAL_HEADER_SIG) {
+                    break; // we've reached the central directory
+                }
+                int flags = readShort(header, 6), method = readShort(header, 8);
+                long csize = readInt(header, 18) & 0xFFFFFFFFL;
+                int nlen = readShort(header, 26), xlen = readShort(header, 28);
+                byte[] name = new byte[nlen];
+                in.readFully(name);
+                long dataStart = pos + LOCAL_HEADER_SIZE + nlen + xlen;
+
+                // entries written in streaming fashion note their sizes after their data
+                boolean descriptor = (flags & 8) != 0;
+                if (descriptor) {
+                    Long size = csizes.get(new String(name, "UTF-8"));
+                    if (size == null || size < 0) {
+                        break; // we can't find the end of this entry, so copy the rest raw
+                    }
+                    csize = size;
+                }
+                if (csize == 0xFFFFFFFFL || dataStart + csize > length) {
+                    break; // zip64 or corrupt, copy the rest raw
+                }
+
+                if (method == ZipEntry.DEFLATED) {
+                    byte[] data = new byte[(int)csize];
+                    in.seek(dataStart);
+                    in.readFully(data);
+                    byte[] content = inflate(data);
+                    int level = (content == null) ? -1 : findLevel(content, data);
+                    if (level >= 0) {
+                        writeRaw(in, rawStart, dataStart, out);
+                        out.writeByte(DEFLATED);
+                        out.writeByte(level);
+                        out.writeInt(data.length);
+                        out.writeInt(content.length);
+                        out.write(content);
+                        rawStart = dataStart + csize;
+                    }
+                }
+
+                pos = dataStart + csize;
+                if (descriptor) {
+                    in.seek(pos);
+                    pos += (in.readInt() == DESCRIPTOR_SIG_BE) ? 16 : 12;
+                }
+            }
+
+            writeRaw(in, rawStart, length, out);
+            out.writeByte(END);
+            out.close();
+            out = null;
+
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a stream that reads the jar reconstructed from the supplied solid form.
+     */
+    public static InputStream decode (InputStream in)
+        throws IOException
+    {
+        return new Decoder(new DataInputStream(Compression.GZIP.decode(in)));
+    }
+
+    /** Reconstructs a jar, one record at a time. */
+    protected static class Decoder extends InputStream
+    {
+        public Decoder (DataInputStream in) {
+            _in = in;
+        }
+
+        @Override public int read () throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override public int read (byte[] b, int off, int len) throws IOException {
+            while (_pos == _count) {
+                if (!refill()) {
+                    return -1;
+                }
+            }
+            int read = Math.min(len, _count - _pos);
+            System.arraycopy(_buffer, _pos, b, off, read);
+            _pos += read;
+            return read;
+        }
+
+        @Override public void close () throws IOException {
+            _in.close();
+        }
+
+        protected boolean refill () throws IOException {
+            if (_done) {
+                return false;
+            }
+            int tag = _in.readByte();
+            switch (tag) {
+            case RAW:
+                _count = _in.readInt();
+                _buffer = ensureCapacity(_buffer, _count);
+                _in.readFully(_buffer, 0, _count);
+                break;
+
+            case DEFLATED:
+                int level = _in.readByte(), csize = _in.readInt();
+                byte[] content = new byte[_in.readInt()];
+                _in.readFully(content);
+                _buffer = ensureCapacity(_buffer, csize + DEFLATE_SLOP);
+                _count = deflate(content, level, _buffer);
+                if (_count != csize) {
+                    throw new IOException("Failed to reproduce jar entry [level=" + level +
+                                          ", expected=" + csize + ", got=" + _count + "]");
+                }
+                break;
+
+            case END:
+                _done = true;
+                return false;
+
+            default:
+                throw new IOException("Corrupt solid jar [tag=" + tag + "]");
+            }
+            _pos = 0;
+            return true;
+        }
+
+        protected DataInputStream _in;
+        protected byte[] _buffer = new byte[0];
+        protected int _pos, _count;
+        protected boolean _done;
+    }
+
+    /**
+     * Copies the specified region of the jar into raw records.
+     */
+    protected static void writeRaw (RandomAccessFile in, long start, long end, DataOutputStream out)
+        throws IOException
+    {
+        byte[] buffer = new byte[RAW_CHUNK];
+        in.seek(start);
+        for (long pos = start; pos < end; ) {
+            int count = (int)Math.min(RAW_CHUNK, end - pos);
+            in.readFully(buffer, 0, count);
+            out.writeByte(RAW);
+            out.writeInt(count);
+            out.write(buffer, 0, count);
+            pos += count;
+        }
+    }
+
+    /**
+     * Inflates the supplied raw deflate data, returning null if it's not valid.
+     */
+    protected static byte[] inflate (byte[] data)
+    {
+        Inflater inflater = new Inflater(true);
+        try {
+            // the JDK's inflater wants a dummy byte after raw deflate data
+            byte[] input = new byte[data.length + 1];
+            System.arraycopy(data, 0, input, 0, data.length);
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException dfe) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns the deflate level that turns the supplied content into exactly the supplied data,
+     * or -1 if no level does so (the jar was created by some other deflate implementation).
+     */
+    protected static int findLevel (byte[] content, byte[] data)
+    {
+        // zlib wants some room to spare when finishing, so don't hand it an exactly sized buffer
+        byte[] buffer = new byte[data.length + DEFLATE_SLOP];
+        for (int level : LEVELS) {
+            if (deflate(content, level, buffer) == data.length &&
+                equals(buffer, data, data.length)) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Deflates the supplied content into the supplied buffer. Returns the length of the deflated
+     * data, or a value larger than the buffer if it did not fit.
+     */
+    protected static int deflate (byte[] content, int level, byte[] buffer)
+    {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            int count = 0;
+            while (!deflater.finished() && count < buffer.length) {
+                count += deflater.deflate(buffer, count, buffer.length - count);
+            }
+            return deflater.finished() ? count : buffer.length + 1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    protected static boolean equals (byte[] a, byte[] b, int length)
+    {
+        for (int ii = 0; ii < length; ii++) {
+            if (a[ii] != b[ii]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static byte[] ensureCapacity (byte[] buffer, int size)
+    {
+        return (buffer.length >= size) ? buffer : new byte[size];
+    }
+
+    protected static int readShort (byte[] data, int off)
+    {
+        return (data[off] & 0xFF) | ((data[off+1] & 0xFF) << 8);
+    }
+
+    protected static int readInt (byte[] data, int off)
+    {
+        return readShort(data, off) | (readShort(data, off+2) << 16);
+    }
+
+    /** Record tags. */
+    protected static final int RAW = 0, DEFLATED = 1, END = 2;
+
+    /** The deflate levels to try when reproducing an entry, most likely (the default) first. */
+    protected static final int[] LEVELS = { 6, 9, 1, 2, 3, 4, 5, 7, 8 };
+
+    protected static final int LOCAL_HEADER_SIG = 0x04034b50;
+    protected static final int DESCRIPTOR_SIG_BE = 0x504b0708;
+    protected static final int LOCAL_HEADER_SIZE = 30;
+    protected static final int RAW_CHUNK = 64 * 1024;
+    protected static final int DEFLATE_SLOP = 64;
+}
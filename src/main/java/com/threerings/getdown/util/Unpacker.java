@@ -0,0 +1,543 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.StringUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Extracts the contents of jar files. The entries unpacked from a jar are recorded alongside it,
+ * so that when a new version of the jar is unpacked over the old, only the entries that changed
+ * are written out and those that are gone are removed.
+ */
+public class Unpacker
+{
+    /**
+     * Extracts the jar read from the supplied stream, which is being written to the specified jar
+     * file, into a staging directory, reading the stream to its end. Entries that are unchanged
+     * from those last unpacked from the jar file into the target directory are not extracted. The
+     * staged entries are moved into place by {@link #commit}. Along the way the digest of the jar
+     * is computed in the manner of {@link
+     * com.threerings.getdown.data.Resource#computeDigest}, which hashes the contents of the jar's
+     * entries in order of their names, so this is only possible if the entries are stored in that
+     * order.
+     *
+     * @return the digest of the jar, or null if its entries are not stored in order.
+     */
+    public static String unpack (InputStream in, File jar, File dir, File staging,
+                                 MessageDigest md)
+        throws IOException
+    {
+        md.reset();
+        if (!staging.isDirectory() && !staging.mkdirs()) {
+            throw new IOException("Unable to create directory " + staging);
+        }
+        Map<String, Unpacked> record = readRecord(jar);
+        in = new BufferedInputStream(in, BUFFER_SIZE);
+        ZipInputStream zin = new ZipInputStream(in);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        boolean ordered = true;
+        String last = null;
+        int count = 0;
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+            count++;
+            String name = entry.getName();
+            File target = getTarget(staging, name);
+            if (entry.isDirectory()) {
+                target.mkdirs();
+                continue;
+            }
+
+            // metadata is left out of the digest
+            boolean digested = !name.startsWith("META-INF");
+            if (digested) {
+                ordered = ordered && (last == null || name.compareTo(last) > 0);
+                last = name;
+            }
+
+            // an entry whose CRC isn't known until it has been read must be written out
+            OutputStream out = null;
+            if (!isUnchanged(record.get(name), entry.getCrc(), entry.getSize(),
+                             getTarget(dir, name))) {
+                File parent = target.getParentFile();
+                if (!parent.exists() && !parent.mkdirs()) {
+                    throw new IOException("Unable to create directory " + parent);
+                }
+                out = new FileOutputStream(target);
+            }
+            try {
+                int read;
+                while ((read = zin.read(buffer)) != -1) {
+                    if (out != null) {
+                        out.write(buffer, 0, read);
+                    }
+                    if (digested && ordered) {
+                        md.update(buffer, 0, read);
+                    }
+                }
+            } finally {
+                StreamUtil.close(out);
+            }
+        }
+
+        // a jar whose entries can only be found via its central directory (one that is appended
+        // to a launcher, say) can't be read as a stream
+        if (count == 0) {
+            throw new IOException("No entries found in stream");
+        }
+
+        // the jar's central directory follows its entries, and must be read as well
+        while (in.read(buffer) != -1) {
+            // keep reading
+        }
+        return ordered ? StringUtil.hexlate(md.digest()) : null;
+    }
+
+    /**
+     * Unpacks each of the supplied jar files into the directory to which it maps. The entries of
+     * all of the jars are unpacked concurrently, with a thread per processor. Small entries are
+     * unpacked in batches and large ones alone, so that the work is spread evenly even if there's
+     * but a single large jar. Each thread uses a single buffer, so memory use doesn't grow with the
+     * size or number of the jars.
+     *
+     * @param obs notified of our progress in terms of the compressed size of the entries
+     * unpacked, or null.
+     *
+     * @return the jars that could not be unpacked in full.
+     */
+    public static Set<File> unpack (Map<File, File> jars, ProgressObserver obs)
+    {
+        Set<File> failed = Collections.synchronizedSet(new HashSet<File>());
+        if (jars.isEmpty()) {
+            return failed;
+        }
+        Map<File, JarFile> opened = new LinkedHashMap<File, JarFile>();
+        Map<File, Map<String, Unpacked>> records = new HashMap<File, Map<String, Unpacked>>();
+        List<Batch> batches = new ArrayList<Batch>();
+        long total = 0L;
+        int unchanged = 0;
+        for (Map.Entry<File, File> job : jars.entrySet()) {
+            File file = job.getKey(), dir = job.getValue();
+            try {
+                JarFile jar = new JarFile(file);
+                opened.put(file, jar);
+                Map<String, Unpacked> record = readRecord(file);
+                records.put(file, record);
+                Batch batch = new Batch(jar, file, dir, failed);
+                for (JarEntry entry : Collections.list(jar.entries())) {
+                    File target = getTarget(dir, entry.getName());
+                    if (entry.isDirectory()) {
+                        target.mkdirs();
+                        continue;
+                    }
+                    if (isUnchanged(record.get(entry.getName()), entry.getCrc(), entry.getSize(),
+                                    target)) {
+                        unchanged++;
+                        continue;
+                    }
+                    long size = Math.max(entry.getCompressedSize(), 0L);
+                    if (batch.size > 0 && batch.size + size > BATCH_SIZE ||
+                        batch.entries.size() >= BATCH_ENTRIES) {
+                        batches.add(batch);
+                        batch = new Batch(jar, file, dir, failed);
+                    }
+                    batch.entries.add(entry);
+                    batch.size += size;
+                    total += size;
+                }
+                batches.add(batch);
+            } catch (IOException ioe) {
+                log.warning("Failed to unpack jar", "jar", file, "error", ioe);
+                failed.add(file);
+            }
+        }
+
+        int threads = Math.min(Math.max(Runtime.getRuntime().availableProcessors(), 2),
+                               Math.max(batches.size(), 1));
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        Progress progress = new Progress(obs, total);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Batch batch : batches) {
+                batch.progress = progress;
+                futures.add(exec.submit(batch));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            log.info("Unpacked jars", "jars", jars.size(), "unchanged", unchanged,
+                     "bytes", total);
+
+            // note what we unpacked and remove what's no longer there
+            for (Map.Entry<File, JarFile> job : opened.entrySet()) {
+                File file = job.getKey();
+                if (failed.contains(file)) {
+                    getRecordFile(file).delete();
+                    continue;
+                }
+                try {
+                    finish(job.getValue(), file, jars.get(file), records.get(file));
+                } catch (IOException ioe) {
+                    log.warning("Failed to record unpacked jar", "jar", file, "error", ioe);
+                    getRecordFile(file).delete();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            failed.addAll(jars.keySet());
+        } catch (ExecutionException ee) {
+            // our batches catch their own failures, so this shouldn't happen
+            log.warning("Unpacking failed", ee.getCause());
+            failed.addAll(jars.keySet());
+        } finally {
+            exec.shutdownNow();
+            for (JarFile jar : opened.values()) {
+                try {
+                    jar.close();
+                } catch (IOException ioe) {
+                    log.warning("Error closing jar", "jar", jar.getName(), "error", ioe);
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Moves the files in the supplied staging directory, into which the specified jar was
+     * unpacked, into the target directory, replacing any existing files, and then deletes the
+     * staging directory. The files of entries that the jar no longer contains are removed.
+     *
+     * @return true if all files were moved, false otherwise.
+     */
+    public static boolean commit (File staging, File jar, File dir)
+    {
+        Map<String, Unpacked> record = readRecord(jar);
+        boolean moved = move(staging, dir);
+        discard(staging);
+        if (!moved) {
+            getRecordFile(jar).delete();
+            return false;
+        }
+        try {
+            JarFile jfile = new JarFile(jar);
+            try {
+                finish(jfile, jar, dir, record);
+            } finally {
+                jfile.close();
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to record unpacked jar", "jar", jar, "error", ioe);
+            getRecordFile(jar).delete();
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the supplied staging directory and whatever was unpacked into it.
+     */
+    public static void discard (File staging)
+    {
+        if (!FileUtil.recursiveDelete(staging)) {
+            log.warning("Failed to delete unpack staging directory", "dir", staging);
+        }
+    }
+
+    /**
+     * Returns the file in which we record the entries unpacked from the supplied jar.
+     */
+    protected static File getRecordFile (File jar)
+    {
+        return new File(jar.getPath() + "_unpacked");
+    }
+
+    /**
+     * Reads the record of the entries last unpacked from the supplied jar, which is empty if
+     * there is no such record or it can't be read.
+     */
+    protected static Map<String, Unpacked> readRecord (File jar)
+    {
+        Map<String, Unpacked> record = new HashMap<String, Unpacked>();
+        File rfile = getRecordFile(jar);
+        if (!rfile.exists()) {
+            return record;
+        }
+        try {
+            for (String line : FileUtil.readLines(
+                     new InputStreamReader(new FileInputStream(rfile), "UTF-8"))) {
+                String[] bits = line.split(" ", 4);
+                if (bits.length == 4) {
+                    record.put(bits[3], new Unpacked(Long.parseLong(bits[0], 16),
+                                                     Long.parseLong(bits[1]),
+                                                     Long.parseLong(bits[2])));
+                }
+            }
+        } catch (Exception e) {
+            log.warning("Failed to read unpacked jar record", "file", rfile, "error", e);
+            record.clear();
+        }
+        return record;
+    }
+
+    /**
+     * Records the entries of the supplied jar, which has just been unpacked into the specified
+     * directory, and removes the files of the entries in its old record that it no longer
+     * contains, unless they have since been changed.
+     */
+    protected static void finish (JarFile jar, File file, File dir, Map<String, Unpacked> old)
+        throws IOException
+    {
+        File rfile = getRecordFile(file), tfile = new File(rfile.getPath() + "_new");
+        PrintWriter out = new PrintWriter(
+            new OutputStreamWriter(new FileOutputStream(tfile), "UTF-8"));
+        try {
+            for (JarEntry entry : Collections.list(jar.entries())) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName();
+                out.println(Long.toHexString(entry.getCrc()) + " " + entry.getSize() + " " +
+                            getTarget(dir, name).lastModified() + " " + name);
+                old.remove(name);
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError() || !FileUtil.renameTo(tfile, rfile)) {
+            throw new IOException("Unable to write " + rfile);
+        }
+
+        for (Map.Entry<String, Unpacked> entry : old.entrySet()) {
+            File target = getTarget(dir, entry.getKey());
+            if (!entry.getValue().matches(target) || !target.delete()) {
+                continue;
+            }
+            // remove any directories that are left empty
+            for (File parent = target.getParentFile(); !parent.equals(dir) && parent.delete();
+                 parent = parent.getParentFile()) {
+                // keep going
+            }
+        }
+    }
+
+    /**
+     * Returns true if the supplied file was unpacked from an entry with the specified CRC and
+     * size, and hasn't changed since.
+     */
+    protected static boolean isUnchanged (Unpacked unpacked, long crc, long size, File target)
+    {
+        return unpacked != null && crc >= 0 && unpacked.crc == crc && unpacked.size == size &&
+            unpacked.matches(target);
+    }
+
+    /**
+     * Moves the contents of the supplied source directory into the target directory.
+     */
+    protected static boolean move (File source, File target)
+    {
+        File[] files = source.listFiles();
+        if (files == null) {
+            log.warning("Unable to list unpacked files", "dir", source);
+            return false;
+        }
+        if (!target.exists() && !target.mkdirs()) {
+            log.warning("Unable to create directory", "dir", target);
+            return false;
+        }
+        boolean moved = true;
+        for (File file : files) {
+            File dest = new File(target, file.getName());
+            // a directory that doesn't yet exist can be moved in one go
+            if (file.isDirectory() && (dest.isDirectory() || !file.renameTo(dest))) {
+                moved = move(file, dest) && moved;
+            } else if (file.isFile() && !FileUtil.renameTo(file, dest)) {
+                log.warning("Unable to move unpacked file", "source", file, "dest", dest);
+                moved = false;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Returns the file to which the specified jar entry is unpacked, refusing entries that would
+     * land outside of the target directory.
+     */
+    protected static File getTarget (File dir, String name)
+        throws IOException
+    {
+        String path = name.replace('\\', '/');
+        if (path.startsWith("/") || path.equals("..") || path.startsWith("../") ||
+            path.endsWith("/..") || path.indexOf("/../") >= 0) {
+            throw new IOException("Refusing to unpack entry outside of target: " + name);
+        }
+        return new File(dir, name);
+    }
+
+    /**
+     * Writes the contents of the supplied jar entry to the specified file, replacing it.
+     */
+    protected static void write (JarFile jar, JarEntry entry, File target, byte[] buffer)
+        throws IOException
+    {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        // replace rather than overwrite the file, as it may be linked to another version's
+        target.delete();
+        InputStream in = jar.getInputStream(entry);
+        try {
+            RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                // reserving the space for a large file up front spares the file system from
+                // growing it piecemeal
+                if (entry.getSize() >= PREALLOCATE_SIZE) {
+                    out.setLength(entry.getSize());
+                }
+                long written = 0L;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    written += read;
+                }
+                out.setLength(written);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** What we know of a file that we unpacked from a jar entry. */
+    protected static class Unpacked
+    {
+        public final long crc, size, modified;
+
+        public Unpacked (long crc, long size, long modified) {
+            this.crc = crc;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /** Returns true if the supplied file is as we unpacked it. */
+        public boolean matches (File target) {
+            return target.isFile() && target.length() == size &&
+                target.lastModified() == modified;
+        }
+    }
+
+    /** A group of entries of a jar that are unpacked together. */
+    protected static class Batch implements Runnable
+    {
+        public final List<JarEntry> entries = new ArrayList<JarEntry>();
+        public long size;
+        public Progress progress;
+
+        public Batch (JarFile jar, File file, File dir, Set<File> failed) {
+            _jar = jar;
+            _file = file;
+            _dir = dir;
+            _failed = failed;
+        }
+
+        public void run () {
+            byte[] buffer = BUFFERS.get();
+            for (JarEntry entry : entries) {
+                if (Thread.currentThread().isInterrupted()) {
+                    _failed.add(_file);
+                    return;
+                }
+                try {
+                    write(_jar, entry, getTarget(_dir, entry.getName()), buffer);
+                } catch (Exception e) {
+                    log.warning("Failed to unpack jar entry", "jar", _file, "entry", entry,
+                                "error", e);
+                    _failed.add(_file);
+                }
+                progress.add(Math.max(entry.getCompressedSize(), 0L));
+            }
+        }
+
+        protected JarFile _jar;
+        protected File _file, _dir;
+        protected Set<File> _failed;
+    }
+
+    /** Reports the progress of our unpacking threads. */
+    protected static class Progress
+    {
+        public Progress (ProgressObserver obs, long total) {
+            _obs = obs;
+            _total = total;
+        }
+
+        public synchronized void add (long bytes) {
+            _done += bytes;
+            int percent = (_total == 0) ? 100 : (int)(100 * _done / _total);
+            if (_obs != null && percent != _percent) {
+                _percent = percent;
+                _obs.progress(percent);
+            }
+        }
+
+        protected ProgressObserver _obs;
+        protected long _total, _done;
+        protected int _percent = -1;
+    }
+
+    /** The buffer used by each of our unpacking threads. */
+    protected static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override protected byte[] initialValue () {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /** The size of the buffers used while unpacking. */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The compressed size of the entries that we unpack together as a batch. */
+    protected static final long BATCH_SIZE = 1024 * 1024;
+
+    /** The largest number of entries that we unpack together as a batch. */
+    protected static final int BATCH_ENTRIES = 64;
+
+    /** Entries at least this large (in bytes) have their space allocated before they're written. */
+    protected static final long PREALLOCATE_SIZE = 1024 * 1024;
+}
@@ -0,0 +1,122 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Digest}.
+ */
+public class DigestTest
+{
+    @Before public void createFiles () throws IOException
+    {
+        _appdir = File.createTempFile("digest", "");
+        _appdir.delete();
+        _appdir.mkdir();
+        for (String path : PATHS) {
+            File file = new File(_appdir, path);
+            write(file, path);
+            _rsrcs.add(new Resource(path, null, file, false));
+        }
+    }
+
+    @After public void deleteFiles ()
+    {
+        deleteAll(_appdir);
+    }
+
+    @Test public void testBinaryMatchesText () throws IOException
+    {
+        Digest.createDigest(_rsrcs, new File(_appdir, Digest.DIGEST_FILE));
+        Digest.createBinaryDigest(_rsrcs, new File(_appdir, Digest.BINARY_DIGEST_FILE));
+        Digest text = new Digest(_appdir, false), binary = new Digest(_appdir, true);
+        for (Resource rsrc : _rsrcs) {
+            assertNotNull(binary.getDigest(rsrc));
+            assertEquals(text.getDigest(rsrc), binary.getDigest(rsrc));
+            assertTrue(binary.validateResource(rsrc, null));
+        }
+        File missing = new File(_appdir, "missing.dat");
+        assertNull(binary.getDigest(new Resource("missing.dat", null, missing, false)));
+    }
+
+    @Test(expected=IOException.class) public void testCorruptBinary () throws IOException
+    {
+        File dfile = new File(_appdir, Digest.BINARY_DIGEST_FILE);
+        Digest.createBinaryDigest(_rsrcs, dfile);
+        // flip a bit in the compressed data, past the gzip header
+        RandomAccessFile raf = new RandomAccessFile(dfile, "rw");
+        raf.seek(20);
+        int b = raf.read();
+        raf.seek(20);
+        raf.write(b ^ 1);
+        raf.close();
+        new Digest(_appdir, true);
+    }
+
+    @Test public void testChangedPaths () throws IOException
+    {
+        Digest.createBinaryDigest(_rsrcs, new File(_appdir, Digest.BINARY_DIGEST_FILE));
+        Digest odigest = new Digest(_appdir, true);
+
+        // change one resource, remove another and add a third
+        write(new File(_appdir, "rsrc/b/c.dat"), "changed");
+        _rsrcs.remove(1);
+        File added = new File(_appdir, "rsrc/d/e.dat");
+        write(added, "added");
+        _rsrcs.add(new Resource("rsrc/d/e.dat", null, added, false));
+        Digest.createBinaryDigest(_rsrcs, new File(_appdir, Digest.BINARY_DIGEST_FILE));
+        Digest ndigest = new Digest(_appdir, true);
+
+        Set<String> expect = new HashSet<String>(
+            Arrays.asList("rsrc/b/c.dat", "code/app.dat", "rsrc/d/e.dat"));
+        assertEquals(expect, ndigest.getChangedPaths(odigest));
+        assertEquals(expect, odigest.getChangedPaths(ndigest));
+        assertTrue(ndigest.getChangedPaths(ndigest).isEmpty());
+        // the subtree that didn't change hashes the same in both
+        assertTrue(Arrays.equals(odigest.getTreeDigest("rsrc/a/"),
+                                 ndigest.getTreeDigest("rsrc/a/")));
+        assertFalse(Arrays.equals(odigest.getTreeDigest(""), ndigest.getTreeDigest("")));
+    }
+
+    protected static void write (File file, String contents) throws IOException
+    {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(contents.getBytes("UTF-8"));
+        out.close();
+    }
+
+    protected static void deleteAll (File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    protected File _appdir;
+    protected List<Resource> _rsrcs = new ArrayList<Resource>();
+
+    protected static final String[] PATHS = {
+        "getdown.txt", "code/app.dat", "code/lib.dat", "rsrc/a/x.dat", "rsrc/a/y.dat",
+        "rsrc/b/c.dat",
+    };
+}
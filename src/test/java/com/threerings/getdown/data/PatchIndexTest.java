@@ -0,0 +1,102 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link PatchIndex}.
+ */
+public class PatchIndexTest
+{
+    @Test public void testDirectHop ()
+    {
+        PatchIndex index = index("patch = 100 101 500", "full = 10000");
+        List<PatchIndex.Hop> chain = index.planChain(100, 101, NO_AUX);
+        assertEquals(1, chain.size());
+        assertEquals("patch100.dat", chain.get(0).getPatchFile());
+    }
+
+    @Test public void testCheapestChain ()
+    {
+        PatchIndex index = index("patch = 100 101 500", "patch = 101 102 500",
+                                 "patch = 100 102 5000", "patch = 102 103 300",
+                                 "full = 100000");
+        List<PatchIndex.Hop> chain = index.planChain(100, 103, NO_AUX);
+        assertEquals(3, chain.size());
+        assertEquals(100, chain.get(0).from);
+        assertEquals(101, chain.get(1).from);
+        assertEquals(102, chain.get(2).from);
+        assertEquals(1300, index.getChainCost(chain, NO_AUX));
+    }
+
+    @Test public void testAuxGroupCost ()
+    {
+        PatchIndex index = index("patch = 100 101 500", "patch-music = 100 101 200",
+                                 "patch = 101 102 500", "patch = 100 102 1500",
+                                 "patch-music = 100 102 100", "full = 10000",
+                                 "full-music = 4000");
+        List<String> aux = Collections.singletonList("music");
+        // 101 -> 102 has no music patch, so the music group will be fetched in full
+        List<PatchIndex.Hop> chain = index.planChain(100, 102, aux);
+        assertEquals(1, chain.size());
+        assertEquals(1600, index.getChainCost(chain, aux));
+        assertEquals(14000, index.getFullCost(100, aux));
+    }
+
+    @Test public void testAuxGroupChargedOnce ()
+    {
+        PatchIndex index = index("patch = 100 101 500", "patch = 101 102 500",
+                                 "patch = 100 102 3000", "full = 10000", "full-music = 4000");
+        List<String> aux = Collections.singletonList("music");
+        // music has no patches, so it is fetched in full once, whichever route is taken
+        List<PatchIndex.Hop> chain = index.planChain(100, 102, aux);
+        assertEquals(2, chain.size());
+        assertEquals(5000, index.getChainCost(chain, aux));
+        assertEquals(Collections.singleton("music"), index.getUnpatchedAuxGroups(chain, aux));
+    }
+
+    @Test public void testChangedCost ()
+    {
+        PatchIndex index = index("patch = 100 101 500", "full = 10000", "full-music = 4000",
+                                 "changed = 100 300", "changed-music = 100 0");
+        List<String> aux = Collections.singletonList("music");
+        assertEquals(300, index.getFullCost(100, aux));
+        // versions without recorded changes are assumed to need everything
+        assertEquals(14000, index.getFullCost(99, aux));
+    }
+
+    @Test public void testNoChain ()
+    {
+        PatchIndex index = index("patch = 101 102 500", "full = 10000");
+        assertNull(index.planChain(100, 102, NO_AUX));
+        assertNull(index.planChain(102, 102, NO_AUX));
+    }
+
+    @Test public void testAuxGroupNameWithDigits ()
+    {
+        PatchIndex index = index("patch-level2 = 100 101 42");
+        assertEquals("patch-level2100.dat", index.getHop("level2", 100, 101).getPatchFile());
+    }
+
+    protected static PatchIndex index (String... lines)
+    {
+        List<String[]> pairs = new ArrayList<String[]>();
+        for (String line : lines) {
+            int eidx = line.indexOf("=");
+            pairs.add(new String[] { line.substring(0, eidx).trim(),
+                                     line.substring(eidx+1).trim() });
+        }
+        return new PatchIndex(pairs);
+    }
+
+    protected static final List<String> NO_AUX = Collections.emptyList();
+}
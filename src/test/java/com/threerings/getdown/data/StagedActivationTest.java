@@ -0,0 +1,86 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+import com.threerings.getdown.util.FileUtil;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Application#activateStagedVersion}.
+ */
+public class StagedActivationTest
+{
+    @Before public void createDir () throws IOException
+    {
+        _dir = File.createTempFile("staged", "");
+        _dir.delete();
+        _dir.mkdir();
+        _sdir = new File(_dir, Application.STAGING_DIR);
+    }
+
+    @After public void deleteDir ()
+    {
+        FileUtil.recursiveDelete(_dir);
+    }
+
+    @Test public void testActivate () throws IOException
+    {
+        write(new File(_dir, "a.dat"), "old");
+        write(new File(_sdir, "a.dat"), "new");
+        write(new File(_sdir, "data/b.dat"), "new");
+        write(new File(_sdir, Application.STAGED_FILE), "a.dat\ndata/b.dat");
+
+        assertTrue(new Application(_dir, null).activateStagedVersion());
+        assertEquals("new", read(new File(_dir, "a.dat")));
+        assertEquals("new", read(new File(_dir, "data/b.dat")));
+        assertFalse(_sdir.exists());
+        assertFalse(new File(_dir, Application.REPLACED_DIR).exists());
+    }
+
+    @Test public void testFailedActivation () throws IOException
+    {
+        // b.dat can't be moved into place, as a file stands where its directory should be
+        write(new File(_dir, "a.dat"), "old");
+        write(new File(_dir, "data"), "in the way");
+        write(new File(_sdir, "a.dat"), "new");
+        write(new File(_sdir, "data/b.dat"), "new");
+        write(new File(_sdir, Application.STAGED_FILE), "a.dat\ndata/b.dat");
+
+        assertFalse(new Application(_dir, null).activateStagedVersion());
+        // the current version is intact, and the staged one is kept for next time
+        assertEquals("old", read(new File(_dir, "a.dat")));
+        assertEquals("new", read(new File(_sdir, "a.dat")));
+        assertEquals("new", read(new File(_sdir, "data/b.dat")));
+        assertTrue(new File(_sdir, Application.STAGED_FILE).exists());
+        assertFalse(new File(_dir, Application.REPLACED_DIR).exists());
+    }
+
+    protected static void write (File file, String contents)
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        PrintStream out = new PrintStream(file, "UTF-8");
+        out.println(contents);
+        out.close();
+    }
+
+    protected static String read (File file)
+        throws IOException
+    {
+        return FileUtil.readLines(
+            new InputStreamReader(new FileInputStream(file), "UTF-8")).get(0);
+    }
+
+    protected File _dir, _sdir;
+}
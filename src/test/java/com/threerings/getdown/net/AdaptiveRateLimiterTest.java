@@ -0,0 +1,35 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link AdaptiveRateLimiter}.
+ */
+public class AdaptiveRateLimiterTest
+{
+    @Test public void testBacksOffWhenCongested ()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0);
+        limiter.noteLatency(20);
+        long rate = limiter.getRate();
+        // latency well above the base delay means we're filling up a queue somewhere
+        limiter.noteLatency(400);
+        assertTrue(limiter.getRate() < rate);
+        assertEquals(20, limiter.getBaseDelay());
+    }
+
+    @Test public void testSpeedsUpToCap ()
+    {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(300 * 1024);
+        for (int ii = 0; ii < 20; ii++) {
+            limiter.noteLatency(20);
+        }
+        assertEquals(300 * 1024, limiter.getRate());
+    }
+}
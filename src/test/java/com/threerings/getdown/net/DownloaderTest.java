@@ -0,0 +1,111 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.threerings.getdown.data.Resource;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Downloader}.
+ */
+public class DownloaderTest
+{
+    @Test public void testFailedResource () throws Exception
+    {
+        Resource good = createResource("good.dat"), bad = createResource("bad.dat");
+        TestObserver obs = new TestObserver();
+        TestDownloader dl = new TestDownloader(Arrays.asList(bad, good), obs);
+        dl.sizes.put(good, 10L);
+        dl.sizes.put(bad, 20L);
+        dl.broken.put(bad, new IllegalStateException("boom"));
+
+        assertTrue(dl.download());
+        // the failure is charged to the resource that failed, not the last one sized
+        assertEquals(Arrays.asList(bad), obs.failed);
+        assertEquals(1, dl.getFailures().size());
+        assertTrue(dl.getFailures().containsKey(bad));
+        assertTrue(dl.downloaded.contains(good));
+    }
+
+    @Test public void testFailedBigResource () throws Exception
+    {
+        // big files are downloaded in a lane of their own, whose failures are reported likewise
+        Resource small = createResource("small.dat"), big = createResource("big.dat");
+        Resource bad = createResource("bigbad.dat");
+        TestObserver obs = new TestObserver();
+        TestDownloader dl = new TestDownloader(Arrays.asList(small, big, bad), obs);
+        dl.sizes.put(small, 10L);
+        dl.sizes.put(big, Downloader.BIG_RESOURCE_SIZE);
+        dl.sizes.put(bad, Downloader.BIG_RESOURCE_SIZE * 2);
+        dl.broken.put(bad, new IllegalStateException("boom"));
+
+        assertTrue(dl.download());
+        assertEquals(Arrays.asList(bad), obs.failed);
+        assertEquals(1, dl.getFailures().size());
+        assertTrue(dl.getFailures().containsKey(bad));
+        assertTrue(dl.downloaded.containsAll(Arrays.asList(small, big)));
+    }
+
+    protected static Resource createResource (String path)
+        throws IOException
+    {
+        return new Resource(path, new URL("http://origin/" + path),
+                            new File(System.getProperty("java.io.tmpdir"), path), false);
+    }
+
+    /** Downloads nothing, failing as instructed. */
+    protected static class TestDownloader extends Downloader
+    {
+        public Map<Resource, Long> sizes = new HashMap<Resource, Long>();
+        public Map<Resource, RuntimeException> broken = new HashMap<Resource, RuntimeException>();
+        public List<Resource> downloaded = new ArrayList<Resource>();
+
+        public TestDownloader (List<Resource> resources, Observer obs) {
+            super(resources, obs);
+        }
+
+        @Override protected long checkSize (Resource rsrc) {
+            return sizes.get(rsrc);
+        }
+
+        @Override protected void doDownload (Resource rsrc) {
+            if (broken.containsKey(rsrc)) {
+                throw broken.get(rsrc);
+            }
+            synchronized (downloaded) {
+                downloaded.add(rsrc);
+            }
+        }
+    }
+
+    /** Notes the resources whose downloads fail. */
+    protected static class TestObserver implements Downloader.Observer
+    {
+        public List<Resource> failed = new ArrayList<Resource>();
+
+        public void resolvingDownloads () {
+        }
+
+        public boolean downloadProgress (int percent, long remaining) {
+            return true;
+        }
+
+        public synchronized void downloadFailed (Resource rsrc, Exception e) {
+            failed.add(rsrc);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.Compression;
+import com.threerings.getdown.util.FileUtil;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link HTTPDownloader}.
+ */
+public class HTTPDownloaderTest
+{
+    @Before public void startServer () throws IOException
+    {
+        _local = File.createTempFile("download", ".dat");
+        _server = new ServerSocket(0);
+        _thread = new Thread() {
+            @Override public void run () {
+                serve();
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    @After public void stopServer () throws Exception
+    {
+        _server.close();
+        _thread.join();
+        _local.delete();
+    }
+
+    @Test public void testPlainFallback () throws IOException
+    {
+        // the server has no compressed variant, so the plain file is downloaded instead
+        URL remote = new URL("http://127.0.0.1:" + _server.getLocalPort() + "/data/file.dat");
+        Resource rsrc = new Resource("data/file.dat", remote, _local, false);
+        rsrc.setCompression(Compression.GZIP);
+        HTTPDownloader dl = new HTTPDownloader(Collections.singletonList(rsrc), null);
+        dl.doDownload(rsrc, null);
+
+        assertTrue(dl._plain.contains(rsrc));
+        assertEquals(CONTENT, FileUtil.readLines(
+            new InputStreamReader(new FileInputStream(_local), "US-ASCII")).get(0));
+        synchronized (_requests) {
+            assertEquals(2, _requests.size());
+            assertEquals("GET /data/file.dat.gz", _requests.get(0));
+            assertEquals("GET /data/file.dat", _requests.get(1));
+        }
+    }
+
+    /**
+     * Answers requests until our server socket is closed: those for compressed variants with a
+     * 404, the rest with {@link #CONTENT}.
+     */
+    protected void serve ()
+    {
+        while (true) {
+            try {
+                Socket sock = _server.accept();
+                try {
+                    InputStream in = sock.getInputStream();
+                    StringBuilder buf = new StringBuilder();
+                    while (buf.indexOf("\r\n\r\n") < 0) {
+                        int c = in.read();
+                        if (c < 0) {
+                            break;
+                        }
+                        buf.append((char)c);
+                    }
+                    String[] request = buf.toString().split(" ");
+                    if (request.length < 2) {
+                        continue;
+                    }
+                    synchronized (_requests) {
+                        _requests.add(request[0] + " " + request[1]);
+                    }
+                    String response = request[1].endsWith(".gz") ?
+                        "HTTP/1.0 404 Not Found\r\nContent-Length: 0\r\n\r\n" :
+                        "HTTP/1.0 200 OK\r\nContent-Length: " + CONTENT.length() + "\r\n\r\n" +
+                        CONTENT;
+                    OutputStream out = sock.getOutputStream();
+                    out.write(response.getBytes("US-ASCII"));
+                    out.flush();
+                } finally {
+                    sock.close();
+                }
+            } catch (IOException ioe) {
+                return; // our socket was closed
+            }
+        }
+    }
+
+    protected File _local;
+    protected ServerSocket _server;
+    protected Thread _thread;
+    protected List<String> _requests = new ArrayList<String>();
+
+    protected static final String CONTENT = "plain file contents";
+}
@@ -0,0 +1,48 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Mirrors}.
+ */
+public class MirrorsTest
+{
+    @Test public void testRebase () throws Exception
+    {
+        Mirrors mirrors = new Mirrors();
+        mirrors.configure("http://origin.com/app/%VERSION%/",
+                          Arrays.asList("http://cdn.com/mirror/%VERSION%/"));
+        List<Mirrors.Mirror> ordered = mirrors.getOrdered();
+        assertTrue(ordered.get(0).primary);
+        URL url = new URL("http://origin.com/app/105/code/app.jar");
+        assertEquals(url, mirrors.rebase(url, ordered.get(0)));
+        assertEquals("http://cdn.com/mirror/105/code/app.jar",
+                     mirrors.rebase(url, ordered.get(1)).toString());
+    }
+
+    @Test public void testFailover ()
+    {
+        Mirrors mirrors = new Mirrors();
+        mirrors.configure("http://origin.com/app/", Arrays.asList("http://cdn.com/app/"));
+        Mirrors.Mirror origin = mirrors.getOrdered().get(0);
+        origin.noteFailure();
+        origin.noteFailure();
+        assertFalse(mirrors.getOrdered().get(0).primary);
+
+        // a faster mirror is preferred, and health persists across reconfiguration
+        Mirrors.Mirror cdn = mirrors.getOrdered().get(0);
+        cdn.noteSuccess(1024 * 1024, 100);
+        mirrors.configure("http://origin.com/app/", Arrays.asList("http://cdn.com/app/"));
+        assertSame(cdn, mirrors.getOrdered().get(0));
+    }
+}
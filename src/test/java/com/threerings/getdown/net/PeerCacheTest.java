@@ -0,0 +1,84 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link PeerCache}, with two peers on loopback.
+ */
+public class PeerCacheTest
+{
+    @Before public void createPeers () throws IOException
+    {
+        List<InetSocketAddress> none = Collections.emptyList();
+        _server = new PeerCache(0, none, false);
+        _client = new PeerCache(0, PeerCache.parsePeers("127.0.0.1:" + _server.getPort()), false);
+        _source = File.createTempFile("peer", ".dat");
+        _target = File.createTempFile("peer", ".dat");
+        FileOutputStream out = new FileOutputStream(_source);
+        out.write(CONTENT);
+        out.close();
+    }
+
+    @After public void shutdownPeers ()
+    {
+        _server.shutdown();
+        _client.shutdown();
+        _source.delete();
+        _target.delete();
+    }
+
+    @Test public void testFetch () throws IOException
+    {
+        List<InetSocketAddress> peers = _client.getPeers();
+        assertEquals(1, peers.size());
+        InetSocketAddress peer = peers.get(0);
+
+        // the server doesn't have the content until it shares it
+        assertFalse(_client.fetch(peer, "0123abcd", _target));
+        _server.share("0123abcd", _source);
+        assertTrue(_client.fetch(peer, "0123abcd", _target));
+
+        byte[] data = new byte[CONTENT.length];
+        FileInputStream in = new FileInputStream(_target);
+        assertEquals(CONTENT.length, in.read(data));
+        assertEquals(-1, in.read());
+        in.close();
+        assertEquals(new String(CONTENT, "UTF-8"), new String(data, "UTF-8"));
+    }
+
+    @Test public void testBackoff ()
+    {
+        InetSocketAddress peer = _client.getPeers().get(0);
+        _server.shutdown();
+        assertFalse(_client.fetch(peer, "0123abcd", _target));
+        // a listed peer that failed is left alone for a while
+        assertTrue(_client.getPeers().isEmpty());
+    }
+
+    @Test public void testParsePeers ()
+    {
+        List<InetSocketAddress> peers = PeerCache.parsePeers("10.0.0.2:7000, bogus,[::1]:7001");
+        assertEquals(2, peers.size());
+        assertEquals(7000, peers.get(0).getPort());
+        assertEquals(7001, peers.get(1).getPort());
+    }
+
+    protected PeerCache _server, _client;
+    protected File _source, _target;
+
+    protected static final byte[] CONTENT = "Shared with peers.".getBytes();
+}
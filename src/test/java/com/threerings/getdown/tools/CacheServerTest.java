@@ -0,0 +1,392 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.samskivert.io.StreamUtil;
+
+import com.threerings.getdown.data.Digest;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.FileUtil;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link CacheServer}.
+ */
+public class CacheServerTest
+{
+    /** A minimal origin server, which serves the files it is given. */
+    protected static class Origin extends Thread
+    {
+        /** The files served, by request path. */
+        public Map<String, byte[]> files =
+            Collections.synchronizedMap(new HashMap<String, byte[]>());
+
+        /** How long (in millis) to wait before answering each request. */
+        public volatile long delay;
+
+        public Origin () throws IOException {
+            _server = new ServerSocket(0);
+            setDaemon(true);
+            start();
+        }
+
+        public int getPort () {
+            return _server.getLocalPort();
+        }
+
+        public synchronized int getRequests (String path) {
+            Integer count = _requests.get(path);
+            return (count == null) ? 0 : count;
+        }
+
+        public void close () throws Exception {
+            _server.close();
+            join();
+        }
+
+        @Override public void run () {
+            while (true) {
+                final Socket sock;
+                try {
+                    sock = _server.accept();
+                } catch (IOException ioe) {
+                    return; // we've been closed
+                }
+                new Thread() {
+                    @Override public void run () {
+                        serve(sock);
+                    }
+                }.start();
+            }
+        }
+
+        protected void serve (Socket sock) {
+            try {
+                InputStream in = sock.getInputStream();
+                StringBuilder buf = new StringBuilder();
+                while (buf.indexOf("\r\n\r\n") < 0) {
+                    int c = in.read();
+                    if (c < 0) {
+                        return;
+                    }
+                    buf.append((char)c);
+                }
+                String path = buf.toString().split(" ")[1];
+                synchronized (this) {
+                    _requests.put(path, getRequests(path) + 1);
+                }
+                Thread.sleep(delay);
+                byte[] data = files.get(path);
+                OutputStream out = sock.getOutputStream();
+                if (data == null) {
+                    out.write("HTTP/1.0 404 Not Found\r\nContent-Length: 0\r\n\r\n"
+                              .getBytes("US-ASCII"));
+                } else {
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Length: " + data.length +
+                               "\r\n\r\n").getBytes("US-ASCII"));
+                    out.write(data);
+                }
+                out.flush();
+            } catch (Exception e) {
+                // the test will fail
+            } finally {
+                try {
+                    sock.close();
+                } catch (IOException ioe) {
+                    // nothing doing
+                }
+            }
+        }
+
+        protected ServerSocket _server;
+        protected Map<String, Integer> _requests = new HashMap<String, Integer>();
+    }
+
+    @Before public void createFile () throws IOException
+    {
+        _file = File.createTempFile("cache", ".dat");
+        FileOutputStream out = new FileOutputStream(_file);
+        out.write(CONTENT.getBytes("US-ASCII"));
+        out.close();
+        _cache = File.createTempFile("cache", "");
+        _cache.delete();
+        _cache.mkdir();
+    }
+
+    @After public void deleteFile ()
+    {
+        _file.delete();
+        FileUtil.recursiveDelete(_cache);
+    }
+
+    @Test public void testParseRange ()
+    {
+        assertArrayEquals(new long[] { 0, 4 }, CacheServer.parseRange("0-4", 10));
+        assertArrayEquals(new long[] { 5, 9 }, CacheServer.parseRange("5-", 10));
+        assertArrayEquals(new long[] { 7, 9 }, CacheServer.parseRange("-3", 10));
+        assertArrayEquals(new long[] { 0, 9 }, CacheServer.parseRange("-30", 10));
+        assertArrayEquals(new long[] { 8, 9 }, CacheServer.parseRange("8-100", 10));
+        assertNull(CacheServer.parseRange("10-", 10));
+        assertNull(CacheServer.parseRange("5-4", 10));
+        for (String bogus : new String[] { "", "5", "-", "a-b" }) {
+            try {
+                CacheServer.parseRange(bogus, 10);
+                fail("Parsed bogus range: " + bogus);
+            } catch (NumberFormatException nfe) {
+                // expected
+            }
+        }
+    }
+
+    @Test public void testWholeFile () throws IOException
+    {
+        String response = send(null);
+        assertTrue(response, response.startsWith("HTTP/1.0 200 OK\r\n"));
+        assertFalse(response, response.contains("Content-Range"));
+        assertTrue(response, response.endsWith("\r\n\r\n" + CONTENT));
+    }
+
+    @Test public void testRange () throws IOException
+    {
+        String response = send("bytes=2-5");
+        assertTrue(response, response.startsWith("HTTP/1.0 206 Partial Content\r\n"));
+        assertTrue(response, response.contains("Content-Range: bytes 2-5/10\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\n" + CONTENT.substring(2, 6)));
+    }
+
+    @Test public void testUnsatisfiableRange () throws IOException
+    {
+        String response = send("bytes=20-");
+        assertTrue(response, response.startsWith("HTTP/1.0 416 "));
+        assertTrue(response, response.contains("Content-Range: bytes */10\r\n"));
+    }
+
+    @Test public void testIgnoredRange () throws IOException
+    {
+        // ranges that we can't parse, or several ranges, get the whole file
+        for (String range : new String[] { "bytes=a-b", "bytes=0-1,4-5", "lines=1-2" }) {
+            String response = send(range);
+            assertTrue(response, response.startsWith("HTTP/1.0 200 OK\r\n"));
+            assertFalse(response, response.contains("Content-Range"));
+            assertTrue(response, response.endsWith("\r\n\r\n" + CONTENT));
+        }
+    }
+
+    @Test public void testConditionalPassThrough () throws Exception
+    {
+        // an origin that reports that the requested file hasn't changed if it's asked nicely
+        final ServerSocket origin = new ServerSocket(0);
+        final String[] request = new String[1];
+        Thread thread = new Thread() {
+            @Override public void run () {
+                try {
+                    Socket sock = origin.accept();
+                    InputStream in = sock.getInputStream();
+                    StringBuilder buf = new StringBuilder();
+                    while (buf.indexOf("\r\n\r\n") < 0) {
+                        buf.append((char)in.read());
+                    }
+                    request[0] = buf.toString();
+                    OutputStream out = sock.getOutputStream();
+                    out.write(("HTTP/1.0 304 Not Modified\r\nETag: \"v1\"\r\n" +
+                               "Last-Modified: Mon, 19 Oct 2026 00:00:00 GMT\r\n\r\n")
+                              .getBytes("US-ASCII"));
+                    sock.close();
+                } catch (IOException ioe) {
+                    // the test will fail
+                }
+            }
+        };
+        thread.start();
+
+        CacheServer server = new CacheServer(
+            _file.getParentFile(), "http://127.0.0.1:" + origin.getLocalPort() + "/app/%VERSION%");
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("if-none-match", "\"v1\"");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        server.handle(false, "/latest/getdown.txt", headers, out);
+        thread.join();
+        origin.close();
+
+        assertTrue(request[0], request[0].contains("If-None-Match: \"v1\"\r\n"));
+        String response = out.toString("US-ASCII");
+        assertTrue(response, response.startsWith("HTTP/1.0 304 Not Modified\r\n"));
+        assertTrue(response, response.contains("ETag: \"v1\"\r\n"));
+        assertTrue(response, response.contains("Last-Modified: Mon, 19 Oct 2026"));
+        assertFalse(response, response.contains("Content-Length"));
+    }
+
+    @Test public void testFetchAndValidate () throws Exception
+    {
+        Origin origin = createOrigin(DATA);
+        try {
+            CacheServer server = createServer(origin);
+            for (int ii = 0; ii < 2; ii++) {
+                String response = request(server, "/app/5/data.dat");
+                assertTrue(response, response.startsWith("HTTP/1.0 200 OK\r\n"));
+                assertTrue(response, response.endsWith("\r\n\r\n" + DATA));
+            }
+            // the second request was answered from the cache
+            assertEquals(1, origin.getRequests("/app/5/data.dat"));
+            assertEquals(DATA, new String(readFile(new File(_cache, "5/data.dat")), "UTF-8"));
+        } finally {
+            origin.close();
+        }
+    }
+
+    @Test public void testDigestMismatch () throws Exception
+    {
+        Origin origin = createOrigin("corrupted data");
+        try {
+            String response = request(createServer(origin), "/app/5/data.dat");
+            assertTrue(response, response.startsWith("HTTP/1.0 502 "));
+            assertFalse(new File(_cache, "5/data.dat").exists());
+        } finally {
+            origin.close();
+        }
+    }
+
+    @Test public void testSharedFetch () throws Exception
+    {
+        Origin origin = createOrigin(DATA);
+        origin.delay = 300L;
+        try {
+            final CacheServer server = createServer(origin);
+            final String[] responses = new String[4];
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int ii = 0; ii < responses.length; ii++) {
+                final int idx = ii;
+                threads.add(new Thread() {
+                    @Override public void run () {
+                        try {
+                            responses[idx] = request(server, "/app/5/data.dat");
+                        } catch (IOException ioe) {
+                            responses[idx] = ioe.toString();
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (String response : responses) {
+                assertTrue(response, response.endsWith("\r\n\r\n" + DATA));
+            }
+            assertEquals(1, origin.getRequests("/app/5/data.dat"));
+        } finally {
+            origin.close();
+        }
+    }
+
+    @Test public void testTraversal () throws Exception
+    {
+        CacheServer server = new CacheServer(_cache, "http://127.0.0.1:1/app/%VERSION%");
+        for (String path : new String[] {
+                "/app/5/../../secret", "/app/5/data/../../6/data.dat", "/app/5//etc/passwd" }) {
+            String response = request(server, path);
+            assertTrue(response, response.startsWith("HTTP/1.0 400 "));
+        }
+        String sep = File.separator;
+        assertFalse(CacheServer.isWithin(_cache, new File("a" + sep + ".." + sep + ".." + sep)));
+        assertTrue(CacheServer.isWithin(_cache, new File("a" + sep + ".." + sep + "b")));
+    }
+
+    /**
+     * Creates an origin that serves version 5 of an application whose resource, data.dat, is
+     * described by its digest as containing {@link #DATA}, but which the origin serves as the
+     * supplied data.
+     */
+    protected Origin createOrigin (String data)
+        throws IOException
+    {
+        Origin origin = new Origin();
+        String config = "appbase = http://127.0.0.1:" + origin.getPort() + "/app/%VERSION%\n" +
+            "version = 5\nclass = Main\ncode = code.dat\nresource = data.dat\n";
+        File vdir = new File(_cache, "origin");
+        vdir.mkdirs();
+        List<Resource> rsrcs = new ArrayList<Resource>();
+        String[][] files = {
+            { "getdown.txt", config }, { "code.dat", "code" }, { "data.dat", DATA } };
+        for (String[] file : files) {
+            File local = new File(vdir, file[0]);
+            FileOutputStream out = new FileOutputStream(local);
+            out.write(file[1].getBytes("UTF-8"));
+            out.close();
+            rsrcs.add(new Resource(file[0], null, local, false));
+        }
+        File dfile = new File(vdir, Digest.DIGEST_FILE);
+        Digest.createDigest(rsrcs, dfile);
+        origin.files.put("/app/5/getdown.txt", config.getBytes("UTF-8"));
+        origin.files.put("/app/5/" + Digest.DIGEST_FILE, readFile(dfile));
+        origin.files.put("/app/5/code.dat", "code".getBytes("UTF-8"));
+        origin.files.put("/app/5/data.dat", data.getBytes("UTF-8"));
+        FileUtil.recursiveDelete(vdir);
+        return origin;
+    }
+
+    protected static byte[] readFile (File file)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            StreamUtil.copy(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    protected CacheServer createServer (Origin origin)
+        throws IOException
+    {
+        return new CacheServer(_cache, "http://127.0.0.1:" + origin.getPort() + "/app/%VERSION%");
+    }
+
+    protected static String request (CacheServer server, String path)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        server.handle(false, path, new HashMap<String, String>(), out);
+        return out.toString("US-ASCII");
+    }
+
+    protected String send (String range)
+        throws IOException
+    {
+        CacheServer server = new CacheServer(_file.getParentFile(), "http://origin/%VERSION%");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        server.sendFile(false, _file, range, out);
+        return out.toString("US-ASCII");
+    }
+
+    protected File _file, _cache;
+
+    protected static final String CONTENT = "0123456789";
+
+    /** The contents of the resource served by our test origin. */
+    protected static final String DATA = "resource data";
+}
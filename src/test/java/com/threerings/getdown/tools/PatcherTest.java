@@ -0,0 +1,74 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import com.threerings.getdown.util.FileUtil;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Patcher}.
+ */
+public class PatcherTest
+{
+    @Before public void createDir () throws IOException
+    {
+        _dir = File.createTempFile("patcher", "");
+        _dir.delete();
+        _dir.mkdir();
+    }
+
+    @After public void deleteDir ()
+    {
+        FileUtil.recursiveDelete(_dir);
+    }
+
+    @Test public void testTouchedPaths () throws IOException
+    {
+        new FileOutputStream(new File(_dir, "old.dat")).close();
+        File patch = new File(_dir, "patch.dat");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(patch));
+        out.putNextEntry(new ZipEntry("data/new.dat" + Patcher.CREATE));
+        out.write(new byte[] { 1, 2, 3 });
+        out.putNextEntry(new ZipEntry("old.dat" + Patcher.DELETE));
+        out.putNextEntry(new ZipEntry("gone.dat" + Patcher.DELETE));
+        out.close();
+
+        Patcher patcher = new Patcher();
+        patcher.patch(_dir, patch, null);
+        assertEquals(new HashSet<String>(Arrays.asList("data/new.dat", "old.dat", "gone.dat")),
+                     patcher.getTouchedPaths());
+        assertEquals(0, patcher.getErrorCount());
+        assertEquals(3, new File(_dir, "data/new.dat").length());
+        assertFalse(new File(_dir, "old.dat").exists());
+    }
+
+    @Test public void testFailedPatch () throws IOException
+    {
+        // there's no file to patch, so the patch fails
+        File patch = new File(_dir, "patch.dat");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(patch));
+        out.putNextEntry(new ZipEntry("missing.jar" + Patcher.PATCH));
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        Patcher patcher = new Patcher();
+        patcher.patch(_dir, patch, null);
+        assertTrue(patcher.getTouchedPaths().contains("missing.jar"));
+        assertEquals(1, patcher.getErrorCount());
+    }
+
+    protected File _dir;
+}
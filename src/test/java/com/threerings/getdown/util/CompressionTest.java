@@ -0,0 +1,77 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.samskivert.io.StreamUtil;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Compression}.
+ */
+public class CompressionTest
+{
+    @Before public void createFiles () throws IOException
+    {
+        _plain = File.createTempFile("plain", ".dat");
+        _encoded = File.createTempFile("plain", ".dat.gz");
+    }
+
+    @After public void deleteFiles ()
+    {
+        _plain.delete();
+        _encoded.delete();
+    }
+
+    @Test public void testGzipRoundTrip () throws IOException
+    {
+        byte[] data = new byte[64 * 1024];
+        for (int ii = 0; ii < data.length; ii++) {
+            data[ii] = (byte)(ii % 251);
+        }
+        FileOutputStream out = new FileOutputStream(_plain);
+        out.write(data);
+        out.close();
+
+        Compression.GZIP.encode(_plain, _encoded);
+        assertTrue(_encoded.length() < _plain.length());
+        InputStream in = Compression.GZIP.decode(new FileInputStream(_encoded));
+        try {
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            StreamUtil.copy(in, decoded);
+            assertArrayEquals(data, decoded.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test public void testForSuffix ()
+    {
+        for (Compression comp : Compression.values()) {
+            assertSame(comp, Compression.forSuffix(comp.getSuffix()));
+        }
+        assertNull(Compression.forSuffix("bogus"));
+    }
+
+    @Test public void testShouldCompress ()
+    {
+        assertTrue(Compression.shouldCompress("data/level.dat", Collections.<String>emptyList()));
+        assertFalse(Compression.shouldCompress("code/app.JAR", Collections.<String>emptyList()));
+        assertFalse(Compression.shouldCompress("data/movie.bik", Arrays.asList(".bik")));
+    }
+
+    protected File _plain, _encoded;
+}
@@ -0,0 +1,160 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link IndexedClassLoader}.
+ */
+public class IndexedClassLoaderTest
+{
+    /** Loaded from a jar by the tests. */
+    public static class Hello
+    {
+    }
+
+    @Before public void createDir () throws IOException
+    {
+        _dir = File.createTempFile("icl", "");
+        _dir.delete();
+        _dir.mkdir();
+        _index = new File(_dir, "classpath.index");
+    }
+
+    @After public void deleteDir ()
+    {
+        FileUtil.recursiveDelete(_dir);
+    }
+
+    @Test public void testLoad () throws Exception
+    {
+        File main = new File(_dir, "main.jar");
+        writeJar(main, "extra.jar", HELLO_PATH, "data/hello.txt");
+        writeJar(new File(_dir, "extra.jar"), null, "extra/more.txt");
+
+        IndexedClassLoader loader = createLoader(main);
+        assertEquals(2, loader.getJars().size());
+        Class<?> clazz = loader.loadClass(Hello.class.getName());
+        assertSame(loader, clazz.getClassLoader());
+        assertFalse(Hello.class == clazz);
+        assertNotNull(loader.getResource("data/hello.txt"));
+        // found via the manifest's Class-Path
+        assertNotNull(loader.getResource("extra/more.txt"));
+        assertNull(loader.getResource("data/missing.txt"));
+        assertTrue(_index.exists());
+
+        // a second loader reads the index rather than building it
+        loader = createLoader(main);
+        assertEquals(2, loader.getJars().size());
+        assertNotNull(loader.getResource("extra/more.txt"));
+    }
+
+    @Test public void testReindex () throws Exception
+    {
+        File main = new File(_dir, "main.jar");
+        writeJar(main, null, "data/hello.txt");
+        IndexedClassLoader loader = createLoader(main);
+        assertNull(loader.getResource("fresh/new.txt"));
+        String before = readIndex();
+
+        // a changed jar calls for a new index
+        writeJar(main, null, "data/hello.txt", "fresh/new.txt");
+        loader = createLoader(main);
+        assertNotNull(loader.getResource("fresh/new.txt"));
+        assertFalse(before.equals(readIndex()));
+    }
+
+    @Test public void testUnindexable () throws Exception
+    {
+        // a directory on the Class-Path can't be indexed, so the loader searches in full
+        File main = new File(_dir, "main.jar");
+        new File(_dir, "classes/extra").mkdirs();
+        new FileOutputStream(new File(_dir, "classes/extra/more.txt")).close();
+        writeJar(main, "classes/", "data/hello.txt");
+        IndexedClassLoader loader = createLoader(main);
+        assertNotNull(loader.getResource("data/hello.txt"));
+        assertNotNull(loader.getResource("extra/more.txt"));
+        assertFalse(_index.exists());
+    }
+
+    protected IndexedClassLoader createLoader (File jar)
+    {
+        List<File> jars = Collections.singletonList(jar);
+        return new IndexedClassLoader(jars, _index, null);
+    }
+
+    protected String readIndex ()
+        throws IOException
+    {
+        return FileUtil.readLines(
+            new InputStreamReader(new FileInputStream(_index), "UTF-8")).toString();
+    }
+
+    /**
+     * Writes a jar with the supplied entries: the class that we load, or files that hold their
+     * own names.
+     */
+    protected static void writeJar (File file, String classPath, String... entries)
+        throws IOException
+    {
+        Manifest man = new Manifest();
+        man.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (classPath != null) {
+            man.getMainAttributes().put(Attributes.Name.CLASS_PATH, classPath);
+        }
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(file), man);
+        try {
+            for (String entry : entries) {
+                out.putNextEntry(new JarEntry(entry));
+                if (entry.equals(HELLO_PATH)) {
+                    out.write(readClass());
+                } else {
+                    out.write(entry.getBytes("UTF-8"));
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    protected static byte[] readClass ()
+        throws IOException
+    {
+        InputStream in = IndexedClassLoaderTest.class.getClassLoader().getResourceAsStream(
+            HELLO_PATH);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    protected File _dir, _index;
+
+    protected static final String HELLO_PATH = Hello.class.getName().replace('.', '/') + ".class";
+}
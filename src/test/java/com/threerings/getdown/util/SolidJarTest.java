@@ -0,0 +1,101 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2013 Three Rings Design, Inc.
+// http://code.google.com/p/getdown/source/browse/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import com.samskivert.io.StreamUtil;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link SolidJar}.
+ */
+public class SolidJarTest
+{
+    @Before public void createFiles () throws IOException
+    {
+        _jar = File.createTempFile("solid", ".jar");
+        _solid = File.createTempFile("solid", ".sjar");
+    }
+
+    @After public void deleteFiles ()
+    {
+        _jar.delete();
+        _solid.delete();
+    }
+
+    @Test public void testDeflatedJar () throws IOException
+    {
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(_jar));
+        for (int ii = 0; ii < 20; ii++) {
+            out.putNextEntry(new ZipEntry("com/example/Class" + ii + ".class"));
+            out.write(content(ii));
+        }
+        out.putNextEntry(new ZipEntry("empty.txt"));
+        out.close();
+        assertRoundTrip();
+    }
+
+    @Test public void testStoredAndLeveledEntries () throws IOException
+    {
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(_jar));
+        byte[] data = content(1);
+        ZipEntry stored = new ZipEntry("stored.dat");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        stored.setCrc(crc.getValue());
+        out.putNextEntry(stored);
+        out.write(data);
+        out.setLevel(1);
+        out.putNextEntry(new ZipEntry("fast.dat"));
+        out.write(content(2));
+        out.close();
+        assertRoundTrip();
+    }
+
+    protected void assertRoundTrip () throws IOException
+    {
+        SolidJar.encode(_jar, _solid);
+        InputStream in = SolidJar.decode(new FileInputStream(_solid));
+        byte[] decoded;
+        try {
+            decoded = StreamUtil.copy(in, new ByteArrayOutputStream()).toByteArray();
+        } finally {
+            StreamUtil.close(in);
+        }
+        InputStream jin = new FileInputStream(_jar);
+        try {
+            byte[] original = StreamUtil.copy(jin, new ByteArrayOutputStream()).toByteArray();
+            assertTrue(Arrays.equals(original, decoded));
+        } finally {
+            StreamUtil.close(jin);
+        }
+    }
+
+    protected static byte[] content (int seed)
+    {
+        StringBuilder buf = new StringBuilder();
+        for (int ii = 0; ii < 200; ii++) {
+            buf.append("method").append(ii % (seed + 3)).append("(Ljava/lang/String;)V\n");
+        }
+        return buf.toString().getBytes();
+    }
+
+    protected File _jar, _solid;
+}